@@ -0,0 +1,209 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lotus.domino.Document;
+
+/**
+ * Suggests folders for many documents at once, e.g. for a full Inbox after a
+ * vacation. The text of the documents is read on the Notes thread, the
+ * words are counted and scored against a model snapshot on all processors,
+ * then the caller writes the suggestions back on the Notes thread.
+ * Documents are taken in batches of BATCH_SIZE, so the text in memory stays
+ * bounded. The entries and their buffers are reused from batch to batch
+ * <p>
+ * Not thread safe, the helpers only run during classify
+ * 
+ * @author stw
+ * 
+ */
+public class BatchClassifier {
+
+	/**
+	 * How many documents are read before they get scored
+	 */
+	public static final int BATCH_SIZE = 256;
+
+	private final WordExtractor extractor;
+	private final int threadCount;
+
+	// The first size entries are in use
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private int size = 0;
+
+	// What a helper threw first
+	private volatile RuntimeException failure = null;
+
+	/**
+	 * @param config
+	 *            which fields are read
+	 * @param threadCount
+	 *            how many threads score, the calling one included
+	 */
+	public BatchClassifier(Configuration config, int threadCount) {
+		this.extractor = new WordExtractor(config);
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * Reads the text of a document, must run on the Notes thread
+	 * 
+	 * @param doc
+	 *            stays open until the caller takes it back with getDocument
+	 * @param viewName
+	 *            where the document was found
+	 */
+	public void add(Document doc, String viewName) {
+		if (this.size == this.entries.size()) {
+			this.entries.add(new Entry());
+		}
+		Entry entry = this.entries.get(this.size++);
+		entry.doc = doc;
+		entry.viewName = viewName;
+		entry.language = this.extractor.read(doc, entry.tokenizer);
+		entry.suggestions.clear();
+	}
+
+	/**
+	 * Scores all documents added since the last clear
+	 * 
+	 * @param model
+	 *            a snapshot that doesn't change while we score, null if
+	 *            there is no model yet
+	 * @throws RuntimeException
+	 *             what scoring threw first
+	 */
+	public void classify(final ScoringModel model) {
+		if (model == null) {
+			return;
+		}
+		this.failure = null;
+		final AtomicInteger next = new AtomicInteger();
+		Runnable work = new Runnable() {
+			public void run() {
+				BatchClassifier.this.classifyEntries(model, next);
+			}
+		};
+
+		// The calling thread works too
+		Thread[] helpers = new Thread[Math.max(0,
+				Math.min(this.threadCount, this.size) - 1)];
+		for (int i = 0; i < helpers.length; i++) {
+			helpers[i] = new Thread(work, "SmartFile classifier " + (i + 1));
+			helpers[i].setDaemon(true);
+			helpers[i].start();
+		}
+		work.run();
+
+		// The entries are shared with the helpers, we must not go on before
+		// they are done
+		boolean interrupted = false;
+		for (Thread helper : helpers) {
+			while (helper.isAlive()) {
+				try {
+					helper.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (this.failure != null) {
+			throw this.failure;
+		}
+	}
+
+	/**
+	 * Forgets the documents, the caller has taken care of them
+	 */
+	public void clear() {
+		for (int i = 0; i < this.size; i++) {
+			this.entries.get(i).doc = null;
+		}
+		this.size = 0;
+	}
+
+	public Document getDocument(int i) {
+		return this.entries.get(i).doc;
+	}
+
+	/**
+	 * @return the suggested folders, best first, empty if nothing matched
+	 */
+	public List<String> getSuggestions(int i) {
+		return this.entries.get(i).suggestions;
+	}
+
+	public String getViewName(int i) {
+		return this.entries.get(i).viewName;
+	}
+
+	public boolean isFull() {
+		return this.size >= BATCH_SIZE;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Scores entries until none is left, every thread has its own counter
+	 * and scorer
+	 */
+	private void classifyEntries(ScoringModel model, AtomicInteger next) {
+		TermCounter tf = new TermCounter();
+		FolderScorer scorer = new FolderScorer();
+		try {
+			int i;
+			while ((i = next.getAndIncrement()) < this.size) {
+				Entry entry = this.entries.get(i);
+				this.extractor.count(entry.tokenizer, entry.language, tf);
+				int found = scorer.score(model, tf);
+				for (int rank = 0; rank < found; rank++) {
+					entry.suggestions.add(model.getFolderName(scorer
+							.getTopFolder(rank)));
+				}
+			}
+		} catch (RuntimeException e) {
+			// The other threads finish the rest
+			if (this.failure == null) {
+				this.failure = e;
+			}
+		}
+	}
+
+	private static class Entry {
+		final Tokenizer tokenizer = new Tokenizer();
+		final List<String> suggestions = new ArrayList<String>(
+				FolderScorer.TOP_FOLDERS);
+		Document doc;
+		String viewName;
+		String language;
+	}
+
+}
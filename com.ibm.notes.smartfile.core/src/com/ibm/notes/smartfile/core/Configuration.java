@@ -31,10 +31,24 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
-import java.util.Scanner;
 
 public class Configuration {
 
+	/**
+	 * About 100 pages of text, way more than we need to file a mail
+	 */
+	public static final int DEFAULT_MAX_TEXT_LENGTH = 256 * 1024;
+
+	/**
+	 * Once a day we check all documents, not only the modified ones
+	 */
+	public static final int DEFAULT_SWEEP_HOURS = 24;
+
+	/**
+	 * The item Notes keeps the folders of a document in
+	 */
+	public static final String FOLDER_REF = "$FolderRef";
+
 	/**
 	 * Where is the file with the learning results
 	 */
@@ -76,6 +90,18 @@ public class Configuration {
 	 */
 	private List<String> fieldsToProcess;
 
+	/**
+	 * How many characters of the fields to process we read per document at
+	 * most, so huge mails don't stall processing
+	 */
+	private int maxTextLength = Configuration.DEFAULT_MAX_TEXT_LENGTH;
+
+	/**
+	 * Hours between two checks of all documents, in between only modified
+	 * documents are checked
+	 */
+	private int sweepHours = Configuration.DEFAULT_SWEEP_HOURS;
+
 	/**
 	 * What is the default language of the scanner/stopwords
 	 */
@@ -89,7 +115,7 @@ public class Configuration {
 	/**
 	 * Words we don't care for - might be language dependent
 	 */
-	private HashMap<String, List<String>> stopWordList;
+	private HashMap<String, StopWordSet> stopWordList;
 
 	/**
 	 * Configuration object
@@ -137,12 +163,51 @@ public class Configuration {
 		return mailFileName;
 	}
 
+	public int getMaxTextLength() {
+		return maxTextLength;
+	}
+
+	public int getSweepHours() {
+		return sweepHours;
+	}
+
+	/**
+	 * @return the journal of what was learned since the model file was saved
+	 */
+	public String getSmartfileJournalFile() {
+		return smartfilePersistenceFile + ".jnl";
+	}
+
+	/**
+	 * @return which documents were in which folder at the end of the last
+	 *         cycle
+	 */
+	public String getSmartfileMembershipFile() {
+		return smartfilePersistenceFile + ".fm";
+	}
+
+	/**
+	 * @return until when modified documents have been checked for changes
+	 */
+	public String getSmartfileCheckedUntilFile() {
+		return smartfilePersistenceFile + ".cu";
+	}
+
+	/**
+	 * @return where we keep track of the folders and suggestions of each
+	 *         document
+	 */
+	public String getSmartfileStateFile() {
+		return smartfilePersistenceFile + ".st";
+	}
+
 	public String getSmartfilePersistenceFile() {
 		return smartfilePersistenceFile;
 	}
 
 	public List<String> getStopWordList(String language) {
-		return stopWordList.get(language);
+		StopWordSet stopWords = stopWordList.get(language);
+		return (stopWords == null) ? null : stopWords.toList();
 	}
 
 	/**
@@ -180,6 +245,23 @@ public class Configuration {
 		return this.isStopWord(theWord, this.defaultLanguage);
 	}
 
+	/**
+	 * Returns if a word given as characters in a buffer is in the stopword
+	 * list in the given language
+	 * 
+	 * @param buf
+	 * @param off
+	 *            start of the word in buf
+	 * @param len
+	 *            length of the word
+	 * @param language
+	 * @return
+	 */
+	public boolean isStopWord(char[] buf, int off, int len, String language) {
+		StopWordSet stopWords = this.getStopWords(language);
+		return stopWords != null && stopWords.contains(buf, off, len);
+	}
+
 	/**
 	 * Returns if a word is in the stopword list in the given language
 	 * 
@@ -188,13 +270,13 @@ public class Configuration {
 	 * @return
 	 */
 	public boolean isStopWord(String theWord, String language) {
-		if (language == null) {
-			language = this.defaultLanguage;
-		}
-		if (!this.stopWordList.containsKey(language)) {
-			return false;
-		}
-		return this.stopWordList.get(language).contains(theWord);
+		StopWordSet stopWords = this.getStopWords(language);
+		return stopWords != null && stopWords.contains(theWord);
+	}
+
+	private StopWordSet getStopWords(String language) {
+		return this.stopWordList.get((language == null) ? this.defaultLanguage
+				: language);
 	}
 
 	public String getDefaultLanguage() {
@@ -223,6 +305,22 @@ public class Configuration {
 				"false").equals("true");
 		this.ignoreHiddenFolders = properties.getProperty(
 				"ignoreHiddenFolders", "true").equals("true");
+		try {
+			this.maxTextLength = Integer.parseInt(properties.getProperty(
+					"maxTextLength",
+					String.valueOf(Configuration.DEFAULT_MAX_TEXT_LENGTH)));
+		} catch (NumberFormatException e) {
+			Utils.debugLog("Invalid maxTextLength, using the default", e);
+			this.maxTextLength = Configuration.DEFAULT_MAX_TEXT_LENGTH;
+		}
+		try {
+			this.sweepHours = Integer.parseInt(properties.getProperty(
+					"sweepHours",
+					String.valueOf(Configuration.DEFAULT_SWEEP_HOURS)));
+		} catch (NumberFormatException e) {
+			Utils.debugLog("Invalid sweepHours, using the default", e);
+			this.sweepHours = Configuration.DEFAULT_SWEEP_HOURS;
+		}
 
 		// Exception handling
 		if (this.smartfilePersistenceFile == null) {
@@ -256,32 +354,14 @@ public class Configuration {
 
 	private void loadStopWordList() {
 		if (this.stopWordList == null) {
-			this.stopWordList = new HashMap<String, List<String>>();
+			this.stopWordList = new HashMap<String, StopWordSet>();
 		}
 
-		// Read one stopword list per language
+		// One stopword list per language, loaded once and shared
 		for (String curLanguage : this.languages) {
-			InputStream in = this.getClass().getResourceAsStream(
-					"stopwords_en." + curLanguage);
-			if (in != null) {
-				Scanner s = new Scanner(in);
-				ArrayList<String> newStopWords = new ArrayList<String>();
-				while (s.hasNextLine()) {
-					String curLine = s.nextLine().trim();
-					// Comment lines begin with #
-					if (!curLine.startsWith("#")) {
-						// Inline comments begin with # after the word
-						if (curLine.indexOf("#") > 0) {
-							curLine = curLine.substring(0,
-									(curLine.indexOf("#") - 1)).trim();
-						}
-						// make sure we don't have empty lines as stopwords
-						if (!curLine.equals("")) {
-							newStopWords.add(curLine);
-						}
-					}
-				}
-				this.stopWordList.put(curLanguage, newStopWords);
+			StopWordSet stopWords = StopWordSet.forLanguage(curLanguage);
+			if (stopWords != null) {
+				this.stopWordList.put(curLanguage, stopWords);
 			}
 		}
 	}
@@ -304,6 +384,9 @@ public class Configuration {
 				(this.persistInMailFile ? "true" : "false"));
 		properties.setProperty("ignoreHiddenFolders",
 				(this.ignoreHiddenFolders ? "true" : "false"));
+		properties.setProperty("maxTextLength",
+				String.valueOf(this.maxTextLength));
+		properties.setProperty("sweepHours", String.valueOf(this.sweepHours));
 
 		properties.store(out, "SmartFile Configuration");
 	}
@@ -328,6 +411,14 @@ public class Configuration {
 		this.mailFileName = mailFileName;
 	}
 
+	public void setMaxTextLength(int maxTextLength) {
+		this.maxTextLength = maxTextLength;
+	}
+
+	public void setSweepHours(int sweepHours) {
+		this.sweepHours = sweepHours;
+	}
+
 	public void setPersistInMailFile(boolean persistInMailFile) {
 		this.persistInMailFile = persistInMailFile;
 	}
@@ -337,7 +428,7 @@ public class Configuration {
 	}
 
 	public void setStopWordList(String language, List<String> stopWordList) {
-		this.stopWordList.put(language, stopWordList);
+		this.stopWordList.put(language, StopWordSet.of(stopWordList));
 	}
 
 }
@@ -21,16 +21,16 @@
  * ========================================================================== */
 package com.ibm.notes.smartfile.core;
 
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.Vector;
 
 import lotus.domino.Database;
@@ -46,25 +46,48 @@ import lotus.domino.View;
  */
 public class Engine {
 
+	/**
+	 * The journal gets folded into the model file when it is bigger than
+	 * this or a quarter of the model file, whichever is bigger
+	 */
+	private static final long MIN_COMPACTION_SIZE = 256 * 1024;
+
 	// The number of folders in the database
 	private ArrayList<String> folderList = new ArrayList<String>();
 
-	// A two dimensional HashMap where word -> (folder name -> tf)
-	// "tf" = term frequency = word count
-	private HashMap<String, HashMap<String, Double>> wordCounts = new HashMap<String, HashMap<String, Double>>();
+	// All folders of the mail file, kept between the cycles
+	private final FolderCatalog folderCatalog = new FolderCatalog();
 
-	// A one dimensional HashMap where word -> idf
-	// "idf" = inverse document frequency = log(total_number_of folders /
-	// number_of_folders_that_contain_this_word)
-	private HashMap<String, Double> wordIDFs = new HashMap<String, Double>();
+	// The vector space model: word counts per folder plus the idf, tf * idf
+	// and folder vector lengths derived from them
+	private VectorModel model = new VectorModel();
 
-	// A two dimensional HashMap where word -> (folder name -> tf * idf)
-	private HashMap<String, HashMap<String, Double>> wordTFIDFs = new HashMap<String, HashMap<String, Double>>();
+	// A snapshot of the model taken after refeshWords(), suggestions are made
+	// from it. It never changes, so any thread can score against it without
+	// a lock while learning goes on in this.model
+	private volatile VectorModel publishedModel = null;
+
+	// Scores documents against the model, one per thread as it keeps its
+	// buffers between documents
+	private final ThreadLocal<FolderScorer> scorers = new ThreadLocal<FolderScorer>() {
+		@Override
+		protected FolderScorer initialValue() {
+			return new FolderScorer();
+		}
+	};
 
-	// A one dimensional HashMap where folder name -> vector length
-	// "vector length" = sqrt( tf*idf[1]^2 + tf*idf[2]^2 + ... + tf*idf[n]^2 )
-	// for each folder ("^2" means "squared")
-	private HashMap<String, Double> wordVectorLengths = new HashMap<String, Double>();
+	// Counts the words of a document, keeps its buffers between documents
+	private WordExtractor extractor;
+
+	// What learning changed since the model file was saved
+	private LearningJournal journal = null;
+
+	// Counts the words of the documents learn() picked and moves them in the
+	// model, open while a cycle learns
+	private WordPipeline<FolderMove> learning = null;
+
+	// The folders and suggestions of each document, opened on first use
+	private StateStore stateStore = null;
 
 	/**
 	 * The settings from the preferences
@@ -82,231 +105,194 @@ public class Engine {
 	 */
 	public Engine(Configuration config) {
 		this.config = config;
-	}
-
-	private void addHashMapValues(HashMap<String, Double> result,
-			HashMap<String, Double> newVals) {
-
-		for (Map.Entry<String, Double> newEntry : newVals.entrySet()) {
-			String curKey = newEntry.getKey();
-			Double curVal = newEntry.getValue();
-			if (result.containsKey(curKey)) {
-				Double oldVal = result.get(curKey);
-				Double newVal = new Double(curVal.doubleValue()
-						+ oldVal.doubleValue());
-				result.put(curKey, newVal);
-			} else {
-				result.put(curKey, curVal);
-			}
-		}
+		this.extractor = new WordExtractor(config);
 	}
 
 	/*************************************************************************************************
-	 * c a l c u l a t e I D F s
+	 * c o u n t W o r d s
 	 **************************************************************************************************/
+	// Count all the words in each of the folders we care about and return those
+	// the folders are provided as a List, so selection of folders needs to
+	// happen outside this function!
+	// counts in a VectorModel
+	// where word -> (folder -> tf)
+	// tf = term frequesncy = word count
+	public VectorModel countWords(List<View> views) {
 
-	// Do the term weighting calculations for each word and return them as a one
-	// dimensional HashMap
-	private HashMap<String, Double> calculateIDFs(
-			HashMap<String, HashMap<String, Double>> wordCounts) {
-		HashMap<String, Double> idfmap = new HashMap<String, Double>();
-
-		for (Map.Entry<String, HashMap<String, Double>> me : wordCounts
-				.entrySet()) {
-			String curKey = me.getKey();
-			HashMap<String, Double> tmpmap = me.getValue();
-
-			// Get the number of folders that contain this word
-			int df = tmpmap.size();
-
-			// TODO: how does the folderlist get populated?
-			// Calculate the IDF (inverse document frequency) for this word
-			double idf = Math
-					.log((double) this.folderList.size() / (double) df);
-
-			// Store it in the HashMap
-			idfmap.put(curKey, new Double(idf));
+		final VectorModel totalCounts = new VectorModel();
 
+		// All folders go in first, once documents are submitted the model
+		// belongs to the aggregator thread of the pipeline
+		int[] folderIds = new int[views.size()];
+		for (int i = 0; i < views.size(); i++) {
+			try {
+				folderIds[i] = totalCounts.addFolder(views.get(i).getName());
+			} catch (NotesException e) {
+				Utils.debugLog(e.id + " " + e.text, e);
+				folderIds[i] = -1;
+			}
 		}
 
-		return idfmap;
-	}
-
-	/*************************************************************************************************
-	 * c a l c u l a t e T F I D F s
-	 **************************************************************************************************/
-
-	// For each word, in each folder, calculate tf*idf and return a two
-	// dimensional HashMap
-	// where word -> (folder -> tf*idf)
-	private HashMap<String, HashMap<String, Double>> calculateTFIDFs(
-			HashMap<String, HashMap<String, Double>> wordCounts,
-			HashMap<String, Double> wordIDFs) {
-		HashMap<String, HashMap<String, Double>> tfidfmap = new HashMap<String, HashMap<String, Double>>();
+		// Documents are read on this thread and counted in the pipeline
+		WordPipeline<Integer> pipeline = new WordPipeline<Integer>(
+				this.config, WordPipeline.defaultWorkerCount(),
+				new WordPipeline.Sink<Integer>() {
+					public void add(TermCounter tf, Integer folderId) {
+						totalCounts.addDocument(tf, folderId.intValue());
+					}
+				});
 
-		for (Map.Entry<String, HashMap<String, Double>> me : wordCounts
-				.entrySet()) {
-			// Map Entries
-			String curKey = me.getKey();
-			HashMap<String, Double> tmpmap = me.getValue();
-			// X-REF
-			Double idf = wordIDFs.get(curKey);
-			HashMap<String, Double> newmap = new HashMap<String, Double>();
-			for (Map.Entry<String, Double> me2 : tmpmap.entrySet()) {
-				String key2 = me2.getKey();
-				Double count = me2.getValue();
-				double tfidf = count.doubleValue() * idf.doubleValue();
-				newmap.put(key2, new Double(tfidf));
+		try {
+			try {
+				for (int i = 0; i < views.size(); i++) {
+					if (folderIds[i] >= 0) {
+						this.submitFolder(views.get(i), folderIds[i],
+								pipeline);
+					}
+				}
+			} finally {
+				// Wait for the last counts, the threads end either way
+				pipeline.finish();
 			}
-			tfidfmap.put(curKey, newmap);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Utils.debugLog("Interrupted while counting words", e);
 		}
-		return tfidfmap;
-	}
 
-	/*************************************************************************************************
-	 * c a l c u l a t e V e c t o r L e n g t h s
-	 **************************************************************************************************/
+		// Rows don't grow any further until the next learning cycle
+		totalCounts.trimToSize();
 
-	// Calculate the vector length for each folder
-	private HashMap<String, Double> calculateVectorLengths(
-			HashMap<String, HashMap<String, Double>> wordTFIDFs) {
+		return totalCounts;
+	}
 
-		HashMap<String, Double> vectorLengths = new HashMap<String, Double>();
+	/**
+	 * Counts the words in all folders on several Notes threads, see
+	 * {@link ParallelCounter}
+	 * 
+	 * @return the counts or null if that didn't work out, the caller counts
+	 *         on its own then
+	 */
+	private VectorModel countWordsInParallel(List<View> views, Database db) {
+		int workerCount = ParallelCounter.defaultWorkerCount();
+		if (workerCount < 2) {
+			return null;
+		}
+		try {
+			ParallelCounter counter = new ParallelCounter(this.config, db,
+					views, workerCount);
+			Utils.debugLog("\tCounting words in " + views.size()
+					+ " folders on " + workerCount + " threads");
+			counter.start();
+			return counter.getResult();
+		} catch (NotesException e) {
+			Utils.debugLog(
+					"Counting words on several threads failed, counting on one",
+					e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Utils.debugLog("Interrupted while counting words on several threads");
+		}
+		return null;
+	}
 
-		for (Map.Entry<String, HashMap<String, Double>> me : wordTFIDFs
+	/**
+	 * Turns the word -> (folder name -> tf) HashMap of a model file written
+	 * before we had the VectorModel into a VectorModel
+	 * 
+	 * @param wordCounts
+	 *            the old word counts
+	 * @return the model with the counts, idf etc. still need to be calculated
+	 */
+	private VectorModel convertWordCounts(
+			HashMap<String, HashMap<String, Double>> wordCounts) {
+		VectorModel converted = new VectorModel();
+		for (Map.Entry<String, HashMap<String, Double>> me : wordCounts
 				.entrySet()) {
-			HashMap<String, Double> tmpmap = me.getValue();
-
-			for (Map.Entry<String, Double> me2 : tmpmap.entrySet()) {
-				String key2 = me2.getKey();
-				double tfidf = me2.getValue().doubleValue();
-				if (vectorLengths.containsKey(key2)) {
-					double accum = vectorLengths.get(key2).doubleValue();
-					accum += (tfidf * tfidf);
-					vectorLengths.put(key2, new Double(accum));
-				} else {
-					vectorLengths.put(key2, new Double(tfidf * tfidf));
-				}
+			int termId = converted.addTerm(me.getKey());
+			for (Map.Entry<String, Double> me2 : me.getValue().entrySet()) {
+				converted.addCount(termId, converted.addFolder(me2.getKey()),
+						me2.getValue().intValue());
 			}
 		}
-
-		// Calculate the square root of the sum of the squares for each folder,
-		// this is the vector length for the folder.
-		HashMap<String, Double> newmap = new HashMap<String, Double>();
-		for (Map.Entry<String, Double> me : vectorLengths.entrySet()) {
-			String curKey = me.getKey();
-			double curVal = me.getValue().doubleValue();
-			newmap.put(curKey, new Double(Math.sqrt(curVal)));
-		}
-
-		return newmap;
+		converted.trimToSize();
+		return converted;
 	}
 
-	/*************************************************************************************************
-	 * c o u n t W o r d s
-	 **************************************************************************************************/
-	// Count all the words in each of the folders we care about and return those
-	// the folders are provided as a List, so selection of folders needs to
-	// happen outside this function!
-	// counts in a two dimensional HashMap
-	// where word -> (folder name -> tf)
-	// tf = term frequesncy = word count
-	public HashMap<String, HashMap<String, Double>> countWords(List<View> views) {
-
-		HashMap<String, HashMap<String, Double>> totalCounts = new HashMap<String, HashMap<String, Double>>();
-
-		Document doc = null;
-		Document nextDoc = null;
-
-		for (View v : views) {
+	/**
+	 * Waits until the moves of all documents learn() picked are in the
+	 * model, call it before the model is used again
+	 */
+	public void finishLearning() {
+		if (this.learning != null) {
 			try {
-
-				HashMap<String, Double> folderCount = new HashMap<String, Double>();
-
-				// We need the docs, so we can skip the viewentrycollection
-				doc = v.getFirstDocument();
-
-				while (doc != null) {
-					nextDoc = v.getNextDocument(doc);
-
-					HashMap<String, Double> docCount = this
-							.extractWordsFromDocument(doc);
-					this.addHashMapValues(folderCount, docCount);
-
-					doc.recycle();
-					doc = nextDoc;
-				}
-
-				for (Map.Entry<String, Double> folderEntry : folderCount
-						.entrySet()) {
-					String curKey = folderEntry.getKey();
-					HashMap<String, Double> curMap = null;
-
-					if (totalCounts.containsKey(curKey)) {
-						curMap = totalCounts.get(curKey);
-					} else {
-						curMap = new HashMap<String, Double>();
-					}
-					// Capture that this folder contains this word
-					curMap.put(v.getName(), folderEntry.getValue());
-					totalCounts.put(curKey, curMap);
-				}
-
-			} catch (NotesException e) {
+				this.learning.finish();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				Utils.debugLog("Interrupted while learning", e);
+			} catch (RuntimeException e) {
 				e.printStackTrace();
-				Utils.debugLog(e.id + " " + e.text, e);
+				Utils.debugLog("Java Exception in learn:", e);
+			} finally {
+				this.learning = null;
 			}
-
 		}
-
-		return totalCounts;
 	}
 
-	private HashMap<String, Double> extractWordsFromDocument(Document doc) {
-		// Count the words in this document,
-		// adding those to the wordCounts HashMap
-		HashMap<String, Double> tf = new HashMap<String, Double>();
-
-		String language = this.getLanguageFromDocument(doc);
-
-		Scanner s = getScannerFromDocument(doc);
-
-		while (s.hasNext()) {
-			String w = s.next().toLowerCase();
-			w = w.replaceAll("\\W*$", ""); // remove trailing non-word
-			// characters
-			w = w.replaceAll("^\\W*", ""); // remove leading non-word
-			// characters
-			w = w.trim(); // remove leading and trailing whitespace
-			if ((w.length() > 1) && (!config.isStopWord(w, language))) {
-				if (tf.containsKey(w)) {
-					Double ctr = tf.get(w);
-					ctr = new Double(ctr.doubleValue() + 1);
-					tf.put(w, ctr);
-				} else {
-					tf.put(w, new Double(1));
-				}
-			}
-		}
+	public ArrayList<String> getFolderList() {
+		return folderList;
+	}
 
-		return tf;
+	/**
+	 * Takes the folders found in the database after some were added, removed
+	 * or renamed, so the next save writes the current folder table
+	 */
+	public void setFolderList(ArrayList<String> folderList) {
+		this.folderList = folderList;
 	}
 
 	/**
-	 * Determines the language of a document to pick the right Stopword list for
-	 * processing
-	 * 
-	 * @param doc
-	 * @return
+	 * @return the learning pipeline of this cycle, started on first use
 	 */
-	private String getLanguageFromDocument(Document doc) {
-		// TODO check with development how to figure the language
-		// for now just support the default language
-		return config.getDefaultLanguage();
+	private WordPipeline<FolderMove> getLearning() {
+		if (this.learning == null) {
+			this.learning = new WordPipeline<FolderMove>(this.config,
+					WordPipeline.defaultWorkerCount(),
+					new WordPipeline.Sink<FolderMove>() {
+						public void add(TermCounter tf, FolderMove move) {
+							Engine.this.moveDocument(tf, move);
+						}
+					});
+		}
+		return this.learning;
 	}
 
-	public ArrayList<String> getFolderList() {
-		return folderList;
+	private LearningJournal getJournal() {
+		if (this.journal == null) {
+			this.journal = new LearningJournal(new File(
+					this.config.getSmartfileJournalFile()));
+		}
+		return this.journal;
+	}
+
+	/**
+	 * @return the state of the documents, opened or created on first use
+	 * @throws IOException
+	 *             when not even a new state file can be created
+	 */
+	public StateStore getStateStore() throws IOException {
+		if (this.stateStore == null) {
+			File file = new File(this.config.getSmartfileStateFile());
+			try {
+				this.stateStore = StateStore.open(file);
+			} catch (IOException e) {
+				// The documents look new then, nothing to learn from them
+				// until they move again
+				Utils.debugLog("Could not read the document state, starting over",
+						e);
+				this.stateStore = StateStore.create(file);
+			}
+		}
+		return this.stateStore;
 	}
 
 	public List<View> getFoldersFromDB(Database db, List<String> folderNames) {
@@ -314,18 +300,21 @@ public class Engine {
 		List<View> result = null;
 
 		try {
-			@SuppressWarnings("rawtypes")
-			Vector allViews = db.getViews();
-			result = new ArrayList<View>(allViews.size());
-
-			for (Object x : allViews) {
-				View v = (View) x;
-				if (this.config.isExcludedFolder(v.getName())) {
-					Utils.shred(v);
-				} else {
+			// The names come from the folder design notes, only the folders
+			// we use get opened
+			this.folderCatalog.refresh(db);
+			Map<String, String> allFolders = this.folderCatalog.getFolders();
+			result = new ArrayList<View>(allFolders.size());
+
+			for (String vName : allFolders.keySet()) {
+				if (this.config.isExcludedFolder(vName)) {
+					continue;
+				}
+				View v = db.getView(vName);
+				if (v != null) {
 					result.add(v);
 					if (folderNames != null) {
-						folderNames.add(v.getName());
+						folderNames.add(vName);
 					}
 				}
 			}
@@ -340,42 +329,6 @@ public class Engine {
 		return "SFLabel" + String.valueOf(base + 1);
 	}
 
-	private Scanner getScannerFromDocument(Document doc) {
-		StringBuilder builder = new StringBuilder();
-
-		// First all fields that can't have spaces like From, To etc
-		for (String curFieldNoSpaces : config.getFieldsToProcessNoSpaces()) {
-			try {
-				if (doc.hasItem(curFieldNoSpaces)) {
-					@SuppressWarnings("rawtypes")
-					Vector values = doc.getItemValue(curFieldNoSpaces);
-					for (int i = 0; i < values.size(); i++) {
-						builder.append(values.elementAt(i).toString()
-								.replace(" ", "_"));
-						builder.append(" ");
-					}
-				}
-			} catch (NotesException e) {
-				// We don't care if that doesn't work for on element
-			}
-		}
-
-		// Now the as-is fields
-		for (String curFieldNoSpaces : config.getFieldsToProcess()) {
-			try {
-				if (doc.hasItem(curFieldNoSpaces)) {
-					builder.append(doc.getItemValueString(curFieldNoSpaces));
-					builder.append(" ");
-				}
-			} catch (NotesException e) {
-				// We don't care if that doesn't work for on element
-			}
-		}
-
-		Scanner s = new Scanner(builder.toString());
-		return s;
-	}
-
 	/*************************************************************************************************
 	 * l e a r n
 	 ************************************************************************************************** 
@@ -384,102 +337,45 @@ public class Engine {
 	 * 
 	 */
 
-	public boolean learn(Document doc) {
+	public boolean learn(Document doc, List<String> seenFolders,
+			List<String> refs, boolean processed) {
 
 		boolean learned = false;
 
 		try {
 
-			HashMap<String, Double> tf = extractWordsFromDocument(doc);
-
-			@SuppressWarnings("rawtypes")
-			Vector refs = doc.getFolderReferences();
-			@SuppressWarnings("rawtypes")
-			Vector myFlag = doc.getItemValue("SmartFile");
-
 			// If this document has been processed before but it isn't were we
 			// think it should be
-			if ((doc.getItemValueString("SFLabels").length() == 0)
-					&& (!myFlag.equals(refs))) {
-				// Subtract this document's word counts from the wordCount
-				// HashMap for the "SFLabels" folders
-				for (int i = 0; i < myFlag.size(); i++) {
-					String folder = (String) myFlag.elementAt(i);
+			List<String> fromFolders = new ArrayList<String>();
+			List<String> toFolders = new ArrayList<String>();
+			if (!processed && !seenFolders.equals(refs)) {
+				// Subtract this document's word counts from the model for the
+				// folders it was in
+				for (String folder : seenFolders) {
 					if (!config.isExcludedFolder(folder)) {
 						learned = true;
-
-						for (Map.Entry<String, Double> me : tf.entrySet()) {
-							String curWord = me.getKey();
-							Double value = me.getValue();
-							HashMap<String, Double> tmpmap = null;
-
-							if (this.wordCounts.containsKey(curWord)) {
-								tmpmap = this.wordCounts.get(curWord);
-							} else {
-								tmpmap = new HashMap<String, Double>();
-							}
-							// If that HashMap has an entry for this folder
-							if (tmpmap.containsKey(folder)) {
-								// Subtract the word's count from it
-								Double accum = tmpmap.get(folder);
-								accum = new Double(accum.doubleValue()
-										- value.doubleValue());
-								// If that leaves anything
-								if (accum.doubleValue() > 0) {
-									// Put the new count into the map
-									tmpmap.put(folder, accum);
-								} else {
-									// Otherwise remove the entry for this
-									// folder from the map
-									tmpmap.remove(folder);
-								}
-							}
-
-							// If the entire contents of the folder map have
-							// been deleted
-							if (tmpmap.isEmpty()) {
-								// Remove this word from wordCounts
-								this.wordCounts.remove(curWord);
-							} else {
-								// Otherwise, store the updated map
-								this.wordCounts.put(curWord, tmpmap);
-							}
-						}
+						fromFolders.add(folder);
 					}
 				}
 			}
 
-			// Add the counts for this document to the wordCounts HashMap for
-			// the "refs" folders
-			for (int i = 0; i < refs.size(); i++) {
-				String folder = (String) refs.elementAt(i);
+			// Add the counts for this document to the model for the "refs"
+			// folders
+			for (String folder : refs) {
 				if (!config.isExcludedFolder(folder)) {
 					learned = true;
-
-					for (Map.Entry<String, Double> me : tf.entrySet()) {
-						String curWord = me.getKey();
-						Double curValue = me.getValue();
-						HashMap<String, Double> tmpmap = null;
-
-						if (this.wordCounts.containsKey(curWord)) {
-							tmpmap = this.wordCounts.get(curWord);
-						} else {
-							tmpmap = new HashMap<String, Double>();
-						}
-						double accum = curValue.doubleValue();
-						if (tmpmap.containsKey(folder)) {
-							accum += tmpmap.get(folder).doubleValue();
-						}
-						tmpmap.put(folder, new Double(accum));
-						this.wordCounts.put(curWord, tmpmap);
-					}
+					toFolders.add(folder);
 				}
 			}
 
-		} catch (NotesException e) {
-			System.out.println("NotesException: " + e.id + " " + e.text);
-			e.printStackTrace();
-			Utils.debugLog(e.id + " " + e.text, e);
+			if (learned) {
+				// The words get counted and moved in the model by the
+				// learning pipeline while we look at the next document,
+				// call finishLearning before using the model
+				this.getLearning().submit(doc,
+						new FolderMove(fromFolders, toFolders));
+			}
+
 		} catch (Exception e) {
 			e.printStackTrace();
 			Utils.debugLog("Java Exception in learn:", e);
@@ -489,19 +385,109 @@ public class Engine {
 
 	}
 
+	/**
+	 * Reads the model from a stream in the ModelFile format or, for files
+	 * written by older versions, in the ObjectOutputStream format
+	 * 
+	 * @param in
+	 * @return true if the stream was in the old format and should be saved
+	 *         again
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
 	@SuppressWarnings("unchecked")
-	public void load(InputStream in) throws IOException, ClassNotFoundException {
-		// Read the vector model, and other values, from a file
+	public boolean load(InputStream in) throws IOException,
+			ClassNotFoundException {
+		if (!in.markSupported()) {
+			in = new BufferedInputStream(in);
+		}
+
+		if (ModelFile.isModelFile(in)) {
+			// Read the vector model, and other values, from a file
+			ArrayList<String> folderTable = new ArrayList<String>();
+			this.model = ModelFile.read(in, folderTable);
+			this.folderList = folderTable;
+			// Add what was learned since the model file was saved
+			int replayed = this.getJournal().replay(
+					ModelFile.readChecksum(new File(this.config
+							.getSmartfilePersistenceFile())), this.model);
+			if (replayed > 0) {
+				Utils.debugLog("\tReplayed " + replayed
+						+ " learned documents from the journal");
+			}
+			// Only the counts are stored
+			this.refeshWords();
+			return false;
+		}
+
+		// A model file from before the ModelFile format: the folder list and
+		// word -> (folder name -> tf) serialized with ObjectOutputStream. We
+		// take the counts and derive everything else
 		ObjectInputStream ois = new ObjectInputStream(in);
 		this.folderList = (ArrayList<String>) ois.readObject();
-		this.wordCounts = (HashMap<String, HashMap<String, Double>>) ois
-				.readObject();
-		this.wordIDFs = (HashMap<String, Double>) ois.readObject();
-		this.wordTFIDFs = (HashMap<String, HashMap<String, Double>>) ois
-				.readObject();
-		this.wordVectorLengths = (HashMap<String, Double>) ois.readObject();
+		this.model = this
+				.convertWordCounts((HashMap<String, HashMap<String, Double>>) ois
+						.readObject());
 		ois.close();
+		this.refeshWords();
+		return true;
+
+	}
+
+	/**
+	 * Finds what we know about a document. Documents of older versions only
+	 * have the SmartFile and SFLabels items, we take those over into the
+	 * state store the first time we come across them
+	 * 
+	 * @param doc
+	 * @return the NoteID of the document in the state store
+	 * @throws NotesException
+	 * @throws IOException
+	 */
+	public int lookUpState(Document doc) throws NotesException, IOException {
+		int noteId = StateStore.noteId(doc.getNoteID());
+		StateStore store = this.getStateStore();
+		if (store.getFolders(noteId) == null && doc.hasItem("SmartFile")) {
+			store.put(noteId, toFolderNames(doc.getItemValue("SmartFile")),
+					doc.getItemValueString("SFLabels").length() != 0);
+		}
+		return noteId;
+	}
 
+	/**
+	 * Moves the counts of a document learn() picked in the model and notes
+	 * that in the journal. Runs on the aggregator thread of the learning
+	 * pipeline
+	 */
+	private void moveDocument(TermCounter tf, FolderMove move) {
+		this.model.moveDocument(tf, move.fromFolders, move.toFolders);
+		try {
+			// Until the journal is open the next save covers it
+			if (this.getJournal().isReady()) {
+				this.getJournal().append(tf, move.fromFolders,
+						move.toFolders);
+			}
+		} catch (IOException e) {
+			// The change is only in memory. The journal isn't ready any
+			// more, so needsCompaction() saves the model file this cycle
+			Utils.debugLog("Could not write the learning journal", e);
+		}
+	}
+
+	/**
+	 * learn() writes its changes to a journal, the model file only needs to
+	 * be saved when the journal got too big or couldn't be written
+	 * 
+	 * @return true if the model should be saved
+	 */
+	public boolean needsCompaction() {
+		if (!this.getJournal().isReady()) {
+			return true;
+		}
+		long modelSize = new File(this.config.getSmartfilePersistenceFile())
+				.length();
+		return this.getJournal().length() > Math.max(MIN_COMPACTION_SIZE,
+				modelSize / 4);
 	}
 
 	/*************************************************************************************************
@@ -510,126 +496,74 @@ public class Engine {
 
 	// Analyze a document and set the three SwiftFile fields to the folders that
 	// most closely match
-	public void processDocument(Document doc, HashMap<String, Double> wordIDFs,
-			HashMap<String, HashMap<String, Double>> wordTFIDFs,
-			HashMap<String, Double> wordVectorLengths) {
-		try {
-			// Parse out the individual words and accumulate their counts (tf)
-			// in a HashMap
-			HashMap<String, Double> tf = this.extractWordsFromDocument(doc);
-
-			// Calculate tf * idf for each word in the document and save those
-			// in a HashMap
-			// Also sum their squares and calculate the vector length for the
-			// document
-			HashMap<String, Double> tfidfMap = new HashMap<String, Double>();
-			double accum = 0;
-
-			// For each word in the document ...
-			for (Map.Entry<String, Double> me : tf.entrySet()) {
-				String curWord = me.getKey();
-				Double curCount = me.getValue();
-
-				Double idf = null;
-				// Get the matching IDF from the wordIDFs HashMap ...
-				if (wordIDFs.containsKey(curWord)) {
-					idf = wordIDFs.get(curWord);
-				} else {
-					idf = new Double(0);
-				}
-				// Calculate tf * idf and save it in a HashMap for later ...
-				Double tfidf = new Double(curCount.doubleValue()
-						* idf.doubleValue());
-				tfidfMap.put(curWord, tfidf);
-
-				// Sum the square ...
-				accum += tfidf.doubleValue() * tfidf.doubleValue();
-			}
+	// Returns true if the batch took the document
+	public boolean processDocument(Document doc, String viewName,
+			SaveBatch batch) {
+		// Parse out the individual words and accumulate their counts (tf)
+		TermCounter tf = this.extractor.extract(doc);
+
+		// Score the document against all folders using the posting rows of its
+		// words. Find the top three. These will be the recommended folders.
+		return this.processDocument(doc, viewName, this.suggestFolders(tf),
+				batch);
+	}
 
-			double docVectorLength = Math.sqrt(accum);
-
-			// Calculate the dot products for each folder
-			HashMap<String, Double> dotProductsByFolder = new HashMap<String, Double>();
-
-			// For each word in the document ...
-			for (Map.Entry<String, Double> me : tfidfMap.entrySet()) {
-				String curKey = me.getKey();
-				Double docTFIDF = me.getValue();
-				// Get the matching folderName -> tf*idf HashMap from wordTFIDFs
-				if (wordTFIDFs.containsKey(curKey)) {
-					HashMap<String, Double> tmpmap = wordTFIDFs.get(curKey);
-					// For each Folder in that map ...
-					for (Map.Entry<String, Double> me2 : tmpmap.entrySet()) {
-						String key2 = me2.getKey();
-						Double folderTFIDF = me2.getValue();
-
-						if (dotProductsByFolder.containsKey(key2)) {
-							accum = dotProductsByFolder.get(key2).doubleValue();
-						} else {
-							accum = 0;
-						}
+	// Set the three SwiftFile fields of a document to the folders suggested
+	// for it. Items that already hold the same value are left alone and the
+	// document is only queued for saving if something changed
+	// Returns true if the batch took the document
+	public boolean processDocument(Document doc, String viewName,
+			List<String> suggestions, SaveBatch batch) {
+		boolean queued = false;
+		try {
+			int found = suggestions.size();
 
-						dotProductsByFolder.put(
-								key2,
-								new Double(accum
-										+ (folderTFIDF.doubleValue() * docTFIDF
-												.doubleValue())));
-					}
+			// Set the document's SwiftFile fields
+			Vector<String> sflabels = new Vector<String>();
+			boolean changed = false;
+
+			for (int i = 0; i < found; i++) {
+				String folder = suggestions.get(i);
+				sflabels.add(folder);
+				String label = this.getLabelWithOffset(i);
+				if (!folder.equals(doc.getItemValueString(label))) {
+					doc.replaceItemValue(label, folder);
+					changed = true;
 				}
 			}
 
-			// Calculate the similarity values for each folder. Find the top
-			// three. These will be the recommended folders.
-			double[] sim = { 0, 0, 0 };
-			String[] folder = { "", "", "" };
-
-			// For each folder
-			for (Map.Entry<String, Double> me : dotProductsByFolder.entrySet()) {
-				String curKey = me.getKey();
-				double dotProduct = me.getValue().doubleValue();
-				double folderVectorLenght = wordVectorLengths.get(curKey)
-						.doubleValue();
-				// This is the key!
-				double simValue = dotProduct / docVectorLength
-						* folderVectorLenght;
-				// Final comparison
-				if (simValue > sim[2]) {
-					sim[2] = simValue;
-					folder[2] = curKey;
-					if (simValue > sim[1]) {
-						sim[2] = sim[1];
-						folder[2] = folder[1];
-						sim[1] = simValue;
-						folder[1] = curKey;
-						if (simValue > sim[0]) {
-							sim[1] = sim[0];
-							folder[1] = folder[0];
-							sim[0] = simValue;
-							folder[0] = curKey;
-						}
-					}
-				}
+			if (sflabels.size() != 0
+					&& !sflabels.equals(doc.getItemValue("SFLabels"))) {
+				doc.replaceItemValue("SFLabels", sflabels);
+				changed = true;
 			}
 
-			// Set the document's SwiftFile fields
-			Vector<String> sflabels = new Vector<String>();
+			// Remember where the document is, so we recognize the move when
+			// the user files it
+			this.getStateStore().put(StateStore.noteId(doc.getNoteID()),
+					toFolderNames(doc.getFolderReferences()), found != 0);
 
-			for (int i = 0; i < 3; i++) {
-				if (folder[i] != null && folder[i].length() != 0) {
-					sflabels.add(folder[i]);
-					doc.replaceItemValue(this.getLabelWithOffset(i), folder[i]);
+			Utils.debugLog("\tSetting SwiftFile fields in " + viewName
+					+ " document: \"" + doc.getUniversalID() + " - "
+					+ doc.getItemValueString("Subject") + "\"");
+			if (found == 0) {
+				Utils.debugLog("\t\tNo recommended folders.  Index is empty?  Rebuild your index?");
+			} else {
+				Utils.debugLog("\t\tRecommending folders:");
+				for (int i = 0; i < found; i++) {
+					Utils.debugLog("\t\t\t" + (i + 1) + ": "
+							+ sflabels.get(i));
 				}
 			}
 
-			if (sflabels != null && sflabels.size() != 0) {
-				doc.replaceItemValue("SFLabels", sflabels);
+			// Only our suggestions are written to the document
+			if (changed) {
+				queued = true;
+				batch.add(doc);
+			} else {
+				batch.skip();
 			}
 
-			@SuppressWarnings("rawtypes")
-			Vector refs = doc.getFolderReferences();
-			doc.replaceItemValue("SmartFile", refs);
-			doc.save();
-
 		} catch (NotesException e) {
 			System.out.println("NotesException: " + e.id + " " + e.text);
 			e.printStackTrace();
@@ -638,6 +572,33 @@ public class Engine {
 			e.printStackTrace();
 			Utils.debugLog("Java Exception in processDocument:", e);
 		}
+		return queued;
+	}
+
+	/**
+	 * Scores the documents the classifier has read on all processors, then
+	 * writes the suggestions back on this thread. If scoring fails no
+	 * document is touched, they are tried again next time
+	 */
+	private void labelDocuments(BatchClassifier classifier, SaveBatch batch) {
+		boolean scored = false;
+		try {
+			classifier.classify(this.publishedModel);
+			scored = true;
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			Utils.debugLog("Java Exception in labelDocuments:", e);
+		}
+		for (int i = 0; i < classifier.size(); i++) {
+			Document doc = classifier.getDocument(i);
+			// A queued document is recycled by the batch
+			if (!scored
+					|| !this.processDocument(doc, classifier.getViewName(i),
+							classifier.getSuggestions(i), batch)) {
+				Utils.shred(doc);
+			}
+		}
+		classifier.clear();
 	}
 
 	public void rebuildModel(Database db) {
@@ -647,8 +608,12 @@ public class Engine {
 		// Rebuild the vector model
 		Utils.debugLog("\tRebuilding vector model from scratch");
 
-		// Count all the words in all the folders (tf)
-		this.wordCounts = this.countWords(views);
+		// Count all the words in all the folders (tf), on several threads if
+		// we can
+		this.model = this.countWordsInParallel(views, db);
+		if (this.model == null) {
+			this.model = this.countWords(views);
+		}
 
 		this.refeshWords();
 
@@ -659,25 +624,66 @@ public class Engine {
 	}
 
 	public void refeshWords() {
-		// Calculate the idf (inverse document frequency) for each word
-		this.wordIDFs = this.calculateIDFs(wordCounts);
-		// Calculate ( tf * idf ) for each word in each folder
-		this.wordTFIDFs = this.calculateTFIDFs(wordCounts, wordIDFs);
-		// Calculate vector length for each folder
-		this.wordVectorLengths = this.calculateVectorLengths(wordTFIDFs);
+		if (!this.model.needsFullCalculation(this.folderList.size())) {
+			// Only the words learn() touched since the last time
+			int updated = this.model.updateChangedTerms();
+			Utils.debugLog("\tUpdated " + updated + " changed words");
+			if (updated == 0 && this.publishedModel != null) {
+				// Nothing learned, the published snapshot is still current
+				return;
+			}
+		} else {
+			// Calculate the idf (inverse document frequency) for each word and
+			// the vector length for each folder, ( tf * idf ) for each word in
+			// each folder gets calculated on the fly. All processors share the
+			// words
+			this.model.calculateAll(this.folderList.size(), Runtime
+					.getRuntime().availableProcessors());
+		}
+
+		// Suggestions come from the new numbers from now on. The snapshot
+		// shares the blocks of words, learning copies a block before it
+		// changes it
+		this.publishedModel = this.model.snapshot();
+	}
+
+	/**
+	 * Finds the folders that match a document best. Reads the last published
+	 * model without a lock, so any thread can call this, also while learning
+	 * goes on
+	 * 
+	 * @param tf
+	 *            the word counts of the document
+	 * @return up to three folder names, best first, empty if there is no
+	 *         model yet
+	 */
+	public List<String> suggestFolders(TermCounter tf) {
+		List<String> result = new ArrayList<String>(FolderScorer.TOP_FOLDERS);
+		VectorModel scoringModel = this.publishedModel;
+		if (scoringModel == null) {
+			return result;
+		}
+		FolderScorer scorer = this.scorers.get();
+		int found = scorer.score(scoringModel, tf);
+		for (int i = 0; i < found; i++) {
+			result.add(scoringModel.getFolderName(scorer.getTopFolder(i)));
+		}
+		return result;
 	}
 
 	public void save(OutputStream out) throws IOException {
 
 		// Persist the vector model, and other values into wherever that stream
 		// goes
-		ObjectOutputStream oos = new ObjectOutputStream(out);
-		oos.writeObject(folderList);
-		oos.writeObject(wordCounts);
-		oos.writeObject(wordIDFs);
-		oos.writeObject(wordTFIDFs);
-		oos.writeObject(wordVectorLengths);
-		oos.close();
+		int checksum = ModelFile.write(out, this.folderList, this.model);
+
+		// The model file has everything now
+		try {
+			this.getJournal().reset(checksum);
+		} catch (IOException e) {
+			// Learning gets folded into the model file again next time
+			Utils.debugLog("Could not reset the learning journal", e);
+		}
 
 	}
 
@@ -685,51 +691,124 @@ public class Engine {
 	 * s e t S F L a b e l s
 	 **************************************************************************************************/
 
-	// Set the SFLables fields in all the documents in the specified view
-	// collection
-	public void setSFLabels(Database db, String viewName) {
+	// Set the SFLables fields in all the documents in the specified views
+	public void setSFLabels(Database db, List<String> viewNames) {
 		View v = null;
 		Document doc = null;
 		Document nextDoc = null;
+		SaveBatch batch = new SaveBatch();
+		BatchClassifier classifier = new BatchClassifier(this.config, Runtime
+				.getRuntime().availableProcessors());
+
+		for (String viewName : viewNames) {
+			try {
+
+				v = db.getView(viewName);
+				doc = v.getFirstDocument();
+
+				while (doc != null) {
+					nextDoc = v.getNextDocument(doc);
+
+					// Documents that have our suggestions already are done, the
+					// others wait in the classifier until it is full
+					int noteId = this.lookUpState(doc);
+					if (!this.getStateStore().isProcessed(noteId)) {
+						classifier.add(doc, viewName);
+						if (classifier.isFull()) {
+							this.labelDocuments(classifier, batch);
+						}
+					} else {
+						doc.recycle();
+					}
+					doc = nextDoc;
+				}
+
+			} catch (NotesException e) {
+				Utils.debugLog("Unexpected exception during setSFLabels processing");
+				Utils.debugLog(e.id + " " + e.text, e);
+
+			} catch (IOException e) {
+				Utils.debugLog(
+						"Unexpected exception during setSFLabels processing",
+						e);
+
+			} finally {
+				// The documents came from the view, label and save them before
+				// it goes
+				this.labelDocuments(classifier, batch);
+				try {
+					batch.flush();
+				} catch (NotesException e) {
+					Utils.debugLog(e.id + " " + e.text, e);
+				}
+				Utils.shred(v, doc, nextDoc);
+			}
+		}
+
+		if (batch.getSaved() + batch.getSkipped() > 0) {
+			Utils.debugLog("\tSaved " + batch.getSaved()
+					+ " documents with new suggestions, "
+					+ batch.getSkipped() + " saves avoided");
+		}
+	}
+
+	/**
+	 * Hands all documents of a folder to the pipeline
+	 */
+	private void submitFolder(View v, int folderId,
+			WordPipeline<Integer> pipeline) throws InterruptedException {
+		Document doc = null;
+		Document nextDoc = null;
+		Integer payload = Integer.valueOf(folderId);
 		try {
 
-			v = db.getView(viewName);
+			// We need the docs, so we can skip the viewentrycollection
 			doc = v.getFirstDocument();
 
 			while (doc != null) {
 				nextDoc = v.getNextDocument(doc);
 
-				if (!doc.hasItem("SFLabels")
-						|| doc.getItemValueString("SFLabels").equals("")) {
-					this.processDocument(doc, this.wordIDFs, this.wordTFIDFs,
-							this.wordVectorLengths);
-				}
-				Utils.debugLog("\tSetting SwiftFile fields in " + viewName
-						+ " document: \"" + doc.getUniversalID() + " - "
-						+ doc.getItemValueString("Subject") + "\"");
-				if (doc.getItemValueString("SFLabels").length() == 0) {
-					Utils.debugLog("\t\tNo recommended folders.  Index is empty?  Rebuild your index?");
-				} else {
-					Utils.debugLog("\t\tRecommending folders:");
-					Utils.debugLog("\t\t\t1: "
-							+ doc.getItemValueString("SFLabel1"));
-					Utils.debugLog("\t\t\t2: "
-							+ doc.getItemValueString("SFLabel2"));
-					Utils.debugLog("\t\t\t3: "
-							+ doc.getItemValueString("SFLabel3"));
-				}
+				pipeline.submit(doc, payload);
 
 				doc.recycle();
 				doc = nextDoc;
 			}
 
 		} catch (NotesException e) {
-			Utils.debugLog("Unexpected exception during setSFLabels processing");
+			e.printStackTrace();
 			Utils.debugLog(e.id + " " + e.text, e);
-
 		} finally {
-			Utils.shred(v, doc, nextDoc);
+			Utils.shred(doc, nextDoc);
 		}
 	}
 
+	/**
+	 * @param refs
+	 *            folder references or an item value
+	 * @return the folder names as strings
+	 */
+	public static List<String> toFolderNames(
+			@SuppressWarnings("rawtypes") Vector refs) {
+		List<String> result = new ArrayList<String>(refs.size());
+		for (Object ref : refs) {
+			result.add(String.valueOf(ref));
+		}
+		return result;
+	}
+
+	/**
+	 * The folders a document leaves and enters
+	 */
+	private static class FolderMove {
+
+		final List<String> fromFolders;
+		final List<String> toFolders;
+
+		FolderMove(List<String> fromFolders, List<String> toFolders) {
+			this.fromFolders = fromFolders;
+			this.toFolders = toFolders;
+		}
+
+	}
+
 }
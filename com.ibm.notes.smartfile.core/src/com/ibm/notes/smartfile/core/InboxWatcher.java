@@ -0,0 +1,79 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile.core;
+
+import lotus.domino.NotesException;
+import lotus.domino.View;
+import lotus.domino.ViewEntry;
+import lotus.domino.ViewNavigator;
+
+/**
+ * Notices new mail by looking at the number of entries and the last entry of
+ * the Inbox. That only reads the view index, no document is opened. New
+ * mail is added at the end of the Inbox, anything filed or deleted changes
+ * the count
+ * 
+ * @author stw
+ * 
+ */
+public class InboxWatcher {
+
+	// What the Inbox looked like last time, -1 = not looked yet
+	private int lastCount = -1;
+	private String lastNoteId = null;
+
+	/**
+	 * Compares the Inbox with the last look. The first look only takes note
+	 * of the Inbox, the caller processes everything at the start anyway
+	 * 
+	 * @param inbox
+	 *            the ($Inbox) folder
+	 * @return true if entries were added or removed since the last call
+	 * @throws NotesException
+	 */
+	public boolean hasChanged(View inbox) throws NotesException {
+		ViewNavigator nav = null;
+		ViewEntry last = null;
+		try {
+			// A view we hold on to doesn't see new entries by itself
+			inbox.refresh();
+			nav = inbox.createViewNav();
+			int count = nav.getCount();
+			last = nav.getLastDocument();
+			String noteId = (last == null) ? null : last.getNoteID();
+
+			boolean changed = this.lastCount >= 0
+					&& (count != this.lastCount || !equal(noteId,
+							this.lastNoteId));
+			this.lastCount = count;
+			this.lastNoteId = noteId;
+			return changed;
+		} finally {
+			Utils.shred(last, nav);
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+
+}
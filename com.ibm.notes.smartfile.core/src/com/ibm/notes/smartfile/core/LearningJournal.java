@@ -0,0 +1,543 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write ahead journal of what learning did to the model since it was saved
+ * last, so a learning cycle only appends a few KB instead of writing the
+ * whole model file. Every learned record holds the word counts of one
+ * document, the folders they were taken out of and the folders they were
+ * added to. The journal starts with the checksum of the model file it
+ * continues.
+ * <p>
+ * The model file is saved from a snapshot while learning goes on, so a save
+ * appends a checkpoint record first: it holds the checksum of the new model
+ * file and the journal position the snapshot was taken at. Once the new
+ * model file is in place the journal is compacted to the records after that
+ * position. If the client dies in between, replay finds the checkpoint and
+ * starts there. A journal that matches neither the header nor a checkpoint
+ * belongs to an older model file and is discarded.
+ * 
+ * <pre>
+ * header:     "SFJL" version checksum
+ * record:     length CRC32 payload
+ * learned:    0, fromCount, folders, toCount, folders, wordCount, (word, tf)
+ * checkpoint: 1, checksum, position
+ * </pre>
+ * 
+ * Folders and words are written like in the model file, the number of chars
+ * as varint followed by the chars in UTF-8, so a word has no length limit.
+ * 
+ * A record that was only partly written when the client died is cut off
+ * when the journal is replayed. All methods are synchronized, records are
+ * appended by learning while a background save compacts the journal.
+ * 
+ * @author stw
+ * 
+ */
+public class LearningJournal {
+
+	private static final int MAGIC = ('S' << 24) | ('F' << 16) | ('J' << 8)
+			| 'L';
+
+	/**
+	 * Increase whenever the layout changes
+	 */
+	public static final int VERSION = 2;
+
+	private static final int HEADER_SIZE = 3 * 4;
+
+	private static final byte LEARNED = 0;
+	private static final byte CHECKPOINT = 1;
+
+	private final File file;
+
+	// The journal belongs to the current model file and can take records
+	private boolean ready = false;
+
+	/**
+	 * @param file
+	 *            where the journal lives, next to the model file
+	 */
+	public LearningJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Appends what learning did with one document
+	 * 
+	 * @param tf
+	 *            the word counts of the document
+	 * @param fromFolders
+	 *            the folders the counts were taken out of
+	 * @param toFolders
+	 *            the folders the counts were added to
+	 * @throws IOException
+	 *             when the record could not be written, the change is only
+	 *             in memory then. The journal isn't ready any more, so the
+	 *             next save writes the model file
+	 */
+	public synchronized void append(TermCounter tf,
+			List<String> fromFolders, List<String> toFolders)
+			throws IOException {
+		if (!this.ready) {
+			throw new IOException("The learning journal is not open");
+		}
+
+		boolean appended = false;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					32 + 16 * tf.size());
+			DataOutputStream payload = new DataOutputStream(bytes);
+			payload.writeByte(LEARNED);
+			writeFolders(payload, fromFolders);
+			writeFolders(payload, toFolders);
+			payload.writeInt(tf.size());
+			for (int i = 0; i < tf.size(); i++) {
+				writeString(payload, tf.getWord(i));
+				payload.writeInt(tf.getCount(i));
+			}
+			payload.close();
+			this.appendRecord(bytes);
+			appended = true;
+		} finally {
+			if (!appended) {
+				// A record is missing, the journal can't be replayed
+				this.ready = false;
+			}
+		}
+	}
+
+	/**
+	 * Records that a model file was written from a snapshot taken at a
+	 * journal position. Must be called before the model file replaces the old
+	 * one
+	 * 
+	 * @param checksum
+	 *            the checksum of the new model file
+	 * @param position
+	 *            the journal position when the snapshot was taken
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint(int checksum, long position)
+			throws IOException {
+		if (!this.ready) {
+			// Nothing in here the new model file would need
+			return;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(13);
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeByte(CHECKPOINT);
+		payload.writeInt(checksum);
+		payload.writeLong(position);
+		payload.close();
+		this.appendRecord(bytes);
+	}
+
+	/**
+	 * Keeps only the records after a position, for the model file that was
+	 * written from a snapshot taken at that position
+	 * 
+	 * @param checksum
+	 *            the checksum of the new model file
+	 * @param position
+	 *            the journal position when the snapshot was taken
+	 * @throws IOException
+	 */
+	public synchronized void compact(int checksum, long position)
+			throws IOException {
+		if (!this.ready || position >= this.file.length()) {
+			this.reset(checksum);
+			return;
+		}
+
+		File tmp = new File(this.file.getPath() + ".tmp");
+		DataInputStream in = this.openRecords();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			writeHeader(out, checksum);
+			long offset = HEADER_SIZE;
+			byte[] payload;
+			while ((payload = readRecord(in)) != null) {
+				if (offset >= position && payload[0] == LEARNED) {
+					writeRecord(out, payload);
+				}
+				offset += 8 + payload.length;
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		this.ready = false;
+		ModelFile.replace(tmp, this.file);
+		this.ready = true;
+	}
+
+	/**
+	 * @param checksum
+	 *            the checksum of the model file
+	 * @return true if there is nothing to replay on top of that model file
+	 */
+	public synchronized boolean isEmpty(int checksum) {
+		try {
+			long start = this.findStart(checksum);
+			if (start < 0) {
+				return true;
+			}
+			DataInputStream in = this.openRecords();
+			try {
+				long offset = HEADER_SIZE;
+				byte[] payload;
+				while ((payload = readRecord(in)) != null) {
+					if (offset >= start && payload[0] == LEARNED) {
+						return false;
+					}
+					offset += 8 + payload.length;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Can't be replayed either
+		}
+		return true;
+	}
+
+	/**
+	 * @return false if the journal can't take records: it was not replayed
+	 *         or reset yet, or the last append failed
+	 */
+	public synchronized boolean isReady() {
+		return this.ready;
+	}
+
+	public synchronized long length() {
+		return this.file.length();
+	}
+
+	/**
+	 * Replays the journal on top of a model read from a model file. A journal
+	 * written for another model file is discarded. Afterwards new records
+	 * can be appended
+	 * 
+	 * @param checksum
+	 *            the checksum of the model file
+	 * @param model
+	 *            the model read from that model file
+	 * @return the number of documents replayed
+	 * @throws IOException
+	 */
+	public synchronized int replay(int checksum, VectorModel model)
+			throws IOException {
+		long start = this.findStart(checksum);
+		if (start < 0) {
+			this.reset(checksum);
+			return 0;
+		}
+
+		int replayed = 0;
+		long offset = HEADER_SIZE;
+		DataInputStream in = this.openRecords();
+		try {
+			byte[] payload;
+			while ((payload = readRecord(in)) != null) {
+				if (offset >= start && payload[0] == LEARNED) {
+					this.replayRecord(payload, model);
+					replayed++;
+				}
+				offset += 8 + payload.length;
+			}
+		} finally {
+			in.close();
+		}
+
+		// Cut off a record that was only partly written
+		if (offset < this.file.length()) {
+			RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+			try {
+				raf.setLength(offset);
+			} finally {
+				raf.close();
+			}
+		}
+		this.ready = true;
+
+		// The client died between saving and compacting
+		if (start > HEADER_SIZE) {
+			this.compact(checksum, start);
+		}
+		return replayed;
+	}
+
+	/**
+	 * Starts an empty journal, used once the model file holds everything
+	 * 
+	 * @param checksum
+	 *            the checksum of the new model file
+	 * @throws IOException
+	 */
+	public synchronized void reset(int checksum) throws IOException {
+		this.ready = false;
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(
+				this.file));
+		try {
+			writeHeader(out, checksum);
+		} finally {
+			out.close();
+		}
+		this.ready = true;
+	}
+
+	/**
+	 * @return the position of the next record, a snapshot taken now contains
+	 *         everything before it
+	 */
+	public synchronized long position() {
+		return this.file.length();
+	}
+
+	/**
+	 * @return a record's payload or null at the end of the journal or at a
+	 *         record that was only partly written
+	 */
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		byte[] payload;
+		int expected;
+		try {
+			int length = in.readInt();
+			expected = in.readInt();
+			if (length <= 0 || length > 64 * 1024 * 1024) {
+				return null;
+			}
+			payload = new byte[length];
+			in.readFully(payload);
+		} catch (EOFException e) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		return ((int) crc.getValue() == expected) ? payload : null;
+	}
+
+	private static List<String> readFolders(DataInputStream in)
+			throws IOException {
+		int count = in.readInt();
+		List<String> folders = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			folders.add(readString(in));
+		}
+		return folders;
+	}
+
+	/**
+	 * Reads what writeString wrote
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		int len = readVarInt(in);
+		char[] chars = new char[len];
+		for (int i = 0; i < len; i++) {
+			int b = in.readUnsignedByte();
+			if (b < 0x80) {
+				chars[i] = (char) b;
+			} else if (b < 0xE0) {
+				int b2 = in.readUnsignedByte();
+				chars[i] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+			} else {
+				int b2 = in.readUnsignedByte();
+				int b3 = in.readUnsignedByte();
+				chars[i] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6)
+						| (b3 & 0x3F));
+			}
+		}
+		return new String(chars);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if (b < 0x80) {
+				if (value < 0) {
+					break;
+				}
+				return value;
+			}
+		}
+		throw new IOException("Damaged learning journal");
+	}
+
+	private static void writeFolders(DataOutputStream out, List<String> folders)
+			throws IOException {
+		out.writeInt(folders.size());
+		for (String folder : folders) {
+			writeString(out, folder);
+		}
+	}
+
+	/**
+	 * Writes the chars one by one as 1 to 3 bytes of UTF-8 like the model
+	 * file does. Unlike writeUTF there is no limit of 64 KB
+	 */
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		int len = s.length();
+		writeVarInt(out, len);
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				out.writeByte(c);
+			} else if (c < 0x800) {
+				out.writeByte(0xC0 | (c >> 6));
+				out.writeByte(0x80 | (c & 0x3F));
+			} else {
+				out.writeByte(0xE0 | (c >> 12));
+				out.writeByte(0x80 | ((c >> 6) & 0x3F));
+				out.writeByte(0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value)
+			throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static void writeHeader(DataOutputStream out, int checksum)
+			throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(checksum);
+	}
+
+	private static void writeRecord(DataOutputStream out, byte[] payload)
+			throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		out.writeInt(payload.length);
+		out.writeInt((int) crc.getValue());
+		out.write(payload);
+	}
+
+	private void appendRecord(ByteArrayOutputStream payload)
+			throws IOException {
+		// One write per record, so a crash leaves at most one broken record
+		ByteArrayOutputStream record = new ByteArrayOutputStream(
+				payload.size() + 8);
+		DataOutputStream out = new DataOutputStream(record);
+		writeRecord(out, payload.toByteArray());
+		out.close();
+
+		FileOutputStream fos = new FileOutputStream(this.file, true);
+		try {
+			record.writeTo(fos);
+		} catch (IOException e) {
+			// We don't know how much made it to the disk
+			this.ready = false;
+			throw e;
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * @return the position to replay from on top of a model file or -1 if
+	 *         the journal doesn't belong to it
+	 */
+	private long findStart(int checksum) throws IOException {
+		if (this.file.length() < HEADER_SIZE) {
+			return -1;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(this.file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return -1;
+			}
+			if (in.readInt() == checksum) {
+				return HEADER_SIZE;
+			}
+			// Look for the checkpoint of a save that wasn't compacted
+			byte[] payload;
+			while ((payload = readRecord(in)) != null) {
+				if (payload[0] == CHECKPOINT) {
+					DataInputStream checkpoint = new DataInputStream(
+							new ByteArrayInputStream(payload, 1,
+									payload.length - 1));
+					if (checkpoint.readInt() == checksum) {
+						return Math.max(HEADER_SIZE, checkpoint.readLong());
+					}
+				}
+			}
+			return -1;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return a stream positioned at the first record
+	 */
+	private DataInputStream openRecords() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(this.file)));
+		in.skipBytes(HEADER_SIZE);
+		return in;
+	}
+
+	private void replayRecord(byte[] bytes, VectorModel model)
+			throws IOException {
+		DataInputStream payload = new DataInputStream(new ByteArrayInputStream(
+				bytes, 1, bytes.length - 1));
+		List<String> fromFolders = readFolders(payload);
+		List<String> toFolders = readFolders(payload);
+		int words = payload.readInt();
+		TermCounter tf = new TermCounter();
+		for (int i = 0; i < words; i++) {
+			String word = readString(payload);
+			tf.add(word, payload.readInt());
+		}
+		model.moveDocument(tf, fromFolders, toFolders);
+	}
+
+}
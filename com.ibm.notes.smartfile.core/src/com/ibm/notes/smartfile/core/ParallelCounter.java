@@ -0,0 +1,307 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lotus.domino.Database;
+import lotus.domino.Document;
+import lotus.domino.NotesException;
+import lotus.domino.NotesFactory;
+import lotus.domino.NotesThread;
+import lotus.domino.Session;
+import lotus.domino.View;
+
+/**
+ * Counts the words of all documents in a set of folders on several Notes
+ * threads at once, for a rebuild of the model. The NoteIDs of the folders are
+ * read on the calling thread and cut into small chunks. Each worker has its
+ * own session and database handle, takes the next chunk from a shared queue
+ * whenever it is done with one and counts into its own partial model. A big
+ * folder is spread over all workers that way and nobody waits for the
+ * slowest. The partial models are added up at the end.
+ * <p>
+ * Use it once: start, await until done, then getResult
+ * 
+ * @author stw
+ * 
+ */
+public class ParallelCounter {
+
+	/**
+	 * How many documents a worker takes at a time
+	 */
+	public static final int CHUNK_SIZE = 100;
+
+	/**
+	 * More workers than that only wait for the database
+	 */
+	public static final int MAX_WORKERS = 8;
+
+	private final Configuration config;
+	private final String server;
+	private final String filePath;
+
+	// Folder names in the order of the views
+	private final List<String> folderNames = new ArrayList<String>();
+
+	private final Queue<Chunk> chunks = new ConcurrentLinkedQueue<Chunk>();
+	private final int chunkCount;
+	private final AtomicInteger chunksDone = new AtomicInteger();
+
+	private final List<Worker> workers = new ArrayList<Worker>();
+	private final CountDownLatch finished;
+
+	// The first thing that went wrong in a worker
+	private volatile NotesException failure = null;
+
+	// Documents without $FolderRef: NoteID -> folders they are in
+	private final Map<Integer, List<String>> withoutFolderRef = new HashMap<Integer, List<String>>();
+
+	/**
+	 * Reads the NoteIDs of the folders and prepares the work
+	 * 
+	 * @param config
+	 * @param db
+	 *            the mail database, the workers open it again
+	 * @param views
+	 *            the folders to count
+	 * @param workerCount
+	 *            the number of threads, see defaultWorkerCount
+	 * @throws NotesException
+	 */
+	public ParallelCounter(Configuration config, Database db, List<View> views,
+			int workerCount) throws NotesException {
+		this.config = config;
+		this.server = db.getServer();
+		this.filePath = db.getFilePath();
+
+		// Reading the folder entries doesn't open any document
+		FolderMembership membership = FolderMembership.scan(views);
+		for (View v : views) {
+			String name = v.getName();
+			this.folderNames.add(name);
+			int[] noteIds = membership.getNoteIds(name);
+			for (int start = 0; start < noteIds.length; start += CHUNK_SIZE) {
+				this.chunks.add(new Chunk(name, noteIds, start, Math.min(
+						noteIds.length, start + CHUNK_SIZE)));
+			}
+		}
+		this.chunkCount = this.chunks.size();
+
+		int count = Math.max(1, Math.min(workerCount, this.chunkCount));
+		for (int i = 0; i < count; i++) {
+			this.workers.add(new Worker());
+		}
+		this.finished = new CountDownLatch(count);
+	}
+
+	/**
+	 * @return one worker per processor, at most MAX_WORKERS
+	 */
+	public static int defaultWorkerCount() {
+		return Math.min(Runtime.getRuntime().availableProcessors(),
+				MAX_WORKERS);
+	}
+
+	/**
+	 * Waits for the workers
+	 * 
+	 * @param millis
+	 *            how long to wait at most
+	 * @return true when all workers are done
+	 * @throws InterruptedException
+	 */
+	public boolean await(long millis) throws InterruptedException {
+		return this.finished.await(millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the number of chunks the documents were cut into
+	 */
+	public int getChunkCount() {
+		return this.chunkCount;
+	}
+
+	/**
+	 * @return the number of chunks counted so far
+	 */
+	public int getChunksDone() {
+		return this.chunksDone.get();
+	}
+
+	/**
+	 * @return the documents without a $FolderRef item, NoteID -> folders
+	 *         they are in. Complete once the workers are done
+	 */
+	public Map<Integer, List<String>> getDocumentsWithoutFolderRef() {
+		synchronized (this.withoutFolderRef) {
+			return new HashMap<Integer, List<String>>(this.withoutFolderRef);
+		}
+	}
+
+	/**
+	 * Waits for the workers and adds up their counts
+	 * 
+	 * @return the word counts of all folders
+	 * @throws NotesException
+	 *             when a worker failed and its chunks are missing
+	 * @throws InterruptedException
+	 */
+	public VectorModel getResult() throws NotesException,
+			InterruptedException {
+		this.finished.await();
+		if (this.chunksDone.get() < this.chunkCount) {
+			throw (this.failure != null) ? this.failure : new NotesException(
+					0, "Not all documents were counted");
+		}
+		VectorModel result = new VectorModel();
+		for (String name : this.folderNames) {
+			result.addFolder(name);
+		}
+		for (Worker w : this.workers) {
+			result.addAll(w.partial);
+		}
+		// Rows don't grow any further until the next learning cycle
+		result.trimToSize();
+		return result;
+	}
+
+	/**
+	 * Starts the workers
+	 */
+	public void start() {
+		for (Worker w : this.workers) {
+			w.start();
+		}
+	}
+
+	private void fail(NotesException e) {
+		if (this.failure == null) {
+			this.failure = e;
+		}
+	}
+
+	private void recordWithoutFolderRef(int noteId, String folderName) {
+		synchronized (this.withoutFolderRef) {
+			Integer key = Integer.valueOf(noteId);
+			List<String> folders = this.withoutFolderRef.get(key);
+			if (folders == null) {
+				folders = new ArrayList<String>();
+				this.withoutFolderRef.put(key, folders);
+			}
+			folders.add(folderName);
+		}
+	}
+
+	/**
+	 * Some documents of a folder
+	 */
+	private static class Chunk {
+
+		final String folderName;
+		final int[] noteIds;
+		final int start;
+		final int end;
+
+		Chunk(String folderName, int[] noteIds, int start, int end) {
+			this.folderName = folderName;
+			this.noteIds = noteIds;
+			this.start = start;
+			this.end = end;
+		}
+
+	}
+
+	/**
+	 * Counts chunks on its own session until there are none left
+	 */
+	private class Worker extends NotesThread {
+
+		final VectorModel partial = new VectorModel();
+
+		@Override
+		public void runNotes() {
+			Session s = null;
+			Database db = null;
+			try {
+				s = NotesFactory.createSession();
+				db = s.getDatabase(ParallelCounter.this.server,
+						ParallelCounter.this.filePath, false);
+				WordExtractor extractor = new WordExtractor(
+						ParallelCounter.this.config);
+
+				// Same folder ids in all partial models
+				for (String name : ParallelCounter.this.folderNames) {
+					this.partial.addFolder(name);
+				}
+
+				Chunk chunk;
+				while ((chunk = ParallelCounter.this.chunks.poll()) != null) {
+					this.count(db, extractor, chunk);
+					ParallelCounter.this.chunksDone.incrementAndGet();
+				}
+			} catch (NotesException e) {
+				ParallelCounter.this.fail(e);
+			} finally {
+				Utils.shred(db, s);
+				ParallelCounter.this.finished.countDown();
+			}
+		}
+
+		private void count(Database db, WordExtractor extractor, Chunk chunk)
+				throws NotesException {
+			int folderId = this.partial.getFolderId(chunk.folderName);
+			for (int i = chunk.start; i < chunk.end; i++) {
+				int noteId = chunk.noteIds[i];
+				Document doc = null;
+				try {
+					doc = db.getDocumentByID(Integer.toHexString(noteId));
+				} catch (NotesException e) {
+					// Deleted in the meantime
+				}
+				if (doc == null) {
+					continue;
+				}
+				try {
+					this.partial.addDocument(extractor.extract(doc), folderId);
+					if (!doc.hasItem(Configuration.FOLDER_REF)) {
+						ParallelCounter.this.recordWithoutFolderRef(noteId,
+								chunk.folderName);
+					}
+				} finally {
+					Utils.shred(doc);
+				}
+			}
+		}
+
+	}
+
+}
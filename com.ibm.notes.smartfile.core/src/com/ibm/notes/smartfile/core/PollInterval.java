@@ -0,0 +1,74 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile.core;
+
+/**
+ * How long to wait before looking for changes again. Starts short, doubles
+ * every time nothing changed and goes back to short once something did, so
+ * an idle mail file costs next to nothing while new mail is seen quickly
+ * 
+ * @author stw
+ * 
+ */
+public class PollInterval {
+
+	private final long minDelay;
+	private final long maxDelay;
+	private long delay;
+
+	/**
+	 * @param minDelay
+	 *            milliseconds after a change
+	 * @param maxDelay
+	 *            milliseconds at most when nothing changes
+	 */
+	public PollInterval(long minDelay, long maxDelay) {
+		this.minDelay = minDelay;
+		this.maxDelay = maxDelay;
+		this.delay = minDelay;
+	}
+
+	/**
+	 * @return the milliseconds to wait now
+	 */
+	public synchronized long get() {
+		return this.delay;
+	}
+
+	/**
+	 * Something changed, look again soon
+	 */
+	public synchronized void reset() {
+		this.delay = this.minDelay;
+	}
+
+	/**
+	 * Nothing changed, wait twice as long next time
+	 * 
+	 * @return the new delay
+	 */
+	public synchronized long backOff() {
+		this.delay = Math.min(2 * this.delay, this.maxDelay);
+		return this.delay;
+	}
+
+}
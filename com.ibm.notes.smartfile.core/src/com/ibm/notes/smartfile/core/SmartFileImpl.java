@@ -64,8 +64,8 @@ import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Vector;
 
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
@@ -73,6 +73,7 @@ import javax.swing.JOptionPane;
 import javax.swing.JPasswordField;
 
 import lotus.domino.Database;
+import lotus.domino.DateTime;
 import lotus.domino.Document;
 import lotus.domino.DocumentCollection;
 import lotus.domino.NotesException;
@@ -102,10 +103,43 @@ public class SmartFileImpl extends NotesThread {
 	// Initialized to 0 to force processing once on program start
 	private static Date priorModification = new Date(0);
 
+	// When we last went through all documents. A start that finds the
+	// folder membership or the check time of the last session waits a full
+	// interval
+	private static long lastSweep = System.currentTimeMillis();
+
+	// Documents modified before that have been checked for changes, read
+	// from its file on first use. Without a folder membership snapshot to
+	// compare with, only the documents modified since then are checked
+	private static Date changesCheckedUntil = null;
+	private static boolean changesCheckedUntilRead = false;
+
+	// Which documents were in which folder at the end of the last cycle,
+	// read from its file on first use, so a restart diffs against the last
+	// session
+	private static FolderMembership folderMembership = null;
+	private static boolean folderMembershipRead = false;
+
 	private static JFrame frame = new JFrame();
 
 	private static Engine engine;
 
+	// How often the worker looks at the Inbox, the database is checked
+	// that often after a change and at most MAX_POLL_INTERVAL apart
+	private static final long INBOX_INTERVAL = 1000;
+	private static final long MAX_POLL_INTERVAL = 60 * 1000;
+
+	// The worker's connection to Notes, kept between the cycles
+	private Session session = null;
+	private Database db = null;
+	private View inbox = null;
+
+	// When the worker checks the database next
+	private final InboxWatcher inboxWatcher = new InboxWatcher();
+	private final PollInterval pollInterval = new PollInterval(
+			INBOX_INTERVAL, MAX_POLL_INTERVAL);
+	private long nextCheck = 0;
+
 	public static void main(String argv[]) {
 
 		// Read our configuration file and validate its contents
@@ -147,16 +181,12 @@ public class SmartFileImpl extends NotesThread {
 			Utils.debugLog("Java Exception:", e);
 		}
 
-		// The big loop, run the thread with a two second delay between each run
+		// The big loop, the worker only comes back when it can't log in
 		while (true) {
 
 			// In case they erase the persistence file while we're running ...
 			File f = new File(config.getSmartfilePersistenceFile());
-			if (!f.exists()) {
-				rebuildModel = true;
-			} else {
-				rebuildModel = false;
-			}
+			rebuildModel = !f.exists();
 
 			// If we don't have a password, or they're forcing us to ask for
 			// one,
@@ -173,14 +203,14 @@ public class SmartFileImpl extends NotesThread {
 				}
 			}
 
-			// Start the thread
+			// Start the worker, it keeps its session until it can't log in
 			SmartFileImpl t = new SmartFileImpl();
 			t.start();
 
 			try {
-				// Wait for thread to finish, then sleep for 0.2 seconds
+				// Wait for the worker to give up, then try again shortly
 				t.join();
-				Thread.sleep(200);
+				Thread.sleep(INBOX_INTERVAL);
 			} catch (Exception e) {
 				e.printStackTrace();
 				Utils.debugLog("Java Exception:", e);
@@ -193,138 +223,319 @@ public class SmartFileImpl extends NotesThread {
 
 	}
 
-	// The thread
+	// The worker, runs until the Notes login fails
 	public void runNotes() {
 
-		Session s = null;
-
 		try {
+			while (true) {
 
-			// Connect to the database
-			s = NotesFactory.createSession();
-			Database db = s
-					.getDatabase((String) null, config.getMailFileName());
+				// In case they erase the persistence file while we're
+				// running ...
+				File f = new File(config.getSmartfilePersistenceFile());
+				rebuildModel = !f.exists();
 
-			// If the persistence file didn't exist when we started or got
-			// erased while we were running ...
-			if (rebuildModel) {
-				engine.rebuildModel(db);
+				try {
+					if (this.session == null) {
+						this.connect();
+					}
+					// New mail is seen right away, everything else when the
+					// backed off check comes round
+					boolean newMail = (this.inbox != null)
+							&& this.inboxWatcher.hasChanged(this.inbox);
+					if (newMail || rebuildModel
+							|| System.currentTimeMillis() >= this.nextCheck) {
+						if (this.checkDatabase(this.db) || newMail) {
+							this.pollInterval.reset();
+						} else {
+							this.pollInterval.backOff();
+						}
+						this.nextCheck = System.currentTimeMillis()
+								+ this.pollInterval.get();
+					}
+				} catch (NotesException e) {
+					if (e.id == 6408) { // Incorrect password
+						password = ""; // JOptionPane won't work inside the
+										// NotesThread on OS X
+						return;
+					} else if (e.id == 6022) { // Userid file in use by another
+												// process, so quit
+						Utils.debugLog("The ID file is locked by another process, retrying login ...");
+						return;
+					} else {
+						System.out.println("NotesException: " + e.id + " "
+								+ e.text);
+						e.printStackTrace();
+						Utils.debugLog(e.id + " " + e.text, e);
+						// The handles might be dead, open them again next
+						// time
+						engine.finishLearning();
+						this.disconnect();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					Utils.debugLog("Java Exception:", e);
+				} finally {
+					// No learning may go on once the cycle is over
+					engine.finishLearning();
+				}
 
-				// Persist this model in a file
-				writePersistenceFile(config.getSmartfilePersistenceFile());
+				Thread.sleep(INBOX_INTERVAL);
 			}
+		} catch (InterruptedException e) {
+			Utils.debugLog("SmartFile worker interrupted");
+		} finally {
+			this.disconnect();
+		}
+	}
 
-			// If the mail database has been modified ...
-			if (db.getLastModified().timeDifference(
-					s.createDateTime(priorModification)) > 0) {
-
-				Utils.debugLog("Database modified after "
-						+ db.getLastModified().timeDifference(
-								s.createDateTime(priorModification))
-						+ " seconds");
-
-				// Save the modification time for the next loop - doing this
-				// here means we always loop through the database
-				// twice if we update any documents but it also makes sure that
-				// we don't miss any changes made while we're
-				// in the middle of processing the database
-				priorModification = db.getLastModified().toJavaDate();
-
-				// If FolderReferencesEnabled is not turned on, do that
-				if (!db.getFolderReferencesEnabled()) {
-					db.setFolderReferencesEnabled(true);
-					Utils.debugLog("\tTurned on FolderReferences in the database");
-				}
-
-				// Walk through all of the documents in the Drafts folder and
-				// set their SwiftFile fields if they aren't set already
-				engine.setSFLabels(db, "($Drafts)");
+	/**
+	 * Opens the session, the mail database and the Inbox, all are kept until
+	 * an error
+	 * 
+	 * @throws NotesException
+	 */
+	private void connect() throws NotesException {
+		this.session = NotesFactory.createSession();
+		try {
+			this.db = this.session.getDatabase((String) null,
+					config.getMailFileName());
+			this.inbox = this.db.getView("($Inbox)");
+		} catch (NotesException e) {
+			this.disconnect();
+			throw e;
+		}
+		Utils.debugLog("Connected to " + config.getMailFileName());
+	}
 
-				// Walk through all of the documents in the Inbox folder and
-				// set their SwiftFile fields if they aren't set already
-				engine.setSFLabels(db, "($Inbox)");
+	/**
+	 * Recycles the session and with it the database and the Inbox
+	 */
+	private void disconnect() {
+		try {
+			if (this.session != null)
+				this.session.recycle();
+		} catch (NotesException e) {
+			System.out.println("NotesException: " + e.id + " " + e.text);
+			e.printStackTrace();
+			Utils.debugLog(e.id + " " + e.text, e);
+		}
+		this.session = null;
+		this.db = null;
+		this.inbox = null;
+	}
 
-				// Walk through all of the rest of the documents in the database
-				// looking for newly filed documents
-				// and "learn" from those files
-				boolean learned = false;
+	/**
+	 * One cycle: rebuilds the model if needed and, if the database changed
+	 * since the last cycle, suggests folders and learns
+	 * 
+	 * @param db
+	 *            the mail database
+	 * @return true if the database had changed
+	 * @throws NotesException
+	 * @throws IOException
+	 *             when the document state could not be saved
+	 */
+	private boolean checkDatabase(Database db) throws NotesException,
+			IOException {
+
+		// If the persistence file didn't exist when we started or got
+		// erased while we were running ...
+		if (rebuildModel) {
+			engine.rebuildModel(db);
+
+			// Persist this model in a file
+			writePersistenceFile(config.getSmartfilePersistenceFile());
+		}
 
-				DocumentCollection dc = db.getAllDocuments();
-				if (dc.getCount() > 0) {
-					Document doc = dc.getFirstDocument();
-					while (doc != null) {
-						Document newdoc = dc.getNextDocument();
-						learned = this.checkOneDocumentForChanges(doc, learned);
+		// If the mail database has been modified ... Reading the time of
+		// the open database is all an idle cycle does
+		DateTime lastModified = db.getLastModified();
+		Date modified = lastModified.toJavaDate();
+		Utils.shred(lastModified);
+		if (modified.after(priorModification)) {
+
+			Utils.debugLog("Database modified after "
+					+ (modified.getTime() - priorModification.getTime()) / 1000
+					+ " seconds");
+
+			// Save the modification time for the next loop - doing this
+			// here means we always loop through the database
+			// twice if we update any documents but it also makes sure that
+			// we don't miss any changes made while we're
+			// in the middle of processing the database
+			priorModification = modified;
+
+			// If FolderReferencesEnabled is not turned on, do that
+			if (!db.getFolderReferencesEnabled()) {
+				db.setFolderReferencesEnabled(true);
+				Utils.debugLog("\tTurned on FolderReferences in the database");
+			}
 
-						doc.recycle();
-						doc = newdoc;
-					}
+			// Walk through all of the documents in the Drafts and the
+			// Inbox folder and set their SwiftFile fields if they aren't
+			// set already
+			List<String> foldersToProcess = new ArrayList<String>();
+			foldersToProcess.add("($Drafts)");
+			foldersToProcess.add("($Inbox)");
+			engine.setSFLabels(db, foldersToProcess);
+
+			// Walk through all of the rest of the documents in the database
+			// looking for newly filed documents
+			// and "learn" from those files
+			boolean learned = false;
+
+			// Anything modified after this is picked up next time
+			DateTime until = db.getLastModified();
+
+			// Which documents are in which folder, read from the folder
+			// entries without opening a document
+			ArrayList<String> newList = new ArrayList<String>();
+			List<View> allViews = engine.getFoldersFromDB(db, newList);
+			FolderMembership membership;
+			try {
+				membership = FolderMembership.scan(allViews);
+			} finally {
+				for (View v : allViews) {
+					Utils.shred(v);
 				}
-
-				boolean foldersChanged = false;
-				if (!learned) {
-					// We check folders only if we don't have to rebuild yet
-					// Check the folder structure. If a folder has been deleted,
-					// delete it from wordCounts
-
-					ArrayList<String> newList = new ArrayList<String>();
-					List<View> allViews = engine.getFoldersFromDB(db, newList);
-					// We don't need the views
-					for (View v : allViews) {
-						Utils.shred(v);
-					}
-					ArrayList<String> oldList = engine.getFolderList();
-					for (String vName : oldList) {
-						if (newList.contains(vName)) {
-							newList.remove(vName);
-						} else {
-							foldersChanged = true;
-							break;
-						}
+			}
+			FolderMembership previous = getFolderMembership();
+			Date checkedUntil = (previous == null) ? getChangesCheckedUntil()
+					: null;
+
+			DocumentCollection dc = null;
+			long sweepInterval = config.getSweepHours() * 60L * 60L * 1000L;
+			if ((previous == null && checkedUntil == null)
+					|| System.currentTimeMillis() - lastSweep >= sweepInterval) {
+				// Without anything to start from, and once in a while in
+				// case we missed a change, we check all documents
+				dc = db.getAllDocuments();
+				lastSweep = System.currentTimeMillis();
+			} else if (previous == null) {
+				// No snapshot to compare with, e.g. its file was damaged.
+				// Filing a document changes its $FolderRef, so only
+				// documents modified since the last check can have moved
+				dc = db.getModifiedDocuments(
+						this.session.createDateTime(checkedUntil),
+						Database.DBMOD_DOC_DATA);
+			} else {
+				// Only documents that were put into or taken out of a
+				// folder since the last cycle can have something to learn
+				for (int noteId : membership.changedSince(previous)) {
+					Document doc = null;
+					try {
+						doc = db.getDocumentByID(Integer.toHexString(noteId));
+					} catch (NotesException e) {
+						// Deleted in the meantime
 					}
-
-					if (newList.size() > 0) {
-						foldersChanged = true;
+					if (doc != null) {
+						learned = this.checkOneDocumentForChanges(doc,
+								learned);
+						doc.recycle();
 					}
 				}
+			}
+			if (dc != null && dc.getCount() > 0) {
+				Document doc = dc.getFirstDocument();
+				while (doc != null) {
+					Document newdoc = dc.getNextDocument();
+					learned = this.checkOneDocumentForChanges(doc, learned);
+
+					doc.recycle();
+					doc = newdoc;
+				}
+			}
+			Utils.shred(dc);
+			engine.getStateStore().flush();
+
+			// Everything learned has to be in the model before we go on
+			engine.finishLearning();
+
+			// Only now the changes count as handled, if we die before the
+			// next start compares with the last snapshot again
+			setFolderMembership(membership, until.toJavaDate());
+			Utils.shred(until);
+
+			boolean foldersChanged = false;
+			if (!learned) {
+				// We check folders only if we don't have to rebuild yet
+				// Check the folder structure. If a folder has been deleted,
+				// delete it from wordCounts
+				foldersChanged = !new HashSet<String>(engine.getFolderList())
+						.equals(new HashSet<String>(newList));
+			}
+			if (foldersChanged) {
+				// Otherwise every cycle finds the same change again
+				engine.setFolderList(newList);
+			}
 
-				if (learned || foldersChanged) {
-					// Build that sums again, rumbles through a lot
-					// of linked lists
-					engine.refeshWords();
+			if (learned || foldersChanged) {
+				// Build that sums again, rumbles through a lot
+				// of linked lists
+				engine.refeshWords();
 
+				// learn() put its changes in the journal already, the
+				// model file is only written when the journal got too big
+				if (foldersChanged || engine.needsCompaction()) {
 					writePersistenceFile(config.getSmartfilePersistenceFile());
 				}
-
 			}
 
-		} catch (NotesException e) {
-			if (e.id == 6408) { // Incorrect password
-				password = ""; // JOptionPane won't work inside the NotesThread
-								// on OS X
-				return;
-			} else if (e.id == 6022) { // Userid file in use by another process,
-										// so quit
-				Utils.debugLog("The ID file is locked by another process, retrying login ...");
-				return;
-			} else {
-				System.out.println("NotesException: " + e.id + " " + e.text);
-				e.printStackTrace();
-				Utils.debugLog(e.id + " " + e.text, e);
+			return true;
+		}
+
+		return false;
+	}
+
+	/*************************************************************************************************
+	 * f o l d e r M e m b e r s h i p
+	 **************************************************************************************************/
+
+	private static FolderMembership getFolderMembership() {
+		if (!folderMembershipRead) {
+			folderMembershipRead = true;
+			try {
+				folderMembership = FolderMembership.read(new File(config
+						.getSmartfileMembershipFile()));
+			} catch (IOException e) {
+				Utils.debugLog("Could not read the folder membership", e);
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			Utils.debugLog("Java Exception:", e);
-		} finally {
+		}
+		return folderMembership;
+	}
+
+	private static Date getChangesCheckedUntil() {
+		if (!changesCheckedUntilRead) {
+			changesCheckedUntilRead = true;
 			try {
-				if (s != null)
-					s.recycle();
-			} catch (NotesException e) {
-				System.out.println("NotesException: " + e.id + " " + e.text);
-				e.printStackTrace();
-				Utils.debugLog(e.id + " " + e.text, e);
+				changesCheckedUntil = FolderMembership
+						.readCheckedUntil(new File(config
+								.getSmartfileCheckedUntilFile()));
+			} catch (IOException e) {
+				Utils.debugLog("Could not read the check time", e);
 			}
 		}
+		return changesCheckedUntil;
+	}
+
+	private static void setFolderMembership(FolderMembership membership,
+			Date checkedUntil) {
+		folderMembership = membership;
+		folderMembershipRead = true;
+		changesCheckedUntil = checkedUntil;
+		changesCheckedUntilRead = true;
+		try {
+			FolderMembership.writeCheckedUntil(new File(config
+					.getSmartfileCheckedUntilFile()), checkedUntil);
+		} catch (IOException e) {
+			Utils.debugLog("Could not save the check time", e);
+		}
+		try {
+			membership.write(new File(config.getSmartfileMembershipFile()));
+		} catch (IOException e) {
+			// The next start checks the modified documents then
+			Utils.debugLog("Could not save the folder membership", e);
+		}
 	}
 
 	/*************************************************************************************************
@@ -336,8 +547,13 @@ public class SmartFileImpl extends NotesThread {
 
 			// Read the vector model, and other values, from a file
 			FileInputStream in = new FileInputStream(filename);
-			engine.load(in);
+			boolean oldFormat = engine.load(in);
 			in.close();
+			if (oldFormat) {
+				// Convert it, so we read the old format only once
+				Utils.debugLog("\tConverting my vector model persistence file to the new format");
+				writePersistenceFile(filename);
+			}
 			return false; // no need to rebuild
 
 		} catch (FileNotFoundException e) {
@@ -462,47 +678,51 @@ public class SmartFileImpl extends NotesThread {
 			if (!doc.isDeleted()) {
 
 				// Get list of folders this document belongs to
-				@SuppressWarnings("rawtypes")
-				Vector refs = doc.getFolderReferences();
+				List<String> refs = Engine.toFolderNames(doc
+						.getFolderReferences());
+
+				StateStore store = engine.getStateStore();
+				int noteId = engine.lookUpState(doc);
+				List<String> seenFolders = store.getFolders(noteId);
 
 				// If it's a document we've seen before
-				if (doc.hasItem("SmartFile")) {
-					// Get the list of folders we think it's
-					// supposed to be in
-					@SuppressWarnings("rawtypes")
-					Vector myFlag = doc.getItemValue("SmartFile");
+				if (seenFolders != null) {
+					boolean processed = store.isProcessed(noteId);
 
-					// If it still has its SFLabels field set or
+					// If it still has our suggestions or
 					// it it isn't where we think it is
-					if ((doc.getItemValueString("SFLabels").length() != 0)
-							|| (!myFlag.equals(refs))) {
+					if (processed || !seenFolders.equals(refs)) {
 						// Learn from this document
-						result = engine.learn(doc);
+						result = engine.learn(doc, seenFolders, refs,
+								processed);
 						if (result) {
 							Utils.debugLog("\tLearning from document: \""
 									+ doc.getUniversalID() + " - "
 									+ doc.getItemValueString("Subject") + "\"");
-							// Clear the SFLabel_ fields to flag
-							// the fact that we've processed
-							// this file
-							doc.replaceItemValue("SFLabels", "");
-							doc.replaceItemValue("SFLabel1", "");
-							doc.replaceItemValue("SFLabel2", "");
-							doc.replaceItemValue("SFLabel3", "");
-							// Set SmartFile field to the
-							// current folder(s) so that we can
+							if (processed) {
+								// Clear the SFLabel_ fields, the user has
+								// decided where the document goes
+								doc.replaceItemValue("SFLabels", "");
+								doc.replaceItemValue("SFLabel1", "");
+								doc.replaceItemValue("SFLabel2", "");
+								doc.replaceItemValue("SFLabel3", "");
+								doc.save();
+							}
+							// Remember the current folder(s) so that we can
 							// recognize changes later.
-							doc.replaceItemValue("SmartFile", refs);
-							doc.save();
+							store.put(noteId, refs, false);
 						}
 					}
 				} else {
-					// Record where the document is currently
-					// located
-					doc.replaceItemValue("SmartFile", refs);
-					doc.save();
+					// Record where the document is currently located, the
+					// document itself stays untouched
+					store.put(noteId, refs, false);
 				}
 
+			} else {
+				// Forget deleted documents
+				engine.getStateStore().remove(
+						StateStore.noteId(doc.getNoteID()));
 			}
 		} catch (NotesException e) {
 			try {
@@ -542,6 +762,8 @@ public class SmartFileImpl extends NotesThread {
 			} catch (NotesException nasty) {
 				nasty.printStackTrace();
 			}
+		} catch (IOException e) {
+			Utils.debugLog("Could not update the document state", e);
 		}
 
 		// Trap door boolean. if Oldstatus was true, it must be true in any case
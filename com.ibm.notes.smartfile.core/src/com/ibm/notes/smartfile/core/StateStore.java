@@ -0,0 +1,515 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * What we know about the documents of the mail file, keyed by NoteID: the
+ * folders a document was in when we last looked and whether we put
+ * suggestions on it. This used to live in the SmartFile and SmartFileRef
+ * items of every document, which meant a document save (and a replicated
+ * update) for every document we merely noticed. The state lives in a file
+ * mapped into memory, a hash table with open addressing, so a lookup doesn't
+ * touch the heap and the OS writes the changed pages back. The folder lists
+ * repeat a lot, so each distinct list is kept once in a second file and the
+ * table only stores its number. All numbers are big endian, the layouts are:
+ * 
+ * <pre>
+ * state file:  "SFST" version capacity
+ *              the outgrown tables, 1024, 2048 ... capacity / 2 slots
+ *              capacity slots of (NoteID, folder set id + 1, flags)
+ * sets file:   "SFSS" version setCount (folderCount (name)) CRC32
+ * </pre>
+ * 
+ * The state file is mapped and can't be replaced on Windows, so it only ever
+ * grows at the end: a bigger table goes behind the current one and the
+ * capacity in the header switches over once it is complete. The outgrown
+ * tables stay in the file, together they are smaller than the current one.
+ * 
+ * The store is thread safe
+ * 
+ * @author stw
+ * 
+ */
+public class StateStore {
+
+	private static final int MAGIC = ('S' << 24) | ('F' << 16) | ('S' << 8)
+			| 'T';
+
+	private static final int SETS_MAGIC = ('S' << 24) | ('F' << 16)
+			| ('S' << 8) | 'S';
+
+	/**
+	 * Increase whenever the layout changes
+	 */
+	public static final int VERSION = 2;
+
+	private static final int HEADER_SIZE = 3 * 4;
+
+	private static final int SLOT_SIZE = 3 * 4;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// Slot flags
+	private static final int USED = 1;
+	private static final int PROCESSED = 2;
+
+	private final File file;
+	private final File setsFile;
+	private final RandomAccessFile raf;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int count;
+
+	// The distinct folder lists, the id is the position
+	private final List<List<String>> sets;
+	private final Map<List<String>, Integer> setIds;
+
+	private StateStore(File file, RandomAccessFile raf,
+			List<List<String>> sets) {
+		this.file = file;
+		this.setsFile = new File(file.getPath() + ".sets");
+		this.raf = raf;
+		this.sets = sets;
+		this.setIds = new HashMap<List<String>, Integer>(2 * sets.size() + 16);
+		for (int i = 0; i < sets.size(); i++) {
+			this.setIds.put(sets.get(i), Integer.valueOf(i));
+		}
+	}
+
+	/**
+	 * Opens the store, creates it if there is none yet
+	 * 
+	 * @param file
+	 *            the state file, the folder sets go next to it
+	 * @return the store
+	 * @throws IOException
+	 *             when a file can't be read or is damaged, use create to
+	 *             start over
+	 */
+	public static StateStore open(File file) throws IOException {
+		File setsFile = new File(file.getPath() + ".sets");
+		if (!file.exists() || !setsFile.exists()) {
+			return create(file);
+		}
+		List<List<String>> sets = readSets(setsFile);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		StateStore result = null;
+		try {
+			// Check the header before anything gets mapped
+			if (raf.length() < HEADER_SIZE) {
+				throw new IOException(file + " is not a state file");
+			}
+			int magic = raf.readInt();
+			int version = raf.readInt();
+			int capacity = raf.readInt();
+			if (magic != MAGIC || version != VERSION
+					|| capacity < INITIAL_CAPACITY
+					|| Integer.bitCount(capacity) != 1
+					|| end(capacity) > Integer.MAX_VALUE
+					|| raf.length() < end(capacity)) {
+				throw new IOException(file + " is not a state file");
+			}
+			StateStore store = new StateStore(file, raf, sets);
+			store.map(capacity);
+			// Counted rather than kept in the header, a crash between
+			// writing a slot and the header would leave that one off
+			for (int slot = 0; slot < capacity; slot++) {
+				if (store.isUsed(slot)) {
+					store.count++;
+				}
+			}
+			result = store;
+		} finally {
+			if (result == null) {
+				raf.close();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Creates an empty store, overwriting the files that are there. They
+	 * must not be open, which they aren't when open() failed
+	 * 
+	 * @param file
+	 *            the state file, the folder sets go next to it
+	 * @return the store
+	 * @throws IOException
+	 */
+	public static StateStore create(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		StateStore result = null;
+		try {
+			raf.setLength(0);
+			raf.setLength(end(INITIAL_CAPACITY));
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeInt(INITIAL_CAPACITY);
+			StateStore store = new StateStore(file, raf,
+					new ArrayList<List<String>>());
+			store.writeSets();
+			store.map(INITIAL_CAPACITY);
+			store.buffer.force();
+			raf.getChannel().force(true);
+			result = store;
+		} finally {
+			if (result == null) {
+				raf.close();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param noteId
+	 *            the NoteID as Domino hands it out, in hex
+	 * @return the NoteID as number
+	 */
+	public static int noteId(String noteId) {
+		return (int) Long.parseLong(noteId, 16);
+	}
+
+	/**
+	 * @param noteId
+	 * @return the folders the document was in when we last looked or null if
+	 *         we haven't seen the document yet
+	 */
+	public synchronized List<String> getFolders(int noteId) {
+		int slot = this.findSlot(noteId);
+		if (!this.isUsed(slot)) {
+			return null;
+		}
+		int setId = this.buffer.getInt(this.position(slot) + 4) - 1;
+		// A set that didn't make it into the sets file: treat as unseen
+		return (setId < this.sets.size()) ? this.sets.get(setId) : null;
+	}
+
+	/**
+	 * @param noteId
+	 * @return true if we put suggestions on the document and didn't learn
+	 *         from it since
+	 */
+	public synchronized boolean isProcessed(int noteId) {
+		int slot = this.findSlot(noteId);
+		return this.isUsed(slot)
+				&& (this.buffer.getInt(this.position(slot) + 8) & PROCESSED) != 0;
+	}
+
+	/**
+	 * Records the state of a document
+	 * 
+	 * @param noteId
+	 * @param folders
+	 *            the folders the document is in right now
+	 * @param processed
+	 *            true if the document has our suggestions on it
+	 * @throws IOException
+	 *             when a new folder list can't be saved or the file can't
+	 *             grow
+	 */
+	public synchronized void put(int noteId, List<String> folders,
+			boolean processed) throws IOException {
+		int setId = this.getSetId(folders);
+		int slot = this.findSlot(noteId);
+		if (!this.isUsed(slot)) {
+			// Keep the load factor below 0.5
+			if (2 * (this.count + 1) > this.capacity) {
+				this.resize(2 * this.capacity);
+				slot = this.findSlot(noteId);
+			}
+			this.count++;
+		}
+		int pos = this.position(slot);
+		this.buffer.putInt(pos, noteId);
+		this.buffer.putInt(pos + 4, setId + 1);
+		this.buffer.putInt(pos + 8, processed ? USED | PROCESSED : USED);
+	}
+
+	/**
+	 * Forgets a document, e.g. when it was deleted
+	 * 
+	 * @param noteId
+	 */
+	public synchronized void remove(int noteId) {
+		int slot = this.findSlot(noteId);
+		if (!this.isUsed(slot)) {
+			return;
+		}
+		// Move later entries of the probe sequence up, so no lookup stops
+		// at the gap
+		int mask = this.capacity - 1;
+		int gap = slot;
+		int next = gap;
+		while (true) {
+			next = (next + 1) & mask;
+			if (!this.isUsed(next)) {
+				break;
+			}
+			int home = home(this.buffer.getInt(this.position(next)), mask);
+			boolean reachable = (gap <= next) ? (gap < home && home <= next)
+					: (gap < home || home <= next);
+			if (!reachable) {
+				this.copySlot(next, gap);
+				gap = next;
+			}
+		}
+		this.clearSlot(gap);
+		this.count--;
+	}
+
+	/**
+	 * @return the number of documents in the store
+	 */
+	public synchronized int size() {
+		return this.count;
+	}
+
+	/**
+	 * Writes the changed pages to disk now rather than when the OS gets to
+	 * it
+	 */
+	public synchronized void flush() {
+		this.buffer.force();
+	}
+
+	/**
+	 * Flushes and closes the store, it can't be used afterwards
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		this.buffer.force();
+		this.raf.close();
+	}
+
+	/**
+	 * @return the end of the table with the capacity, the file is at least
+	 *         that long
+	 */
+	private static long end(int capacity) {
+		return start(capacity) + (long) capacity * SLOT_SIZE;
+	}
+
+	/**
+	 * @return where the table with the capacity starts, behind all the
+	 *         smaller ones
+	 */
+	private static long start(int capacity) {
+		return HEADER_SIZE + (long) (capacity - INITIAL_CAPACITY) * SLOT_SIZE;
+	}
+
+	private static int home(int noteId, int mask) {
+		int h = noteId * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private void clearSlot(int slot) {
+		int pos = this.position(slot);
+		this.buffer.putInt(pos, 0);
+		this.buffer.putInt(pos + 4, 0);
+		this.buffer.putInt(pos + 8, 0);
+	}
+
+	private void copySlot(int from, int to) {
+		int fromPos = this.position(from);
+		int toPos = this.position(to);
+		for (int i = 0; i < SLOT_SIZE; i += 4) {
+			this.buffer.putInt(toPos + i, this.buffer.getInt(fromPos + i));
+		}
+	}
+
+	/**
+	 * @return the slot holding the NoteID or the empty slot where it would go
+	 */
+	private int findSlot(int noteId) {
+		int mask = this.capacity - 1;
+		int slot = home(noteId, mask);
+		while (this.isUsed(slot)
+				&& this.buffer.getInt(this.position(slot)) != noteId) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Interns a folder list, a new one is saved right away, so the state
+	 * file never points to a list that isn't on disk
+	 */
+	private int getSetId(List<String> folders) throws IOException {
+		Integer id = this.setIds.get(folders);
+		if (id != null) {
+			return id.intValue();
+		}
+		List<String> copy = Collections.unmodifiableList(new ArrayList<String>(
+				folders));
+		this.sets.add(copy);
+		try {
+			this.writeSets();
+		} catch (IOException e) {
+			this.sets.remove(this.sets.size() - 1);
+			throw e;
+		}
+		int newId = this.sets.size() - 1;
+		this.setIds.put(copy, Integer.valueOf(newId));
+		return newId;
+	}
+
+	private boolean isUsed(int slot) {
+		return (this.buffer.getInt(this.position(slot) + 8) & USED) != 0;
+	}
+
+	/**
+	 * Maps the table with the capacity and makes it the current one
+	 */
+	private void map(int capacity) throws IOException {
+		this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+				start(capacity), (long) capacity * SLOT_SIZE);
+		this.capacity = capacity;
+	}
+
+	private int position(int slot) {
+		return slot * SLOT_SIZE;
+	}
+
+	/**
+	 * Grows the table: the bigger table goes behind the current one and
+	 * gets the used slots, only then the header points to it. If we die on
+	 * the way the header still points to the old table, which is complete,
+	 * and the next resize starts the new one over
+	 */
+	private void resize(int newCapacity) throws IOException {
+		if (end(newCapacity) > Integer.MAX_VALUE) {
+			throw new IOException(this.file + " can't grow any further");
+		}
+		// Extending works while the file is mapped, even on Windows
+		this.raf.setLength(end(newCapacity));
+		MappedByteBuffer old = this.buffer;
+		int oldCapacity = this.capacity;
+		try {
+			this.map(newCapacity);
+			// Left overs of an earlier attempt
+			for (int pos = 0; pos < newCapacity * SLOT_SIZE; pos += 4) {
+				this.buffer.putInt(pos, 0);
+			}
+			int mask = newCapacity - 1;
+			for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+				int oldPos = oldSlot * SLOT_SIZE;
+				int flags = old.getInt(oldPos + 8);
+				if ((flags & USED) == 0) {
+					continue;
+				}
+				int noteId = old.getInt(oldPos);
+				int slot = home(noteId, mask);
+				while (this.isUsed(slot)) {
+					slot = (slot + 1) & mask;
+				}
+				int pos = this.position(slot);
+				this.buffer.putInt(pos, noteId);
+				this.buffer.putInt(pos + 4, old.getInt(oldPos + 4));
+				this.buffer.putInt(pos + 8, flags);
+			}
+			this.buffer.force();
+
+			// A single int switches over to the new table
+			this.raf.seek(8);
+			this.raf.writeInt(newCapacity);
+			this.raf.getChannel().force(true);
+		} catch (IOException e) {
+			// Keep going with the old table, the header still points to it
+			this.buffer = old;
+			this.capacity = oldCapacity;
+			throw e;
+		}
+	}
+
+	private static List<List<String>> readSets(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		DataInputStream in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file)), crc));
+		try {
+			if (in.readInt() != SETS_MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file + " is not a folder sets file");
+			}
+			int setCount = in.readInt();
+			List<List<String>> sets = new ArrayList<List<String>>(setCount);
+			for (int i = 0; i < setCount; i++) {
+				int folderCount = in.readInt();
+				List<String> folders = new ArrayList<String>(folderCount);
+				for (int j = 0; j < folderCount; j++) {
+					folders.add(in.readUTF());
+				}
+				sets.add(Collections.unmodifiableList(folders));
+			}
+			int checksum = (int) crc.getValue();
+			if (in.readInt() != checksum) {
+				throw new IOException(file + " is damaged");
+			}
+			return sets;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeSets() throws IOException {
+		File tmpFile = new File(this.setsFile.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmpFile)), crc));
+		try {
+			out.writeInt(SETS_MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(this.sets.size());
+			for (List<String> folders : this.sets) {
+				out.writeInt(folders.size());
+				for (String folder : folders) {
+					out.writeUTF(folder);
+				}
+			}
+			out.flush();
+			out.writeInt((int) crc.getValue());
+		} finally {
+			out.close();
+		}
+		ModelFile.replace(tmpFile, this.setsFile);
+	}
+
+}
@@ -50,6 +50,12 @@ public class Activator extends AbstractUIPlugin {
 	// The SmartFile engine
 	private Engine smartFileEngine = null;
 
+	// Watches the Inbox for new mail
+	private InboxWatchJob inboxWatchJob = null;
+
+	// The only job that runs the processing
+	private ProcessingJob processingJob = null;
+
 	/**
 	 * The constructor
 	 */
@@ -75,6 +81,20 @@ public class Activator extends AbstractUIPlugin {
 		return this.smartFileEngine;
 	}
 
+	public synchronized InboxWatchJob getInboxWatchJob() {
+		if (this.inboxWatchJob == null) {
+			this.inboxWatchJob = new InboxWatchJob();
+		}
+		return this.inboxWatchJob;
+	}
+
+	public synchronized ProcessingJob getProcessingJob() {
+		if (this.processingJob == null) {
+			this.processingJob = new ProcessingJob();
+		}
+		return this.processingJob;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -95,6 +115,14 @@ public class Activator extends AbstractUIPlugin {
 	 * )
 	 */
 	public void stop(BundleContext context) throws Exception {
+		synchronized (this) {
+			if (this.inboxWatchJob != null) {
+				this.inboxWatchJob.cancel();
+			}
+			if (this.processingJob != null) {
+				this.processingJob.cancel();
+			}
+		}
 		plugin = null;
 		super.stop(context);
 	}
@@ -0,0 +1,256 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.util.List;
+
+import lotus.domino.Document;
+import lotus.domino.Item;
+import lotus.domino.MIMEEntity;
+import lotus.domino.NotesException;
+import lotus.domino.RichTextItem;
+import lotus.domino.RichTextNavigator;
+import lotus.domino.RichTextRange;
+import lotus.domino.Session;
+import lotus.domino.Stream;
+
+/**
+ * Reads the text of the fields of a document into a {@link Tokenizer} piece
+ * by piece instead of pulling each field into one String. Rich text is read
+ * paragraph by paragraph, MIME bodies are read line by line from their text
+ * parts without letting Notes convert them to rich text first. Reading stops
+ * when a document has given us as many characters as the budget allows, so a
+ * huge newsletter or a long thread costs no more than a normal mail
+ * 
+ * @author stw
+ * 
+ */
+public class BodyReader {
+
+	// Characters we still take from the current document
+	private int remaining;
+
+	// MIME parts are read through this, created on first use per document
+	private Stream stream;
+
+	// Inside a HTML tag at the end of the last line
+	private boolean inTag;
+
+	/**
+	 * Appends the text of the fields to the tokenizer
+	 * 
+	 * @param doc
+	 *            the document to read
+	 * @param fields
+	 *            the names of the fields
+	 * @param t
+	 *            where the text goes
+	 * @param maxLength
+	 *            the most characters we take from the document
+	 */
+	public void read(Document doc, List<String> fields, Tokenizer t,
+			int maxLength) {
+		this.remaining = maxLength;
+		Session session = null;
+		boolean convertMIME = true;
+		try {
+			// Otherwise Notes converts MIME to rich text when we touch it
+			session = doc.getParentDatabase().getParent();
+			convertMIME = session.isConvertMIME();
+			session.setConvertMIME(false);
+		} catch (NotesException e) {
+			// We read it the old way then
+			session = null;
+		}
+
+		try {
+			for (String fieldName : fields) {
+				if (this.remaining <= 0) {
+					break;
+				}
+				try {
+					this.readField(session, doc, fieldName, t);
+				} catch (NotesException e) {
+					// We don't care if that doesn't work for one element
+				}
+			}
+		} finally {
+			if (this.stream != null) {
+				try {
+					this.stream.close();
+				} catch (NotesException e) {
+					// Recycled below
+				}
+				Utils.shred(this.stream);
+				this.stream = null;
+			}
+			if (session != null) {
+				try {
+					session.setConvertMIME(convertMIME);
+				} catch (NotesException e) {
+					// Nothing we can do
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends a piece of text, or as much of it as the budget allows
+	 */
+	private void append(Tokenizer t, String text) {
+		int len = Math.min(text.length(), this.remaining);
+		if (len > 0) {
+			t.append(text, 0, len);
+			this.remaining -= len;
+		}
+	}
+
+	/**
+	 * Appends a line of HTML without the tags, each tag becomes a space
+	 */
+	private void appendHtml(Tokenizer t, String line) {
+		int len = line.length();
+		int start = 0;
+		for (int i = 0; i < len && this.remaining > 0; i++) {
+			char c = line.charAt(i);
+			if (this.inTag) {
+				if (c == '>') {
+					this.inTag = false;
+					start = i + 1;
+				}
+			} else if (c == '<') {
+				this.appendRun(t, line, start, i);
+				this.inTag = true;
+			}
+		}
+		if (!this.inTag) {
+			this.appendRun(t, line, start, len);
+		}
+	}
+
+	private void appendRun(Tokenizer t, String text, int start, int end) {
+		int len = Math.min(end - start, this.remaining);
+		if (len > 0) {
+			t.append(text, start, start + len);
+			this.remaining -= len;
+		}
+	}
+
+	/**
+	 * @return the first text part of a MIME tree with the given subtype
+	 */
+	private MIMEEntity findTextPart(MIMEEntity root, String subType)
+			throws NotesException {
+		MIMEEntity entity = root;
+		while (entity != null) {
+			if ("text".equalsIgnoreCase(entity.getContentType())
+					&& subType.equalsIgnoreCase(entity.getContentSubType())) {
+				return entity;
+			}
+			entity = entity.getNextEntity();
+		}
+		return null;
+	}
+
+	private void readField(Session session, Document doc, String fieldName,
+			Tokenizer t) throws NotesException {
+		if (!doc.hasItem(fieldName)) {
+			return;
+		}
+		Item item = doc.getFirstItem(fieldName);
+		try {
+			int type = item.getType();
+			if (type == Item.RICHTEXT) {
+				this.readRichText((RichTextItem) item, t);
+			} else if (type == Item.MIME_PART && session != null) {
+				this.readMIME(session, doc, fieldName, t);
+			} else {
+				this.append(t, doc.getItemValueString(fieldName));
+			}
+		} finally {
+			Utils.shred(item);
+		}
+	}
+
+	/**
+	 * Reads the plain text part of a MIME body, or the HTML part without
+	 * the tags when there is no plain text
+	 */
+	private void readMIME(Session session, Document doc, String fieldName,
+			Tokenizer t) throws NotesException {
+		MIMEEntity root = doc.getMIMEEntity(fieldName);
+		if (root == null) {
+			return;
+		}
+		try {
+			boolean html = false;
+			MIMEEntity part = this.findTextPart(root, "plain");
+			if (part == null) {
+				part = this.findTextPart(root, "html");
+				html = true;
+			}
+			if (part == null) {
+				return;
+			}
+
+			if (this.stream == null) {
+				this.stream = session.createStream();
+			} else {
+				this.stream.truncate();
+			}
+			part.getContentAsText(this.stream, true);
+			this.stream.setPosition(0);
+			this.inTag = false;
+			while (this.remaining > 0 && !this.stream.isEOS()) {
+				String line = this.stream.readText(Stream.STMREAD_LINE,
+						Stream.EOL_ANY);
+				if (html) {
+					this.appendHtml(t, line);
+				} else {
+					this.append(t, line);
+				}
+			}
+		} finally {
+			// We only read, nothing to write back
+			doc.closeMIMEEntities(false, fieldName);
+			Utils.shred(root);
+		}
+	}
+
+	private void readRichText(RichTextItem body, Tokenizer t)
+			throws NotesException {
+		RichTextNavigator nav = body.createNavigator();
+		RichTextRange range = body.createRange();
+		try {
+			if (nav.findFirstElement(RichTextItem.RTELEM_TYPE_TEXTPARAGRAPH)) {
+				do {
+					range.setBegin(nav);
+					this.append(t, range.getTextParagraph());
+				} while (this.remaining > 0
+						&& nav.findNextElement(RichTextItem.RTELEM_TYPE_TEXTPARAGRAPH));
+			}
+		} finally {
+			Utils.shred(range, nav);
+		}
+	}
+
+}
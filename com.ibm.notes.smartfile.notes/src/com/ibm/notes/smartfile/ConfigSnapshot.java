@@ -0,0 +1,148 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jface.preference.IPreferenceStore;
+
+/**
+ * The preferences the processing looks at all the time, read and split up
+ * once. A snapshot never changes, {@link Configuration} takes a new one
+ * when a preference changes
+ * 
+ * @author stw
+ * 
+ */
+public class ConfigSnapshot {
+
+	private final String defaultLanguage;
+	private final List<String> excludeList;
+	private final Set<String> excludedFolders;
+	private final boolean ignoreHiddenFolders;
+	private final List<String> fieldsToProcess;
+	private final List<String> fieldsToProcessNoSpaces;
+	private final int maxTextLength;
+	private final long sweepInterval;
+
+	/**
+	 * Reads the preferences
+	 * 
+	 * @param store
+	 */
+	public ConfigSnapshot(IPreferenceStore store) {
+		this.defaultLanguage = store
+				.getString(Configuration.PROPERTY_DEFAULTLANGUAGE);
+		this.excludeList = split(store
+				.getString(Configuration.PROPERTY_FOLDERS_TO_EXCLUDE));
+		this.excludedFolders = Collections
+				.unmodifiableSet(new HashSet<String>(this.excludeList));
+		this.ignoreHiddenFolders = store
+				.getBoolean(Configuration.PROPERTY_EXCLUDE_HIDDENFOLDERS);
+		this.fieldsToProcess = split(store
+				.getString(Configuration.PROPERTY_FIELDS_PROCESS));
+		this.fieldsToProcessNoSpaces = split(store
+				.getString(Configuration.PROPERTY_FIELDS_PROCESS_NOSPACES));
+
+		int maxLength = store.getInt(Configuration.PROPERTY_MAX_TEXT_LENGTH);
+		this.maxTextLength = (maxLength > 0) ? maxLength
+				: Configuration.DEFAULT_MAX_TEXT_LENGTH;
+
+		int hours = store.getInt(Configuration.PROPERTY_SWEEP_HOURS);
+		if (hours <= 0) {
+			hours = Configuration.DEFAULT_SWEEP_HOURS;
+		}
+		this.sweepInterval = hours * 60L * 60L * 1000L;
+	}
+
+	public String getDefaultLanguage() {
+		return this.defaultLanguage;
+	}
+
+	/**
+	 * @return the folders to exclude, read only
+	 */
+	public List<String> getExcludeList() {
+		return this.excludeList;
+	}
+
+	/**
+	 * @return the fields to read, read only
+	 */
+	public List<String> getFieldsToProcess() {
+		return this.fieldsToProcess;
+	}
+
+	/**
+	 * @return the fields to read without spaces, read only
+	 */
+	public List<String> getFieldsToProcessNoSpaces() {
+		return this.fieldsToProcessNoSpaces;
+	}
+
+	public int getMaxTextLength() {
+		return this.maxTextLength;
+	}
+
+	public long getSweepInterval() {
+		return this.sweepInterval;
+	}
+
+	public boolean isIgnoreHiddenFolders() {
+		return this.ignoreHiddenFolders;
+	}
+
+	/**
+	 * @param folderName
+	 * @return true if the folder doesn't go into the model
+	 */
+	public boolean isExcludedFolder(String folderName) {
+		if (((folderName == null) || folderName.equals(""))) {
+			return true;
+		}
+
+		if (this.ignoreHiddenFolders && folderName.indexOf('(') == 0) {
+			return true;
+		}
+
+		return this.excludedFolders.contains(folderName);
+	}
+
+	/**
+	 * Splits a comma separated preference, leaving out empty entries
+	 */
+	private static List<String> split(String value) {
+		List<String> result = new ArrayList<String>();
+		for (String s : value.split(",")) {
+			String trimmed = s.trim();
+			if (trimmed.length() > 0) {
+				result.add(trimmed);
+			}
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+}
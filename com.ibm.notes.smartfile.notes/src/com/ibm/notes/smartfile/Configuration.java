@@ -22,17 +22,16 @@
 package com.ibm.notes.smartfile;
 
 import java.io.File;
-import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 
 import lotus.domino.NotesException;
 import lotus.domino.Session;
 
 import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.jface.util.IPropertyChangeListener;
+import org.eclipse.jface.util.PropertyChangeEvent;
 
 public class Configuration {
 
@@ -40,6 +39,11 @@ public class Configuration {
 	 * Constants used in all of the application
 	 */
 	public static final String PERSISTENCE_FILE_NAME = "smartfile.dat";
+	public static final String INDEX_FILE_NAME = "smartfile.idx";
+	public static final String JOURNAL_FILE_NAME = "smartfile.jnl";
+	public static final String MEMBERSHIP_FILE_NAME = "smartfile.fm";
+	public static final String STATE_FILE_NAME = "smartfile.st";
+	public static final String CHECKED_UNTIL_FILE_NAME = "smartfile.cu";
 	public static final String SMARTFILE_VIEW = "($SmartFileToProcess)";
 	public static final String SMARTFILE_ITEMNAME = "SmartFile";
 	public static final String SMARTFILE_REFNAME = "SmartFileRef";
@@ -56,6 +60,18 @@ public class Configuration {
 	public static final String PROPERTY_EXCLUDE_HIDDENFOLDERS = "excludehiddenfolders";
 	public static final String PROPERTY_MAILFILENAME = "mailfilename";
 	public static final String PROPERTY_ISENDABLED = "isenabled";
+	public static final String PROPERTY_MAX_TEXT_LENGTH = "maxtextlength";
+	public static final String PROPERTY_SWEEP_HOURS = "sweephours";
+
+	/**
+	 * About 100 pages of text, way more than we need to file a mail
+	 */
+	public static final int DEFAULT_MAX_TEXT_LENGTH = 256 * 1024;
+
+	/**
+	 * Once a day we check all documents, not only the modified ones
+	 */
+	public static final int DEFAULT_SWEEP_HOURS = 24;
 
 	/**
 	 * Link to the preference store
@@ -70,7 +86,13 @@ public class Configuration {
 	/**
 	 * Words we don't care for - might be language dependent
 	 */
-	private HashMap<String, List<String>> stopWordList;
+	private HashMap<String, StopWordSet> stopWordList;
+
+	/**
+	 * The preferences the processing needs, split up once. Dropped when a
+	 * preference changes and read again on the next use
+	 */
+	private volatile ConfigSnapshot snapshot = null;
 
 	/**
 	 * Configuration object
@@ -78,6 +100,11 @@ public class Configuration {
 	public Configuration() {
 		// Where all the preferences come from
 		this.store = Activator.getDefault().getPreferenceStore();
+		this.store.addPropertyChangeListener(new IPropertyChangeListener() {
+			public void propertyChange(PropertyChangeEvent event) {
+				Configuration.this.snapshot = null;
+			}
+		});
 
 		// Since the language stopword list is inside the JAR
 		// we hardcode it here
@@ -91,47 +118,35 @@ public class Configuration {
 	}
 
 	public String getDefaultLanguage() {
-		return this.store.getString(Configuration.PROPERTY_DEFAULTLANGUAGE);
+		return this.getSnapshot().getDefaultLanguage();
 	}
 
 	public List<String> getExcludeList() {
-		List<String> excludeList = new ArrayList<String>();
-		String[] folders = this.store.getString(
-				Configuration.PROPERTY_FOLDERS_TO_EXCLUDE).split(",");
-
-		for (String f : folders) {
-			if (f != null && f.trim() != "") {
-				excludeList.add(f.trim());
-			}
-		}
-
-		return excludeList;
+		return this.getSnapshot().getExcludeList();
 	}
 
 	public List<String> getFieldsToProcess() {
-		List<String> fieldsToProcess = new ArrayList<String>();
-		String[] fields = this.store.getString(
-				Configuration.PROPERTY_FIELDS_PROCESS).split(",");
-		for (String f : fields) {
-			if (f != null && f.trim() != "") {
-				fieldsToProcess.add(f.trim());
-			}
-		}
-
-		return fieldsToProcess;
+		return this.getSnapshot().getFieldsToProcess();
 	}
 
 	public List<String> getFieldsToProcessNoSpaces() {
-		List<String> fieldsToProcessNoSpaces = new ArrayList<String>();
-		String[] fields = store.getString(
-				Configuration.PROPERTY_FIELDS_PROCESS_NOSPACES).split(",");
-		for (String f : fields) {
-			if (f != null && f.trim() != "") {
-				fieldsToProcessNoSpaces.add(f.trim());
-			}
-		}
+		return this.getSnapshot().getFieldsToProcessNoSpaces();
+	}
 
-		return fieldsToProcessNoSpaces;
+	/**
+	 * @return how many characters of the fields to process we read per
+	 *         document at most, so huge mails don't stall processing
+	 */
+	public int getMaxTextLength() {
+		return this.getSnapshot().getMaxTextLength();
+	}
+
+	/**
+	 * @return milliseconds between two checks of all documents that need
+	 *         processing, in between only modified documents are checked
+	 */
+	public long getSweepInterval() {
+		return this.getSnapshot().getSweepInterval();
 	}
 
 	public Map<String, String> getLanguages() {
@@ -155,6 +170,18 @@ public class Configuration {
 		return this.store.getString(Configuration.PROPERTY_MAILFILENAME);
 	}
 
+	/**
+	 * @return the preferences as they are now, they don't change any more
+	 */
+	public ConfigSnapshot getSnapshot() {
+		ConfigSnapshot result = this.snapshot;
+		if (result == null) {
+			result = new ConfigSnapshot(this.store);
+			this.snapshot = result;
+		}
+		return result;
+	}
+
 	public String getSmartfilePersistenceFile() {
 		// TODO: check if we need a separator
 		return this.store
@@ -162,8 +189,57 @@ public class Configuration {
 				+ Configuration.PERSISTENCE_FILE_NAME;
 	}
 
+	/**
+	 * @return the file with the model laid out for mapping into memory, the
+	 *         checksum of the model file gets appended to the name
+	 */
+	public String getSmartfileIndexFile() {
+		return this.store
+				.getString(Configuration.PROPERTY_PERSISTENCE_DIRECTORY)
+				+ Configuration.INDEX_FILE_NAME;
+	}
+
+	/**
+	 * @return the journal of what was learned since the model file was saved
+	 */
+	public String getSmartfileJournalFile() {
+		return this.store
+				.getString(Configuration.PROPERTY_PERSISTENCE_DIRECTORY)
+				+ Configuration.JOURNAL_FILE_NAME;
+	}
+
+	/**
+	 * @return which documents were in which folder at the end of the last
+	 *         cycle
+	 */
+	public String getSmartfileMembershipFile() {
+		return this.store
+				.getString(Configuration.PROPERTY_PERSISTENCE_DIRECTORY)
+				+ Configuration.MEMBERSHIP_FILE_NAME;
+	}
+
+	/**
+	 * @return until when modified documents have been checked for changes
+	 */
+	public String getSmartfileCheckedUntilFile() {
+		return this.store
+				.getString(Configuration.PROPERTY_PERSISTENCE_DIRECTORY)
+				+ Configuration.CHECKED_UNTIL_FILE_NAME;
+	}
+
+	/**
+	 * @return where we keep track of the folders and suggestions of each
+	 *         document
+	 */
+	public String getSmartfileStateFile() {
+		return this.store
+				.getString(Configuration.PROPERTY_PERSISTENCE_DIRECTORY)
+				+ Configuration.STATE_FILE_NAME;
+	}
+
 	public List<String> getStopWordList(String language) {
-		return stopWordList.get(language);
+		StopWordSet stopWords = stopWordList.get(language);
+		return (stopWords == null) ? null : stopWords.toList();
 	}
 
 	/**
@@ -182,21 +258,11 @@ public class Configuration {
 	 * @return
 	 */
 	public boolean isExcludedFolder(String folderName) {
-		if (((folderName == null) || folderName.equals(""))) {
-			return true;
-		}
-
-		if (this.isIgnoreHiddenFolders() && folderName.indexOf('(') == 0) {
-			return true;
-		}
-
-		return this.getExcludeList().contains(folderName);
-
+		return this.getSnapshot().isExcludedFolder(folderName);
 	}
 
 	public boolean isIgnoreHiddenFolders() {
-		return this.store
-				.getBoolean(Configuration.PROPERTY_EXCLUDE_HIDDENFOLDERS);
+		return this.getSnapshot().isIgnoreHiddenFolders();
 	}
 
 	public boolean isPersistInMailFile() {
@@ -212,6 +278,23 @@ public class Configuration {
 		return this.isStopWord(theWord, this.getDefaultLanguage());
 	}
 
+	/**
+	 * Returns if a word given as characters in a buffer is in the stopword
+	 * list in the given language
+	 * 
+	 * @param buf
+	 * @param off
+	 *            start of the word in buf
+	 * @param len
+	 *            length of the word
+	 * @param language
+	 * @return
+	 */
+	public boolean isStopWord(char[] buf, int off, int len, String language) {
+		StopWordSet stopWords = this.getStopWords(language);
+		return stopWords != null && stopWords.contains(buf, off, len);
+	}
+
 	/**
 	 * Returns if a word is in the stopword list in the given language
 	 * 
@@ -220,44 +303,26 @@ public class Configuration {
 	 * @return
 	 */
 	public boolean isStopWord(String theWord, String language) {
-		if (language == null) {
-			language = this.getDefaultLanguage();
-		}
-		if (!this.stopWordList.containsKey(language)) {
-			return false;
-		}
-		return this.stopWordList.get(language).contains(theWord);
+		StopWordSet stopWords = this.getStopWords(language);
+		return stopWords != null && stopWords.contains(theWord);
+	}
+
+	private StopWordSet getStopWords(String language) {
+		return this.stopWordList.get((language == null) ? this.getDefaultLanguage()
+				: language);
 	}
 
 	private void loadStopWordList() {
 		if (this.stopWordList == null) {
-			this.stopWordList = new HashMap<String, List<String>>();
+			this.stopWordList = new HashMap<String, StopWordSet>();
 		}
 
-		// Read one stopword list per language
+		// One stopword list per language, loaded once and shared
 		for (Map.Entry<String, String> langEntry : this.languages.entrySet()) {
 			String curLanguage = langEntry.getKey();
-			InputStream in = this.getClass().getResourceAsStream(
-					"stopwords_" + curLanguage + ".txt");
-			if (in != null) {
-				Scanner s = new Scanner(in);
-				ArrayList<String> newStopWords = new ArrayList<String>();
-				while (s.hasNextLine()) {
-					String curLine = s.nextLine().trim();
-					// Comment lines begin with #
-					if (!curLine.startsWith("#")) {
-						// Inline comments begin with # after the word
-						if (curLine.indexOf("#") > 0) {
-							curLine = curLine.substring(0,
-									(curLine.indexOf("#") - 1)).trim();
-						}
-						// make sure we don't have empty lines as stopwords
-						if (!curLine.equals("")) {
-							newStopWords.add(curLine);
-						}
-					}
-				}
-				this.stopWordList.put(curLanguage, newStopWords);
+			StopWordSet stopWords = StopWordSet.forLanguage(curLanguage);
+			if (stopWords != null) {
+				this.stopWordList.put(curLanguage, stopWords);
 			}
 		}
 	}
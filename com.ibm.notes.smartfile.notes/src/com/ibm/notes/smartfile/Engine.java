@@ -35,23 +35,23 @@
  * ========================================================================== */
 package com.ibm.notes.smartfile;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.Vector;
 
 import lotus.domino.Database;
+import lotus.domino.DateTime;
 import lotus.domino.Document;
+import lotus.domino.DocumentCollection;
 import lotus.domino.NotesException;
 import lotus.domino.Session;
 import lotus.domino.View;
@@ -60,6 +60,7 @@ import lotus.domino.ViewNavigator;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.core.runtime.Status;
 
 /**
@@ -70,34 +71,89 @@ import org.eclipse.core.runtime.Status;
  */
 public class Engine {
 
+	/**
+	 * The journal gets folded into the model file when it is bigger than
+	 * this or a quarter of the model file, whichever is bigger
+	 */
+	private static final long MIN_COMPACTION_SIZE = 256 * 1024;
+
 	// The number of folders in the database including their UNID
 	// Key = FolderName, Value = UNID
 	private HashMap<String, String> folderList = new HashMap<String, String>();
 	// Key = UNID, Value = FolderName
 	private HashMap<String, String> folderRef = new HashMap<String, String>();
 
-	// A two dimensional HashMap where word -> (folder name -> tf)
-	// "tf" = term frequency = word count
-	private HashMap<String, HashMap<String, Double>> wordCounts = new HashMap<String, HashMap<String, Double>>();
-
-	// A one dimensional HashMap where word -> idf
-	// "idf" = inverse document frequency = log(total_number_of folders /
-	// number_of_folders_that_contain_this_word)
-	private HashMap<String, Double> wordIDFs = new HashMap<String, Double>();
+	// All folders of the mail file, kept between the cycles
+	private final FolderCatalog folderCatalog = new FolderCatalog();
+
+	// The vector space model: word counts per folder plus the idf, tf * idf
+	// and folder vector lengths derived from them
+	private VectorModel model = new VectorModel();
+
+	// The saved model mapped from the index file, used for suggestions until
+	// learning needs the full model
+	private MappedModel mappedModel = null;
+
+	// What suggestions are made from: the mapped index or a snapshot of the
+	// model taken after refeshWords(). A published model never changes, so
+	// any thread can score against it without a lock while learning goes on
+	// in this.model
+	private volatile ScoringModel publishedModel = null;
+
+	// Scores documents against the model, one per thread as it keeps its
+	// buffers between documents
+	private final ThreadLocal<FolderScorer> scorers = new ThreadLocal<FolderScorer>() {
+		@Override
+		protected FolderScorer initialValue() {
+			return new FolderScorer();
+		}
+	};
 
-	// A two dimensional HashMap where word -> (folder name -> tf * idf)
-	private HashMap<String, HashMap<String, Double>> wordTFIDFs = new HashMap<String, HashMap<String, Double>>();
+	// What learning changed since the model file was saved
+	private LearningJournal journal = null;
 
-	// A one dimensional HashMap where folder name -> vector length
-	// "vector length" = sqrt( tf*idf[1]^2 + tf*idf[2]^2 + ... + tf*idf[n]^2 )
-	// for each folder ("^2" means "squared")
-	private HashMap<String, Double> wordVectorLengths = new HashMap<String, Double>();
+	// Writes the model file in the background
+	private ModelSaveJob saveJob = null;
 
 	/**
 	 * Track if the model database has been loaded
 	 */
 	private boolean modelLoaded = false;
 
+	/**
+	 * When we last went through all documents that need processing. A start
+	 * that finds the folder membership or the check time of the last session
+	 * waits a full interval
+	 */
+	private long lastSweep = System.currentTimeMillis();
+
+	/**
+	 * Documents modified before that have been checked for changes, read
+	 * from its file on first use. Without a folder membership snapshot to
+	 * compare with, only the documents modified since then are checked
+	 */
+	private Date changesCheckedUntil = null;
+	private boolean changesCheckedUntilRead = false;
+
+	/**
+	 * Which documents were in which folder at the end of the last cycle,
+	 * read from its file on first use, so a restart diffs against the last
+	 * session
+	 */
+	private FolderMembership folderMembership = null;
+	private boolean folderMembershipRead = false;
+
+	/**
+	 * The folders and suggestions of each document, opened on first use
+	 */
+	private StateStore stateStore = null;
+
+	/**
+	 * Counts the words of the documents learn() picked and moves them in the
+	 * model, open while a cycle learns
+	 */
+	private WordPipeline<FolderMove> learning = null;
+
 	/**
 	 * The settings from the preferences
 	 */
@@ -113,35 +169,39 @@ public class Engine {
 	}
 
 	/**
-	 * Save it into the Eclipse directory?
+	 * Save it into the Eclipse directory? The model file gets written in the
+	 * background from a snapshot of the model, taking the snapshot only
+	 * copies a few arrays. Learning goes on in the meantime
 	 */
 	public void save() {
+		// Persist the vector model, and other values
+		// goes into the workspace directory for the file
+		this.getSaveJob().publish(this.model.snapshot(),
+				this.getFolderTable(), this.getJournal().position());
+	}
 
-		OutputStream out;
-		try {
-			out = new FileOutputStream(
-					this.config.getSmartfilePersistenceFile());
-			// Persist the vector model, and other values
-			// goes into the workspace directory for the file
-			ObjectOutputStream oos = new ObjectOutputStream(out);
-			oos.writeObject(folderList);
-			oos.writeObject(wordCounts);
-			oos.writeObject(wordIDFs);
-			oos.writeObject(wordTFIDFs);
-			oos.writeObject(wordVectorLengths);
-			oos.close();
-			out.close();
-		} catch (IOException e) {
-			// We don't consider the model to be loaded if something fails here
-			Utils.logError(e.getMessage(), e);
-
-			// We don't consider the model to be loaded if something fails here
-			this.modelLoaded = false;
-
+	/**
+	 * Finds the folders that match a document best. Reads the last published
+	 * model without a lock, so any thread can call this, also while a cycle
+	 * is learning
+	 * 
+	 * @param tf
+	 *            the word counts of the document
+	 * @return up to three folder names, best first, empty if there is no
+	 *         model yet
+	 */
+	public List<String> suggestFolders(TermCounter tf) {
+		List<String> result = new ArrayList<String>(FolderScorer.TOP_FOLDERS);
+		ScoringModel scoringModel = this.publishedModel;
+		if (scoringModel == null) {
+			return result;
 		}
-
-		return;
-
+		FolderScorer scorer = this.scorers.get();
+		int found = scorer.score(scoringModel, tf);
+		for (int i = 0; i < found; i++) {
+			result.add(scoringModel.getFolderName(scorer.getTopFolder(i)));
+		}
+		return result;
 	}
 
 	/**
@@ -152,7 +212,8 @@ public class Engine {
 	 * @param s
 	 * @param monitor
 	 */
-	public IStatus scheduledProcessing(Session s, IProgressMonitor monitor) {
+	public synchronized IStatus scheduledProcessing(Session s,
+			IProgressMonitor monitor) {
 
 		IStatus result = null;
 		Database mail = null;
@@ -160,7 +221,11 @@ public class Engine {
 		ViewEntry ve = null;
 		ViewEntry ven = null;
 		Document doc = null;
+		Document nextDoc = null;
 		ViewNavigator n = null;
+		DocumentCollection dc = null;
+		DateTime since = null;
+		DateTime until = null;
 
 		Configuration config = Activator.getDefault().getConfig();
 
@@ -204,57 +269,116 @@ public class Engine {
 			// and "learn" from those files
 			boolean learned = false;
 
-			v = mail.getView(Configuration.SMARTFILE_VIEW);
-			n = v.createViewNav();
-			ve = n.getFirstDocument();
+			// Anything modified after this is picked up next time
+			until = mail.getLastModified();
 
-			while (ve != null) {
-				ven = n.getNextDocument();
-				doc = ve.getDocument();
+			// Which documents are in which folder, read from the folder
+			// entries without opening a document
+			HashMap<String, String> newFolderList = new HashMap<String, String>();
+			HashMap<String, String> newFolderRef = new HashMap<String, String>();
+			List<View> allViews = this.getFoldersFromDB(mail, newFolderList,
+					newFolderRef);
+			FolderMembership membership;
+			try {
+				membership = FolderMembership.scan(allViews);
+			} finally {
+				for (View v2 : allViews) {
+					Utils.shred(v2);
+				}
+			}
+			FolderMembership previous = this.getFolderMembership();
+			Date checkedUntil = (previous == null) ? this
+					.getChangesCheckedUntil() : null;
+
+			if ((previous == null && checkedUntil == null)
+					|| this.isSweepDue()) {
+				// Without anything to start from, and once in a while in
+				// case we missed a change, we go through all documents the
+				// SmartFile view lists
+				v = mail.getView(Configuration.SMARTFILE_VIEW);
+				n = v.createViewNav();
+				ve = n.getFirstDocument();
+
+				while (ve != null) {
+					ven = n.getNextDocument();
+					doc = ve.getDocument();
+
+					learned = this.checkOneDocumentForChanges(mail, doc,
+							learned, monitor);
 
-				learned = this.checkOneDocumentForChanges(doc, learned);
+					doc.recycle();
+					ve.recycle();
+					ve = ven;
+				}
+				this.lastSweep = System.currentTimeMillis();
+			} else if (previous == null) {
+				// No snapshot to compare with, e.g. its file was damaged.
+				// Filing a document changes its $FolderRef, so only
+				// documents modified since the last check can have moved
+				since = s.createDateTime(checkedUntil);
+				dc = mail.getModifiedDocuments(since, Database.DBMOD_DOC_DATA);
+
+				doc = dc.getFirstDocument();
+				while (doc != null) {
+					nextDoc = dc.getNextDocument(doc);
 
-				doc.recycle();
-				ve.recycle();
-				ve = ven;
+					learned = this.checkOneDocumentForChanges(mail, doc,
+							learned, monitor);
+
+					doc.recycle();
+					doc = nextDoc;
+				}
+			} else {
+				// Only documents that were put into or taken out of a
+				// folder since the last cycle can have something to learn
+				for (int noteId : membership.changedSince(previous)) {
+					try {
+						doc = mail.getDocumentByID(Integer.toHexString(noteId));
+					} catch (NotesException e) {
+						// Deleted in the meantime
+						doc = null;
+					}
+					if (doc != null) {
+						learned = this.checkOneDocumentForChanges(mail, doc,
+								learned, monitor);
+						doc.recycle();
+					}
+				}
 			}
+			this.getStateStore().flush();
+
+			// Everything learned has to be in the model before we go on
+			this.finishLearning();
+
+			// Only now the changes count as handled, if we die before the
+			// next start compares with the last snapshot again
+			this.setFolderMembership(membership, until.toJavaDate());
 
 			boolean foldersChanged = false;
 			if (!learned) {
 				// We check folders only if we don't have to rebuild yet
 				// Check the folder structure. If a folder has been deleted,
 				// delete it from wordCounts
-				HashMap<String, String> newFolderList = new HashMap<String, String>();
-				HashMap<String, String> newFolderRef = new HashMap<String, String>();
-				List<View> allViews = this.getFoldersFromDB(mail,
-						newFolderList, newFolderRef);
-
-				// We don't need the views we are only interested in the
-				// newFolderList
-				for (View v2 : allViews) {
-					Utils.shred(v2);
-				}
-
-				for (Map.Entry<String, String> oldFolder : this.folderList
-						.entrySet()) {
-					if (newFolderList.containsKey(oldFolder.getKey())) {
-						newFolderList.remove(oldFolder.getKey());
-					} else {
-						foldersChanged = true;
-						break;
-					}
-				}
-
-				if (newFolderList.size() > 0) {
-					foldersChanged = true;
-				}
+				foldersChanged = this.isFolderListChanged(newFolderRef);
 			}
 
 			if (learned || foldersChanged) {
+				engine.loadFullModel(mail, monitor);
+				if (foldersChanged) {
+					// Loading restored the folder table of the model file.
+					// Otherwise every cycle finds the same change again, and
+					// the table saved below has to match the folders
+					this.folderList = newFolderList;
+					this.folderRef = newFolderRef;
+				}
 				// Build that sums again, rumbles through a lot
 				// of linked lists
 				this.refeshWords(monitor);
-				this.save();
+				// learn() put its changes in the journal already, the model
+				// file is only written when the journal got too big
+				if (foldersChanged || this.needsCompaction()) {
+					this.save();
+				}
 			}
 
 			// If we got here everything worked
@@ -263,158 +387,19 @@ public class Engine {
 		} catch (NotesException ne) {
 			Utils.logError(ne);
 			result = Status.CANCEL_STATUS;
+		} catch (IOException e) {
+			Utils.logError(e);
+			result = Status.CANCEL_STATUS;
 		} finally {
 			// Cleanup
-			Utils.shred(v, mail, ve, ven, doc, n);
+			this.finishLearning();
+			Utils.shred(v, ve, ven, doc, nextDoc, n, dc, since, until, mail);
 		}
 
 		return result;
 
 	}
 
-	/**
-	 * Adds the values of the second hash map to the first one if keys exist,
-	 * the value gets incremented, if keys not exist they get added
-	 * 
-	 * @param result
-	 *            the merged/added hashmap
-	 * @param newVals
-	 *            the hashmap with values to be added
-	 */
-	private void addHashMapValues(HashMap<String, Double> result,
-			HashMap<String, Double> newVals) {
-
-		for (Map.Entry<String, Double> newEntry : newVals.entrySet()) {
-			String curKey = newEntry.getKey();
-			Double curVal = newEntry.getValue();
-			if (result.containsKey(curKey)) {
-				Double oldVal = result.get(curKey);
-				Double newVal = new Double(curVal.doubleValue()
-						+ oldVal.doubleValue());
-				result.put(curKey, newVal);
-			} else {
-				result.put(curKey, curVal);
-			}
-		}
-	}
-
-	/*************************************************************************************************
-	 * c a l c u l a t e I D F s
-	 **************************************************************************************************/
-
-	// Do the term weighting calculations for each word and return them as a one
-	// dimensional HashMap
-	private HashMap<String, Double> calculateIDFs(
-			HashMap<String, HashMap<String, Double>> wordCounts,
-			IProgressMonitor monitor) {
-
-		monitor.subTask("calcuate IDFs");
-
-		HashMap<String, Double> idfmap = new HashMap<String, Double>();
-
-		for (Map.Entry<String, HashMap<String, Double>> me : wordCounts
-				.entrySet()) {
-			String curKey = me.getKey();
-			HashMap<String, Double> tmpmap = me.getValue();
-
-			// Get the number of folders that contain this word
-			int df = tmpmap.size();
-
-			// TODO: how does the folderlist get populated?
-			// Calculate the IDF (inverse document frequency) for this word
-			double idf = Math
-					.log((double) this.folderList.size() / (double) df);
-
-			// Store it in the HashMap
-			idfmap.put(curKey, new Double(idf));
-
-		}
-
-		// TODO: better process monitor
-		monitor.internalWorked(10);
-
-		return idfmap;
-	}
-
-	/*************************************************************************************************
-	 * c a l c u l a t e T F I D F s
-	 **************************************************************************************************/
-
-	// For each word, in each folder, calculate tf*idf and return a two
-	// dimensional HashMap
-	// where word -> (folder -> tf*idf)
-	private HashMap<String, HashMap<String, Double>> calculateTFIDFs(
-			HashMap<String, HashMap<String, Double>> wordCounts,
-			HashMap<String, Double> wordIDFs, IProgressMonitor monitor) {
-		HashMap<String, HashMap<String, Double>> tfidfmap = new HashMap<String, HashMap<String, Double>>();
-
-		monitor.subTask("calculate TFIDs");
-
-		for (Map.Entry<String, HashMap<String, Double>> me : wordCounts
-				.entrySet()) {
-			// Map Entries
-			String curKey = me.getKey();
-			HashMap<String, Double> tmpmap = me.getValue();
-			// X-REF
-			Double idf = wordIDFs.get(curKey);
-			HashMap<String, Double> newmap = new HashMap<String, Double>();
-			for (Map.Entry<String, Double> me2 : tmpmap.entrySet()) {
-				String key2 = me2.getKey();
-				Double count = me2.getValue();
-				double tfidf = count.doubleValue() * idf.doubleValue();
-				newmap.put(key2, new Double(tfidf));
-			}
-			tfidfmap.put(curKey, newmap);
-		}
-		// TODO: better process monitor
-		monitor.internalWorked(10);
-
-		return tfidfmap;
-	}
-
-	/*************************************************************************************************
-	 * c a l c u l a t e V e c t o r L e n g t h s
-	 **************************************************************************************************/
-
-	// Calculate the vector length for each folder
-	private HashMap<String, Double> calculateVectorLengths(
-			HashMap<String, HashMap<String, Double>> wordTFIDFs,
-			IProgressMonitor monitor) {
-
-		monitor.subTask("calculate Vector length");
-
-		HashMap<String, Double> vectorLengths = new HashMap<String, Double>();
-
-		for (Map.Entry<String, HashMap<String, Double>> me : wordTFIDFs
-				.entrySet()) {
-			HashMap<String, Double> tmpmap = me.getValue();
-
-			for (Map.Entry<String, Double> me2 : tmpmap.entrySet()) {
-				String key2 = me2.getKey();
-				double tfidf = me2.getValue().doubleValue();
-				if (vectorLengths.containsKey(key2)) {
-					double accum = vectorLengths.get(key2).doubleValue();
-					accum += (tfidf * tfidf);
-					vectorLengths.put(key2, new Double(accum));
-				} else {
-					vectorLengths.put(key2, new Double(tfidf * tfidf));
-				}
-			}
-		}
-
-		// Calculate the square root of the sum of the squares for each folder,
-		// this is the vector length for the folder.
-		HashMap<String, Double> newmap = new HashMap<String, Double>();
-		for (Map.Entry<String, Double> me : vectorLengths.entrySet()) {
-			String curKey = me.getKey();
-			double curVal = me.getValue().doubleValue();
-			newmap.put(curKey, new Double(Math.sqrt(curVal)));
-		}
-		// TODO: better process monitor
-		monitor.internalWorked(10);
-		return newmap;
-	}
-
 	/**
 	 * Checks the preconditions for a given database To work and for performance
 	 * we watch out for - Folder Reference enabled - View that compares the
@@ -470,65 +455,69 @@ public class Engine {
 
 	}
 
-	private boolean checkOneDocumentForChanges(Document doc, boolean oldStatus) {
+	private boolean checkOneDocumentForChanges(Database db, Document doc,
+			boolean oldStatus, IProgressMonitor monitor) {
 		boolean result = false;
 
 		// Learn from unprocessed files located in other folders
 		// (probably recently moved into those folders)
 		try {
 
-			// Leave deleted documents alone
+			// Forget deleted documents
 			if (doc.isDeleted()) {
+				this.getStateStore().remove(StateStore.noteId(doc.getNoteID()));
 				return oldStatus;
 			}
 
 			// Get list of folders this document belongs to
-			@SuppressWarnings("rawtypes")
-			Vector refs = doc.getFolderReferences();
+			List<String> refs = toFolderNames(doc.getFolderReferences());
+
+			StateStore store = this.getStateStore();
+			int noteId = this.lookUpState(doc);
+			List<String> seenFolders = store.getFolders(noteId);
 
 			// If it's a document we've seen before
-			if (doc.hasItem(Configuration.SMARTFILE_ITEMNAME)) {
-				// Get the list of folders we think it's
-				// supposed to be in
-				@SuppressWarnings("rawtypes")
-				Vector myFlag = doc
-						.getItemValue(Configuration.SMARTFILE_ITEMNAME);
-
-				// If it still has its SFLabels field set or
+			if (seenFolders != null) {
+				boolean processed = store.isProcessed(noteId);
+
+				// If it still has our suggestions or
 				// it it isn't where we think it is
-				if ((doc.getItemValueString(Configuration.SFLABELS_FIELD)
-						.length() != 0) || (!myFlag.equals(refs))) {
-					// Learn from this document
-					result = this.learn(doc);
+				if (processed || !seenFolders.equals(refs)) {
+					// Learn from this document, that needs the full model,
+					// the mapped one is read only
+					this.loadFullModel(db, monitor);
+					result = this.learn(doc, seenFolders, refs, processed);
 					if (result) {
 						Utils.logInfo("\tLearning from document: \""
 								+ doc.getUniversalID() + " - "
 								+ doc.getItemValueString("Subject") + "\"");
-						// Clear the SFLabel_ fields to flag
-						// the fact that we've processed
-						// this file
-						doc.replaceItemValue(Configuration.SFLABELS_FIELD, "");
-						// TODO: externalise string
-						doc.replaceItemValue("SFLabel1", "");
-						doc.replaceItemValue("SFLabel2", "");
-						doc.replaceItemValue("SFLabel3", "");
-						// Set SmartFile field to the
-						// current folder(s) so that we can
+						if (processed) {
+							// Clear the SFLabel_ fields, the user has
+							// decided where the document goes
+							doc.replaceItemValue(Configuration.SFLABELS_FIELD,
+									"");
+							// TODO: externalise string
+							doc.replaceItemValue("SFLabel1", "");
+							doc.replaceItemValue("SFLabel2", "");
+							doc.replaceItemValue("SFLabel3", "");
+							doc.save();
+						}
+						// Remember the current folder(s) so that we can
 						// recognize changes later.
-						doc.replaceItemValue("SmartFile", refs);
-						doc.save();
+						store.put(noteId, refs, false);
 					}
 				}
 			} else {
-				// Record where the document is
-				// currently located
-				doc.replaceItemValue(Configuration.SMARTFILE_ITEMNAME, refs);
-				doc.save();
+				// Record where the document is currently located, the
+				// document itself stays untouched
+				store.put(noteId, refs, false);
 			}
 
 		} catch (NotesException e) {
 			// TODO: more detailed error handling - see original code
 			Utils.logError(e);
+		} catch (IOException e) {
+			Utils.logError(e);
 		}
 
 		// Trap door boolean. if Oldstatus was true, it must be true in any case
@@ -544,84 +533,28 @@ public class Engine {
 	// Count all the words in each of the folders we care about and return those
 	// the folders are provided as a List, so selection of folders needs to
 	// happen outside this function!
-	// counts in a two dimensional HashMap
-	// where word -> (folder name -> tf)
+	// counts in a VectorModel
+	// where word -> (folder -> tf)
 	// tf = term frequesncy = word count
-	private HashMap<String, HashMap<String, Double>> countWordsInDatabase(
-			List<View> views, Database db, IProgressMonitor monitor) {
-
-		// Holds the result for the word count
-		HashMap<String, HashMap<String, Double>> totalCounts = new HashMap<String, HashMap<String, Double>>();
+	private VectorModel countWordsInDatabase(List<View> views, Database db,
+			IProgressMonitor monitor) {
 
 		// Holds all the document that don't have a folder reference yet (should
 		// be empty after the
 		// first run and the folderreference activation
-		// UNID -> Foldernames
+		// NoteID -> Foldernames
 		HashMap<String, List<String>> docsWithoutFolderRef = new HashMap<String, List<String>>();
 
-		Document doc = null;
-		Document nextDoc = null;
-
-		for (View v : views) {
-			try {
-				monitor.subTask("Processing " + v.getName());
-
-				HashMap<String, Double> folderCount = new HashMap<String, Double>();
-
-				// We need the docs, so we can skip the viewentrycollection
-				doc = v.getFirstDocument();
-
-				while (doc != null) {
-					nextDoc = v.getNextDocument(doc);
-
-					HashMap<String, Double> docCount = this
-							.extractWordsFromDocument(doc);
-					this.addHashMapValues(folderCount, docCount);
-
-					// We need to process this document later on
-					// We only can do that after all the folders have
-					// been processed since we would not catch if it was
-					// in a second folder
-					if (!doc.hasItem(Configuration.FOLDER_REF)) {
-						List<String> docFolders;
-						String unid = doc.getUniversalID();
-						if (!docsWithoutFolderRef.containsKey(unid)) {
-							docFolders = new ArrayList<String>();
-						} else {
-							docFolders = docsWithoutFolderRef.get(unid);
-						}
-						docFolders.add(v.getName());
-						docsWithoutFolderRef.put(unid, docFolders);
-					}
-
-					Utils.shred(doc);
-					doc = nextDoc;
-				}
-
-				for (Map.Entry<String, Double> folderEntry : folderCount
-						.entrySet()) {
-					String curKey = folderEntry.getKey();
-					HashMap<String, Double> curMap = null;
-
-					if (totalCounts.containsKey(curKey)) {
-						curMap = totalCounts.get(curKey);
-					} else {
-						curMap = new HashMap<String, Double>();
-					}
-					// Capture that this folder contains this word
-					curMap.put(v.getName(), folderEntry.getValue());
-					totalCounts.put(curKey, curMap);
-				}
-
-			} catch (NotesException e) {
-				Utils.logError(e.id + " " + e.text, e);
-			}
-
-			// Update the process monitor
-			monitor.internalWorked(1);
-
+		// Holds the result for the word count
+		VectorModel totalCounts = this.countWordsInParallel(views, db,
+				monitor, docsWithoutFolderRef);
+		if (totalCounts == null) {
+			totalCounts = this.countWordsOnThisThread(views, monitor,
+					docsWithoutFolderRef);
 		}
 
+		Document doc = null;
+
 		// We have 20 working units for the move to folder
 		// so we report when dCount / processChunks = 0
 		int dCount = docsWithoutFolderRef.size();
@@ -632,10 +565,10 @@ public class Engine {
 		// $FolderRef for the missing documents
 		for (Map.Entry<String, List<String>> curDocEntry : docsWithoutFolderRef
 				.entrySet()) {
-			String unid = curDocEntry.getKey();
+			String noteId = curDocEntry.getKey();
 			List<String> folders2Move = curDocEntry.getValue();
 			try {
-				doc = db.getDocumentByUNID(unid);
+				doc = db.getDocumentByID(noteId);
 				for (String f : folders2Move) {
 					doc.putInFolder(f);
 				}
@@ -656,52 +589,301 @@ public class Engine {
 
 		}
 
+		// Rows don't grow any further until the next learning cycle
+		totalCounts.trimToSize();
+
 		return totalCounts;
 	}
 
 	/**
-	 * Takes a document and counts all the words except the words in the
-	 * Stopword list. Returns a hashmap with the words as keys and the count of
-	 * each word as value. This is the base to compute proximity
+	 * Counts the words in all folders on several Notes threads, see
+	 * {@link ParallelCounter}
 	 * 
-	 * @param doc
-	 *            the document to be processed
-	 * @return HashMap with Word -> CountInDocument
+	 * @return the counts or null if that didn't work out, the caller counts
+	 *         on its own then
+	 */
+	private VectorModel countWordsInParallel(List<View> views, Database db,
+			IProgressMonitor monitor,
+			Map<String, List<String>> docsWithoutFolderRef) {
+		int workerCount = ParallelCounter.defaultWorkerCount();
+		if (workerCount < 2) {
+			return null;
+		}
+		try {
+			ParallelCounter counter = new ParallelCounter(this.config, db,
+					views, workerCount);
+			Utils.logInfo("\tCounting words in " + views.size()
+					+ " folders on " + workerCount + " threads");
+			monitor.subTask("Processing " + views.size() + " folders");
+			counter.start();
+
+			// One unit of work per view, like counting on one thread
+			int reported = 0;
+			while (!counter.await(500)) {
+				int done = (counter.getChunkCount() == 0) ? 0 : counter
+						.getChunksDone()
+						* views.size()
+						/ counter.getChunkCount();
+				monitor.worked(done - reported);
+				reported = done;
+			}
+			VectorModel result = counter.getResult();
+			monitor.worked(views.size() - reported);
+
+			for (Map.Entry<Integer, List<String>> me : counter
+					.getDocumentsWithoutFolderRef().entrySet()) {
+				docsWithoutFolderRef.put(Integer.toHexString(me.getKey()),
+						me.getValue());
+			}
+			return result;
+		} catch (NotesException e) {
+			Utils.logWarning("\tCounting words on several threads failed, counting on one: "
+					+ e.id + " " + e.text);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Utils.logWarning("\tInterrupted while counting words on several threads");
+		}
+		return null;
+	}
+
+	/**
+	 * Counts the words in all folders, reading one document after the other
+	 * on this thread. The counting happens in a {@link WordPipeline}, so the
+	 * next document is read while the last one is counted
 	 */
-	private HashMap<String, Double> extractWordsFromDocument(Document doc) {
-		// Count the words in this document,
-		// adding those to the wordCounts HashMap
-		HashMap<String, Double> tf = new HashMap<String, Double>();
-
-		String language = this.getLanguageFromDocument(doc);
-
-		Scanner s = getScannerFromDocument(doc);
-
-		while (s.hasNext()) {
-			String w = s.next().toLowerCase();
-			w = w.replaceAll("\\W*$", ""); // remove trailing non-word
-			// characters
-			w = w.replaceAll("^\\W*", ""); // remove leading non-word
-			// characters
-			w = w.trim(); // remove leading and trailing whitespace
-			if ((w.length() > 1) && (!config.isStopWord(w, language))) {
-				if (tf.containsKey(w)) {
-					Double ctr = tf.get(w);
-					ctr = new Double(ctr.doubleValue() + 1);
-					tf.put(w, ctr);
-				} else {
-					tf.put(w, new Double(1));
+	private VectorModel countWordsOnThisThread(List<View> views,
+			IProgressMonitor monitor,
+			Map<String, List<String>> docsWithoutFolderRef) {
+
+		final VectorModel totalCounts = new VectorModel();
+
+		// All folders go in first, once documents are submitted the model
+		// belongs to the aggregator thread of the pipeline
+		int[] folderIds = new int[views.size()];
+		for (int i = 0; i < views.size(); i++) {
+			try {
+				folderIds[i] = totalCounts.addFolder(views.get(i).getName());
+			} catch (NotesException e) {
+				Utils.logError(e.id + " " + e.text, e);
+				folderIds[i] = -1;
+			}
+		}
+
+		WordPipeline<Integer> pipeline = new WordPipeline<Integer>(
+				this.config, WordPipeline.defaultWorkerCount(),
+				new WordPipeline.Sink<Integer>() {
+					public void add(TermCounter tf, Integer folderId) {
+						totalCounts.addDocument(tf, folderId.intValue());
+					}
+				});
+
+		try {
+			try {
+				for (int i = 0; i < views.size(); i++) {
+					if (folderIds[i] >= 0) {
+						this.submitFolder(views.get(i), folderIds[i],
+								pipeline, monitor, docsWithoutFolderRef);
+					}
+
+					// Update the process monitor
+					monitor.internalWorked(1);
 				}
+			} finally {
+				// Wait for the last counts, the threads end either way
+				pipeline.finish();
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Utils.logError("Interrupted while counting words", e);
 		}
 
-		return tf;
+		return totalCounts;
+	}
+
+	/**
+	 * Turns the word -> (folder name -> tf) HashMap of a model file written
+	 * before we had the VectorModel into a VectorModel
+	 * 
+	 * @param wordCounts
+	 *            the old word counts
+	 * @return the model with the counts, idf etc. still need to be calculated
+	 */
+	private VectorModel convertWordCounts(
+			HashMap<String, HashMap<String, Double>> wordCounts) {
+		VectorModel converted = new VectorModel();
+		for (Map.Entry<String, HashMap<String, Double>> me : wordCounts
+				.entrySet()) {
+			int termId = converted.addTerm(me.getKey());
+			for (Map.Entry<String, Double> me2 : me.getValue().entrySet()) {
+				converted.addCount(termId, converted.addFolder(me2.getKey()),
+						me2.getValue().intValue());
+			}
+		}
+		converted.trimToSize();
+		return converted;
 	}
 
 	/**
 	 * public ArrayList<String> getFolderList() { return folderList; }
 	 */
 
+	/**
+	 * Waits until the moves of all documents learn() picked are in the model
+	 */
+	private void finishLearning() {
+		if (this.learning != null) {
+			try {
+				this.learning.finish();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				Utils.logError("Interrupted while learning", e);
+			} catch (RuntimeException e) {
+				Utils.logError("Java Exception in learn:", e);
+			} finally {
+				this.learning = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the folder list as name, UNID pairs for the model files
+	 */
+	private List<String> getFolderTable() {
+		List<String> folderTable = new ArrayList<String>(
+				2 * this.folderList.size());
+		for (Map.Entry<String, String> me : this.folderList.entrySet()) {
+			folderTable.add(me.getKey());
+			folderTable.add(me.getValue());
+		}
+		return folderTable;
+	}
+
+	/**
+	 * @return the learning pipeline of this cycle, started on first use
+	 */
+	private WordPipeline<FolderMove> getLearning() {
+		if (this.learning == null) {
+			this.learning = new WordPipeline<FolderMove>(this.config,
+					WordPipeline.defaultWorkerCount(),
+					new WordPipeline.Sink<FolderMove>() {
+						public void add(TermCounter tf, FolderMove move) {
+							Engine.this.moveDocument(tf, move);
+						}
+					});
+		}
+		return this.learning;
+	}
+
+	private LearningJournal getJournal() {
+		if (this.journal == null) {
+			this.journal = new LearningJournal(new File(
+					this.config.getSmartfileJournalFile()));
+		}
+		return this.journal;
+	}
+
+	/**
+	 * @return the state of the documents, opened or created on first use
+	 * @throws IOException
+	 *             when not even a new state file can be created
+	 */
+	private StateStore getStateStore() throws IOException {
+		if (this.stateStore == null) {
+			File file = new File(this.config.getSmartfileStateFile());
+			try {
+				this.stateStore = StateStore.open(file);
+			} catch (IOException e) {
+				// The documents look new then, nothing to learn from them
+				// until they move again
+				Utils.logWarning("\tCould not read the document state, starting over: "
+						+ e.getMessage());
+				this.stateStore = StateStore.create(file);
+			}
+		}
+		return this.stateStore;
+	}
+
+	/**
+	 * @return the folder membership of the last cycle or null if there is
+	 *         none
+	 */
+	private FolderMembership getFolderMembership() {
+		if (!this.folderMembershipRead) {
+			this.folderMembershipRead = true;
+			try {
+				this.folderMembership = FolderMembership.read(new File(
+						this.config.getSmartfileMembershipFile()));
+			} catch (IOException e) {
+				Utils.logWarning("\tCould not read the folder membership: "
+						+ e.getMessage());
+			}
+		}
+		return this.folderMembership;
+	}
+
+	private Date getChangesCheckedUntil() {
+		if (!this.changesCheckedUntilRead) {
+			this.changesCheckedUntilRead = true;
+			try {
+				this.changesCheckedUntil = FolderMembership
+						.readCheckedUntil(new File(this.config
+								.getSmartfileCheckedUntilFile()));
+			} catch (IOException e) {
+				Utils.logWarning("\tCould not read the check time: "
+						+ e.getMessage());
+			}
+		}
+		return this.changesCheckedUntil;
+	}
+
+	/**
+	 * Remembers the folder membership and until when documents have been
+	 * checked for the next cycle and the next start
+	 * 
+	 * @param membership
+	 * @param checkedUntil
+	 *            the last modification of the database before the check
+	 */
+	private void setFolderMembership(FolderMembership membership,
+			Date checkedUntil) {
+		this.folderMembership = membership;
+		this.folderMembershipRead = true;
+		this.changesCheckedUntil = checkedUntil;
+		this.changesCheckedUntilRead = true;
+		try {
+			FolderMembership.writeCheckedUntil(new File(this.config
+					.getSmartfileCheckedUntilFile()), checkedUntil);
+		} catch (IOException e) {
+			Utils.logWarning("\tCould not save the check time: "
+					+ e.getMessage());
+		}
+		try {
+			membership.write(new File(this.config
+					.getSmartfileMembershipFile()));
+		} catch (IOException e) {
+			// The next start checks the modified documents then
+			Utils.logWarning("\tCould not save the folder membership: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * @return true when it is time to go through all documents that need
+	 *         processing instead of only the ones that changed folders or
+	 *         were modified
+	 */
+	private boolean isSweepDue() {
+		return System.currentTimeMillis() - this.lastSweep >= this.config
+				.getSweepInterval();
+	}
+
+	private ModelSaveJob getSaveJob() {
+		if (this.saveJob == null) {
+			this.saveJob = new ModelSaveJob(this.config, this.getJournal());
+		}
+		return this.saveJob;
+	}
+
 	private List<View> getFoldersFromDB(Database db,
 			HashMap<String, String> folderNames,
 			HashMap<String, String> folderRef) {
@@ -711,20 +893,24 @@ public class Engine {
 		String vName = null;
 
 		try {
-			@SuppressWarnings("rawtypes")
-			Vector allViews = db.getViews();
-			result = new ArrayList<View>(allViews.size());
-
-			for (Object x : allViews) {
-				View v = (View) x;
-				// IsExcludedFolder returns true for any VIEW too
-				if (this.config.isExcludedFolder(v.getName())) {
-					Utils.shred(v);
-				} else {
+			// Names and UNIDs come from the folder design notes, only the
+			// folders we use get opened
+			this.folderCatalog.refresh(db);
+			Map<String, String> allFolders = this.folderCatalog.getFolders();
+			result = new ArrayList<View>(allFolders.size());
+			ConfigSnapshot settings = this.config.getSnapshot();
+
+			for (Map.Entry<String, String> folder : allFolders.entrySet()) {
+				vName = folder.getKey();
+				// IsExcludedFolder returns true for hidden folders too
+				if (settings.isExcludedFolder(vName)) {
+					continue;
+				}
+				View v = db.getView(vName);
+				if (v != null) {
 					result.add(v);
 					if (folderNames != null) {
-						vName = v.getName();
-						unid = v.getUniversalID();
+						unid = folder.getValue();
 						folderNames.put(vName, unid);
 						folderRef.put(unid, vName);
 					}
@@ -737,62 +923,37 @@ public class Engine {
 		return result;
 	}
 
-	private String getLabelWithOffset(int base) {
-		return "SFLabel" + String.valueOf(base + 1);
-	}
-
 	/**
-	 * Determines the language of a document to pick the right Stopword list for
-	 * processing
+	 * Compares the folders of the model with the folders in the database by
+	 * UNID
 	 * 
-	 * @param doc
-	 * @return
+	 * @param newFolderRef
+	 *            UNID -> name of the folders in the database
+	 * @return true if a folder was added, removed or renamed
 	 */
-	private String getLanguageFromDocument(Document doc) {
-		// TODO check with development how to figure the language
-		// for now just support the default language
-		return config.getDefaultLanguage();
-	}
-
-	private Scanner getScannerFromDocument(Document doc) {
-		StringBuilder builder = new StringBuilder();
-
-		// First all fields that can't have spaces like From, To etc
-		for (String curFieldNoSpaces : config.getFieldsToProcessNoSpaces()) {
-			try {
-				if (doc.hasItem(curFieldNoSpaces)) {
-					@SuppressWarnings("rawtypes")
-					Vector values = doc.getItemValue(curFieldNoSpaces);
-					for (int i = 0; i < values.size(); i++) {
-						builder.append(values.elementAt(i).toString()
-								.replace(" ", "_"));
-						builder.append(" ");
-					}
-				}
-			} catch (NotesException e) {
-				// We don't care if that doesn't work for on element
-			}
+	private boolean isFolderListChanged(Map<String, String> newFolderRef) {
+		if (this.folderList.size() != newFolderRef.size()) {
+			return true;
 		}
-
-		// Now the as-is fields
-		for (String curFieldNoSpaces : config.getFieldsToProcess()) {
-			try {
-				if (doc.hasItem(curFieldNoSpaces)) {
-					builder.append(doc.getItemValueString(curFieldNoSpaces));
-					builder.append(" ");
-				}
-			} catch (NotesException e) {
-				// We don't care if that doesn't work for on element
+		for (Map.Entry<String, String> oldFolder : this.folderList.entrySet()) {
+			// A renamed folder keeps its UNID but the model knows it by name
+			if (!oldFolder.getKey().equals(
+					newFolderRef.get(oldFolder.getValue()))) {
+				return true;
 			}
 		}
+		return false;
+	}
 
-		Scanner s = new Scanner(builder.toString());
-		return s;
+	private String getLabelWithOffset(int base) {
+		return "SFLabel" + String.valueOf(base + 1);
 	}
 
 	/**
 	 * The formula that shows all documents that have been moved around since we
-	 * worked on them with SmartFile the last time SmartFile ran
+	 * worked on them with SmartFile the last time SmartFile ran. SmartFileRef
+	 * isn't written any more, the state store has taken over, so this lists
+	 * every filed document except the ones of older versions that stayed put
 	 * 
 	 * @return The formula to select all the unprocessed documents
 	 */
@@ -809,101 +970,45 @@ public class Engine {
 	 * 
 	 */
 
-	private boolean learn(Document doc) {
+	private boolean learn(Document doc, List<String> seenFolders,
+			List<String> refs, boolean processed) {
 
 		boolean learned = false;
+		ConfigSnapshot settings = this.config.getSnapshot();
 
 		try {
 
-			HashMap<String, Double> tf = extractWordsFromDocument(doc);
-
-			@SuppressWarnings("rawtypes")
-			Vector refs = doc.getFolderReferences();
-			@SuppressWarnings("rawtypes")
-			Vector myFlag = doc.getItemValue("SmartFile");
-
 			// If this document has been processed before but it isn't were we
 			// think it should be
-			if ((doc.getItemValueString("SFLabels").length() == 0)
-					&& (!myFlag.equals(refs))) {
-				// Subtract this document's word counts from the wordCount
-				// HashMap for the "SFLabels" folders
-				for (int i = 0; i < myFlag.size(); i++) {
-					String folder = (String) myFlag.elementAt(i);
-					if (!config.isExcludedFolder(folder)) {
+			List<String> fromFolders = new ArrayList<String>();
+			List<String> toFolders = new ArrayList<String>();
+			if (!processed && !seenFolders.equals(refs)) {
+				// Subtract this document's word counts from the model for the
+				// folders it was in
+				for (String folder : seenFolders) {
+					if (!settings.isExcludedFolder(folder)) {
 						learned = true;
-
-						for (Map.Entry<String, Double> me : tf.entrySet()) {
-							String curWord = me.getKey();
-							Double value = me.getValue();
-							HashMap<String, Double> tmpmap = null;
-
-							if (this.wordCounts.containsKey(curWord)) {
-								tmpmap = this.wordCounts.get(curWord);
-							} else {
-								tmpmap = new HashMap<String, Double>();
-							}
-							// If that HashMap has an entry for this folder
-							if (tmpmap.containsKey(folder)) {
-								// Subtract the word's count from it
-								Double accum = tmpmap.get(folder);
-								accum = new Double(accum.doubleValue()
-										- value.doubleValue());
-								// If that leaves anything
-								if (accum.doubleValue() > 0) {
-									// Put the new count into the map
-									tmpmap.put(folder, accum);
-								} else {
-									// Otherwise remove the entry for this
-									// folder from the map
-									tmpmap.remove(folder);
-								}
-							}
-
-							// If the entire contents of the folder map have
-							// been deleted
-							if (tmpmap.isEmpty()) {
-								// Remove this word from wordCounts
-								this.wordCounts.remove(curWord);
-							} else {
-								// Otherwise, store the updated map
-								this.wordCounts.put(curWord, tmpmap);
-							}
-						}
+						fromFolders.add(folder);
 					}
 				}
 			}
 
-			// Add the counts for this document to the wordCounts HashMap for
-			// the "refs" folders
-			for (int i = 0; i < refs.size(); i++) {
-				String folder = (String) refs.elementAt(i);
-				if (!config.isExcludedFolder(folder)) {
+			// Add the counts for this document to the model for the "refs"
+			// folders
+			for (String folder : refs) {
+				if (!settings.isExcludedFolder(folder)) {
 					learned = true;
-
-					for (Map.Entry<String, Double> me : tf.entrySet()) {
-						String curWord = me.getKey();
-						Double curValue = me.getValue();
-						HashMap<String, Double> tmpmap = null;
-
-						if (this.wordCounts.containsKey(curWord)) {
-							tmpmap = this.wordCounts.get(curWord);
-						} else {
-							tmpmap = new HashMap<String, Double>();
-						}
-						double accum = curValue.doubleValue();
-						if (tmpmap.containsKey(folder)) {
-							accum += tmpmap.get(folder).doubleValue();
-						}
-						tmpmap.put(folder, new Double(accum));
-						this.wordCounts.put(curWord, tmpmap);
-					}
+					toFolders.add(folder);
 				}
 			}
 
-		} catch (NotesException e) {
-			System.out.println("NotesException: " + e.id + " " + e.text);
-			Utils.logError(e.id + " " + e.text, e);
+			if (learned) {
+				// The words get counted and moved in the model by the
+				// learning pipeline while we look at the next document
+				this.getLearning().submit(doc,
+						new FolderMove(fromFolders, toFolders));
+			}
+
 		} catch (Exception e) {
 			Utils.logError("Java Exception in learn:", e);
 		}
@@ -912,182 +1017,242 @@ public class Engine {
 
 	}
 
-	@SuppressWarnings("unchecked")
 	private void load() throws IOException, ClassNotFoundException {
 
 		// Loading the model is slow, so we avoid if possible
-		if (!this.modelLoaded) {
+		if (!this.modelLoaded && this.mappedModel == null) {
 
+			// The client died while replacing the model file on Windows
 			File inFile = new File(this.config.getSmartfilePersistenceFile());
+			File tmpFile = new File(inFile.getPath() + ".tmp");
+			if (!inFile.exists() && tmpFile.exists()) {
+				ModelFile.replace(tmpFile, inFile);
+			}
 
-			InputStream in = new FileInputStream(inFile);
-
-			// Read the vector model, and other values, from a file
-			ObjectInputStream ois = new ObjectInputStream(in);
-			this.folderList = (HashMap<String, String>) ois.readObject();
-			this.wordCounts = (HashMap<String, HashMap<String, Double>>) ois
-					.readObject();
-			this.wordIDFs = (HashMap<String, Double>) ois.readObject();
-			this.wordTFIDFs = (HashMap<String, HashMap<String, Double>>) ois
-					.readObject();
-			this.wordVectorLengths = (HashMap<String, Double>) ois.readObject();
-			ois.close();
+			// The index can be queried in place, so we can make suggestions
+			// right away and read the full model only when we learn
+			try {
+				if (inFile.exists()) {
+					// Learning in the journal isn't in the index
+					int checksum = ModelFile.readChecksum(inFile);
+					if (this.getJournal().isEmpty(checksum)) {
+						this.mappedModel = MappedModel.open(new File(
+								this.config.getSmartfileIndexFile()), checksum);
+					}
+				}
+			} catch (IOException e) {
+				Utils.logWarning("\tCould not map the model index: "
+						+ e.getMessage());
+			}
 
-			this.modelLoaded = true;
+			if (this.mappedModel != null) {
+				this.setFolderTable(this.mappedModel.getFolderTable());
+				this.publishedModel = this.mappedModel;
+			} else {
+				this.loadModel();
+			}
 
 		}
 		return;
 
 	}
 
-	/*************************************************************************************************
-	 * p r o c e s s D o c u m e n t
-	 **************************************************************************************************/
+	/**
+	 * Makes sure the full model is in memory, if that fails it is rebuilt
+	 * 
+	 * @param db
+	 * @param monitor
+	 */
+	private void loadFullModel(Database db, IProgressMonitor monitor) {
+		if (!this.modelLoaded) {
+			try {
+				this.loadModel();
+			} catch (Exception e) {
+				Utils.logError(e);
+				// Loading didn't work, so we need to start from scratch
+				this.rebuildModel(db, monitor, true);
+			}
+			// The mapping goes away once it isn't referenced any more
+			this.mappedModel = null;
+		}
+	}
 
-	// Analyze a document and set the three SwiftFile fields to the folders that
-	// most closely match
-	private void processDocument(Document doc,
-			HashMap<String, Double> wordIDFs,
-			HashMap<String, HashMap<String, Double>> wordTFIDFs,
-			HashMap<String, Double> wordVectorLengths) {
-		try {
-			// Parse out the individual words and accumulate their counts (tf)
-			// in a HashMap
-			HashMap<String, Double> tf = this.extractWordsFromDocument(doc);
-
-			// Calculate tf * idf for each word in the document and save those
-			// in a HashMap
-			// Also sum their squares and calculate the vector length for the
-			// document
-			HashMap<String, Double> tfidfMap = new HashMap<String, Double>();
-			double accum = 0;
-
-			// For each word in the document ...
-			for (Map.Entry<String, Double> me : tf.entrySet()) {
-				String curWord = me.getKey();
-				Double curCount = me.getValue();
-
-				Double idf = null;
-				// Get the matching IDF from the wordIDFs HashMap ...
-				if (wordIDFs.containsKey(curWord)) {
-					idf = wordIDFs.get(curWord);
-				} else {
-					idf = new Double(0);
-				}
-				// Calculate tf * idf and save it in a HashMap for later ...
-				Double tfidf = new Double(curCount.doubleValue()
-						* idf.doubleValue());
-				tfidfMap.put(curWord, tfidf);
+	@SuppressWarnings("unchecked")
+	private void loadModel() throws IOException, ClassNotFoundException {
 
-				// Sum the square ...
-				accum += tfidf.doubleValue() * tfidf.doubleValue();
-			}
+		if (!this.modelLoaded) {
 
-			double docVectorLength = Math.sqrt(accum);
-
-			// Calculate the dot products for each folder
-			HashMap<String, Double> dotProductsByFolder = new HashMap<String, Double>();
-
-			// For each word in the document ...
-			for (Map.Entry<String, Double> me : tfidfMap.entrySet()) {
-				String curKey = me.getKey();
-				Double docTFIDF = me.getValue();
-				// Get the matching folderName -> tf*idf HashMap from wordTFIDFs
-				if (wordTFIDFs.containsKey(curKey)) {
-					HashMap<String, Double> tmpmap = wordTFIDFs.get(curKey);
-					// For each Folder in that map ...
-					for (Map.Entry<String, Double> me2 : tmpmap.entrySet()) {
-						String key2 = me2.getKey();
-						Double folderTFIDF = me2.getValue();
-
-						if (dotProductsByFolder.containsKey(key2)) {
-							accum = dotProductsByFolder.get(key2).doubleValue();
-						} else {
-							accum = 0;
-						}
+			File inFile = new File(this.config.getSmartfilePersistenceFile());
 
-						dotProductsByFolder.put(
-								key2,
-								new Double(accum
-										+ (folderTFIDF.doubleValue() * docTFIDF
-												.doubleValue())));
-					}
+			InputStream in = new BufferedInputStream(new FileInputStream(
+					inFile));
+
+			if (ModelFile.isModelFile(in)) {
+				// Read the vector model, and other values, from a file
+				List<String> folderTable = new ArrayList<String>();
+				this.model = ModelFile.read(in, folderTable);
+				in.close();
+				this.setFolderTable(folderTable);
+				// Add what was learned since the model file was saved
+				int replayed = this.getJournal().replay(
+						ModelFile.readChecksum(inFile), this.model);
+				if (replayed > 0) {
+					Utils.logInfo("\tReplayed " + replayed
+							+ " learned documents from the journal");
 				}
+				// Only the counts are stored
+				this.refeshWords(new NullProgressMonitor());
+				this.modelLoaded = true;
+			} else {
+				// A model file from before the ModelFile format: the folder
+				// list and word -> (folder name -> tf) serialized with
+				// ObjectOutputStream. We take the counts and derive
+				// everything else
+				ObjectInputStream ois = new ObjectInputStream(in);
+				this.folderList = (HashMap<String, String>) ois.readObject();
+				this.model = this
+						.convertWordCounts((HashMap<String, HashMap<String, Double>>) ois
+								.readObject());
+				ois.close();
+				this.refeshWords(new NullProgressMonitor());
+				this.modelLoaded = true;
+
+				// Write it in the new format, so we read the old one only once
+				Utils.logInfo("\tConverted the model file to the new format");
+				this.save();
 			}
 
-			// Calculate the similarity values for each folder. Find the top
-			// three. These will be the recommended folders.
-			double[] sim = { 0, 0, 0 };
-			String[] folder = { "", "", "" };
-
-			// For each folder
-			for (Map.Entry<String, Double> me : dotProductsByFolder.entrySet()) {
-				String curKey = me.getKey();
-				double dotProduct = me.getValue().doubleValue();
-				double folderVectorLenght = wordVectorLengths.get(curKey)
-						.doubleValue();
-				// This is the key!
-				double simValue = dotProduct / docVectorLength
-						* folderVectorLenght;
-				// Final comparison
-				if (simValue > sim[2]) {
-					sim[2] = simValue;
-					folder[2] = curKey;
-					if (simValue > sim[1]) {
-						sim[2] = sim[1];
-						folder[2] = folder[1];
-						sim[1] = simValue;
-						folder[1] = curKey;
-						if (simValue > sim[0]) {
-							sim[1] = sim[0];
-							folder[1] = folder[0];
-							sim[0] = simValue;
-							folder[0] = curKey;
-						}
-					}
-				}
+		}
+		return;
+
+	}
+
+	/**
+	 * Finds what we know about a document. Documents of older versions only
+	 * have the SmartFile and SFLabels items, we take those over into the
+	 * state store the first time we come across them
+	 * 
+	 * @param doc
+	 * @return the NoteID of the document in the state store
+	 * @throws NotesException
+	 * @throws IOException
+	 */
+	private int lookUpState(Document doc) throws NotesException, IOException {
+		int noteId = StateStore.noteId(doc.getNoteID());
+		StateStore store = this.getStateStore();
+		if (store.getFolders(noteId) == null
+				&& doc.hasItem(Configuration.SMARTFILE_ITEMNAME)) {
+			store.put(noteId, toFolderNames(doc
+					.getItemValue(Configuration.SMARTFILE_ITEMNAME)), doc
+					.getItemValueString(Configuration.SFLABELS_FIELD).length() != 0);
+		}
+		return noteId;
+	}
+
+	/**
+	 * Moves the counts of a document learn() picked in the model and notes
+	 * that in the journal. Runs on the aggregator thread of the learning
+	 * pipeline
+	 */
+	private void moveDocument(TermCounter tf, FolderMove move) {
+		this.model.moveDocument(tf, move.fromFolders, move.toFolders);
+		try {
+			// Until the journal is open the next save covers it
+			if (this.getJournal().isReady()) {
+				this.getJournal().append(tf, move.fromFolders,
+						move.toFolders);
 			}
+		} catch (IOException e) {
+			// The change is only in memory. The journal isn't ready any
+			// more, so needsCompaction() saves the model file this cycle
+			Utils.logError("Could not write the learning journal", e);
+		}
+	}
+
+	/**
+	 * @return true if the learning journal should be folded into the model
+	 *         file
+	 */
+	private boolean needsCompaction() {
+		if (!this.getJournal().isReady()) {
+			return true;
+		}
+		long modelSize = new File(this.config.getSmartfilePersistenceFile())
+				.length();
+		return this.getJournal().length() > Math.max(MIN_COMPACTION_SIZE,
+				modelSize / 4);
+	}
+
+	/*************************************************************************************************
+	 * p r o c e s s D o c u m e n t
+	 **************************************************************************************************/
+
+	// Set the three SwiftFile fields of a document to the folders that most
+	// closely match, the batch classifier scored it already. Items that
+	// already hold the same value are left alone and the document is only
+	// queued for saving if something changed
+	// Returns true if the batch took the document
+	private boolean processDocument(Document doc, String viewName,
+			List<String> suggestions, SaveBatch batch) {
+		boolean queued = false;
+		try {
+			int found = suggestions.size();
 
 			// Set the document's SwiftFile fields
 			Vector<String> sflabels = new Vector<String>();
-
-			for (int i = 0; i < 3; i++) {
-				if (folder[i] != null && folder[i].length() != 0) {
-					sflabels.add(folder[i]);
-					doc.replaceItemValue(this.getLabelWithOffset(i), folder[i]);
+			boolean changed = false;
+
+			for (int i = 0; i < found; i++) {
+				String folder = suggestions.get(i);
+				sflabels.add(folder);
+				String label = this.getLabelWithOffset(i);
+				if (!folder.equals(doc.getItemValueString(label))) {
+					doc.replaceItemValue(label, folder);
+					changed = true;
 				}
 			}
 
-			if (sflabels != null && sflabels.size() != 0) {
-				doc.replaceItemValue("SFLabels", sflabels);
+			if (sflabels.size() != 0
+					&& !sflabels.equals(doc
+							.getItemValue(Configuration.SFLABELS_FIELD))) {
+				doc.replaceItemValue(Configuration.SFLABELS_FIELD, sflabels);
+				changed = true;
 			}
 
-			// Now bring Folder references and our recording of them into
-			// the SmartFile fields - this
-			@SuppressWarnings("rawtypes")
-			Vector refs = doc.getFolderReferences();
-			Vector<String> unidrefs = new Vector<String>(refs.size());
-
-			for (int i = 0; i < refs.size(); i++) {
-				// We don't use empty references
-				if (!"".equals(refs.get(i))) {
-					// Add the UNID of the folder design to the field
-					// since the native field $FolderRefs stores the UNID
-					// of the Folder design element, so we need the UNID to
-					// be able to compare them in a view to make things faster
-					unidrefs.add(this.folderList.get((String) refs.get(i)));
+			// Remember where the document is, so we recognize the move
+			// when the user files it
+			this.getStateStore().put(StateStore.noteId(doc.getNoteID()),
+					toFolderNames(doc.getFolderReferences()), found != 0);
+
+			Utils.logInfo("\tSetting SwiftFile fields in " + viewName
+					+ " document: \"" + doc.getUniversalID() + " - "
+					+ doc.getItemValueString("Subject") + "\"");
+			if (found == 0) {
+				Utils.logWarning("\t\tNo recommended folders.  Index is empty?  Rebuild your index?");
+			} else {
+				StringBuilder message = new StringBuilder(
+						"\t\tRecommending folders:");
+				for (int i = 0; i < found; i++) {
+					message.append("\t\t\t").append(i + 1).append(": ")
+							.append(sflabels.get(i));
 				}
+				Utils.logInfo(message.toString());
 			}
 
-			doc.replaceItemValue(Configuration.SMARTFILE_ITEMNAME, refs);
-			doc.replaceItemValue(Configuration.SMARTFILE_REFNAME, unidrefs);
-			doc.save();
+			// Only our suggestions are written to the document
+			if (changed) {
+				queued = true;
+				batch.add(doc);
+			} else {
+				batch.skip();
+			}
 
 		} catch (NotesException e) {
 			Utils.logError(e);
 		} catch (Exception e) {
 			Utils.logError(e);
 		}
+		return queued;
 	}
 
 	private void rebuildModel(Database db, IProgressMonitor monitor,
@@ -1105,11 +1270,15 @@ public class Engine {
 		Utils.logInfo("\tRebuilding vector model from scratch");
 
 		// Count all the words in all the folders (tf) 20 items for moving docs
-		this.wordCounts = this.countWordsInDatabase(views, db, monitor);
+		this.model = this.countWordsInDatabase(views, db, monitor);
 
 		// 30 items for refeshing words
 		this.refeshWords(monitor);
 
+		// The rebuilt model replaces whatever was loaded or mapped
+		this.modelLoaded = true;
+		this.mappedModel = null;
+
 		if (saveModelAfterRebuild) {
 			this.save();
 		}
@@ -1121,16 +1290,67 @@ public class Engine {
 	}
 
 	private void refeshWords(IProgressMonitor monitor) {
-		// Calculate the idf (inverse document frequency) for each word
-		this.wordIDFs = this.calculateIDFs(wordCounts, monitor);
-		monitor.worked(10);
-		// Calculate ( tf * idf ) for each word in each folder
-		this.wordTFIDFs = this.calculateTFIDFs(wordCounts, wordIDFs, monitor);
-		monitor.worked(10);
-		// Calculate vector length for each folder
-		this.wordVectorLengths = this.calculateVectorLengths(wordTFIDFs,
-				monitor);
-		monitor.worked(10);
+		if (!this.model.needsFullCalculation(this.folderList.size())) {
+			// Only the words learn() touched since the last time
+			monitor.subTask("update changed words");
+			int updated = this.model.updateChangedTerms();
+			Utils.logInfo("\tUpdated " + updated + " changed words");
+			monitor.worked(30);
+			if (updated == 0 && this.publishedModel instanceof VectorModel) {
+				// Nothing learned, the published snapshot is still current
+				return;
+			}
+		} else {
+			// Calculate the idf (inverse document frequency) for each word and
+			// the vector length for each folder, ( tf * idf ) for each word in
+			// each folder gets calculated on the fly. All processors share the
+			// words
+			monitor.subTask("calcuate IDFs and vector lengths");
+			this.model.calculateAll(this.folderList.size(), Runtime
+					.getRuntime().availableProcessors());
+			monitor.internalWorked(30);
+			monitor.worked(30);
+		}
+
+		// Suggestions come from the new numbers from now on. The snapshot
+		// shares the blocks of words, learning copies a block before it
+		// changes it
+		this.publishedModel = this.model.snapshot();
+	}
+
+	/**
+	 * Restores the folder list from the name, UNID pairs of a model file
+	 */
+	private void setFolderTable(List<String> folderTable) {
+		this.folderList = new HashMap<String, String>();
+		for (int i = 0; i + 1 < folderTable.size(); i += 2) {
+			this.folderList.put(folderTable.get(i), folderTable.get(i + 1));
+		}
+	}
+
+	/**
+	 * Scores the documents the classifier has read on all processors, then
+	 * writes the suggestions back on this thread. If scoring fails no
+	 * document is touched, they are tried again next time
+	 */
+	private void labelDocuments(BatchClassifier classifier, SaveBatch batch) {
+		boolean scored = false;
+		try {
+			classifier.classify(this.publishedModel);
+			scored = true;
+		} catch (RuntimeException e) {
+			Utils.logError(e);
+		}
+		for (int i = 0; i < classifier.size(); i++) {
+			Document doc = classifier.getDocument(i);
+			// A queued document is recycled by the batch
+			if (!scored
+					|| !this.processDocument(doc, classifier.getViewName(i),
+							classifier.getSuggestions(i), batch)) {
+				Utils.shred(doc);
+			}
+		}
+		classifier.clear();
 	}
 
 	/*************************************************************************************************
@@ -1141,6 +1361,9 @@ public class Engine {
 		View v = null;
 		Document doc = null;
 		Document nextDoc = null;
+		SaveBatch batch = new SaveBatch();
+		BatchClassifier classifier = new BatchClassifier(this.config, Runtime
+				.getRuntime().availableProcessors());
 
 		for (String viewName : viewNames) {
 
@@ -1152,29 +1375,17 @@ public class Engine {
 				while (doc != null) {
 					nextDoc = v.getNextDocument(doc);
 
-					if (!doc.hasItem(Configuration.SFLABELS_FIELD)
-							|| doc.getItemValueString(
-									Configuration.SFLABELS_FIELD).equals("")) {
-						this.processDocument(doc, this.wordIDFs,
-								this.wordTFIDFs, this.wordVectorLengths);
-					}
-
-					Utils.logInfo("\tSetting SwiftFile fields in " + viewName
-							+ " document: \"" + doc.getUniversalID() + " - "
-							+ doc.getItemValueString("Subject") + "\"");
-					if (doc.getItemValueString(Configuration.SFLABELS_FIELD)
-							.length() == 0) {
-						Utils.logWarning("\t\tNo recommended folders.  Index is empty?  Rebuild your index?");
+					// Documents that have our suggestions already are done, the
+					// others wait in the classifier until it is full
+					int noteId = this.lookUpState(doc);
+					if (!this.getStateStore().isProcessed(noteId)) {
+						classifier.add(doc, viewName);
+						if (classifier.isFull()) {
+							this.labelDocuments(classifier, batch);
+						}
 					} else {
-						Utils.logInfo("\t\tRecommending folders:\t\t\t1: "
-								+ doc.getItemValueString("SFLabel1")
-								+ "\t\t\t2: "
-								+ doc.getItemValueString("SFLabel2")
-								+ "\t\t\t3: "
-								+ doc.getItemValueString("SFLabel3"));
+						doc.recycle();
 					}
-
-					doc.recycle();
 					doc = nextDoc;
 				}
 
@@ -1182,12 +1393,106 @@ public class Engine {
 				Utils.logError(
 						"Unexpected exception during setSFLabels processing:"
 								+ e.id + " " + e.text, e);
+			} catch (IOException e) {
+				Utils.logError(e);
 
 			} finally {
+				// The documents came from the view, label and save them
+				// before it goes
+				this.labelDocuments(classifier, batch);
+				try {
+					batch.flush();
+				} catch (NotesException e) {
+					Utils.logError(e);
+				}
 				Utils.shred(v, doc, nextDoc);
 			}
 		}
 
+		if (batch.getSaved() + batch.getSkipped() > 0) {
+			Utils.logInfo("\tSaved " + batch.getSaved()
+					+ " documents with new suggestions, "
+					+ batch.getSkipped() + " saves avoided");
+		}
+
+	}
+
+	/**
+	 * Hands all documents of a folder to the pipeline and notes the ones
+	 * without a $FolderRef
+	 */
+	private void submitFolder(View v, int folderId,
+			WordPipeline<Integer> pipeline, IProgressMonitor monitor,
+			Map<String, List<String>> docsWithoutFolderRef)
+			throws InterruptedException {
+		Document doc = null;
+		Document nextDoc = null;
+		Integer payload = Integer.valueOf(folderId);
+		try {
+			monitor.subTask("Processing " + v.getName());
+
+			// We need the docs, so we can skip the viewentrycollection
+			doc = v.getFirstDocument();
+
+			while (doc != null) {
+				nextDoc = v.getNextDocument(doc);
+
+				pipeline.submit(doc, payload);
+
+				// We need to process this document later on
+				// We only can do that after all the folders have
+				// been processed since we would not catch if it was
+				// in a second folder
+				if (!doc.hasItem(Configuration.FOLDER_REF)) {
+					List<String> docFolders;
+					String noteId = doc.getNoteID();
+					if (!docsWithoutFolderRef.containsKey(noteId)) {
+						docFolders = new ArrayList<String>();
+					} else {
+						docFolders = docsWithoutFolderRef.get(noteId);
+					}
+					docFolders.add(v.getName());
+					docsWithoutFolderRef.put(noteId, docFolders);
+				}
+
+				Utils.shred(doc);
+				doc = nextDoc;
+			}
+
+		} catch (NotesException e) {
+			Utils.logError(e.id + " " + e.text, e);
+		} finally {
+			Utils.shred(doc, nextDoc);
+		}
+	}
+
+	/**
+	 * @param refs
+	 *            folder references or an item value
+	 * @return the folder names as strings
+	 */
+	private static List<String> toFolderNames(
+			@SuppressWarnings("rawtypes") Vector refs) {
+		List<String> result = new ArrayList<String>(refs.size());
+		for (Object ref : refs) {
+			result.add(String.valueOf(ref));
+		}
+		return result;
+	}
+
+	/**
+	 * The folders a document leaves and enters
+	 */
+	private static class FolderMove {
+
+		final List<String> fromFolders;
+		final List<String> toFolders;
+
+		FolderMove(List<String> fromFolders, List<String> toFolders) {
+			this.fromFolders = fromFolders;
+			this.toFolders = toFolders;
+		}
+
 	}
 
 }
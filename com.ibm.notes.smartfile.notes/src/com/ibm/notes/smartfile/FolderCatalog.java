@@ -0,0 +1,179 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import lotus.domino.Database;
+import lotus.domino.DateTime;
+import lotus.domino.Document;
+import lotus.domino.NoteCollection;
+import lotus.domino.NotesException;
+
+/**
+ * Names and UNIDs of all folders of a database, read from the folder design
+ * notes instead of opening a View for every view and folder. The catalog is
+ * kept between cycles: each refresh lists the NoteIDs of the folder design
+ * notes and only reads the design notes that are new or were modified since
+ * the last refresh.
+ * <p>
+ * Not thread safe
+ * 
+ * @author stw
+ * 
+ */
+public class FolderCatalog {
+
+	/**
+	 * The design note item with the name of the folder, aliases follow
+	 * after a |
+	 */
+	private static final String TITLE_ITEM = "$TITLE";
+
+	// NoteID of the design note -> name and UNID of the folder
+	private final Map<String, Folder> folders = new HashMap<String, Folder>();
+
+	// When the design notes were listed last, null = never
+	private Date builtAt = null;
+
+	/**
+	 * Brings the catalog up to date
+	 * 
+	 * @param db
+	 * @return true if a folder was added, removed or renamed
+	 * @throws NotesException
+	 */
+	public boolean refresh(Database db) throws NotesException {
+		Set<String> noteIds;
+		Set<String> modified = null;
+		Date buildTime;
+		NoteCollection all = null;
+		NoteCollection recent = null;
+		DateTime lastBuild = null;
+		DateTime since = null;
+		try {
+			// The NoteIDs of all folders, deleted folders drop out
+			all = db.createNoteCollection(false);
+			all.setSelectFolders(true);
+			all.buildCollection();
+			lastBuild = all.getLastBuildTime();
+			buildTime = lastBuild.toJavaDate();
+			noteIds = getNoteIds(all);
+
+			// Renamed folders have a newer design note
+			if (this.builtAt != null) {
+				since = db.getParent().createDateTime(this.builtAt);
+				recent = db.createNoteCollection(false);
+				recent.setSelectFolders(true);
+				recent.setSinceTime(since);
+				recent.buildCollection();
+				modified = getNoteIds(recent);
+			}
+		} finally {
+			Utils.shred(lastBuild, since, all, recent);
+		}
+
+		boolean changed = this.folders.keySet().retainAll(noteIds);
+		for (String noteId : noteIds) {
+			if (modified != null && !modified.contains(noteId)
+					&& this.folders.containsKey(noteId)) {
+				continue;
+			}
+			Folder folder = readFolder(db, noteId);
+			if (folder == null) {
+				continue;
+			}
+			Folder old = this.folders.put(noteId, folder);
+			if (old == null || !old.name.equals(folder.name)) {
+				changed = true;
+			}
+		}
+		this.builtAt = buildTime;
+		return changed;
+	}
+
+	/**
+	 * @return folder name -> folder UNID of all folders, sorted by name
+	 */
+	public Map<String, String> getFolders() {
+		Map<String, String> result = new TreeMap<String, String>();
+		for (Folder folder : this.folders.values()) {
+			result.put(folder.name, folder.unid);
+		}
+		return result;
+	}
+
+	public int size() {
+		return this.folders.size();
+	}
+
+	private static Set<String> getNoteIds(NoteCollection nc)
+			throws NotesException {
+		Set<String> result = new HashSet<String>(2 * nc.getCount());
+		String noteId = nc.getFirstNoteID();
+		while (noteId != null && noteId.length() > 0) {
+			result.add(noteId);
+			noteId = nc.getNextNoteID(noteId);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the folder or null if the design note is gone
+	 */
+	private static Folder readFolder(Database db, String noteId) {
+		Document design = null;
+		try {
+			design = db.getDocumentByID(noteId);
+			if (design == null) {
+				return null;
+			}
+			String name = design.getItemValueString(TITLE_ITEM);
+			int alias = name.indexOf('|');
+			if (alias >= 0) {
+				name = name.substring(0, alias);
+			}
+			return new Folder(name.trim(), design.getUniversalID());
+		} catch (NotesException e) {
+			// Deleted in the meantime
+			return null;
+		} finally {
+			Utils.shred(design);
+		}
+	}
+
+	private static class Folder {
+		final String name;
+		final String unid;
+
+		Folder(String name, String unid) {
+			this.name = name;
+			this.unid = unid;
+		}
+	}
+
+}
@@ -0,0 +1,375 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import lotus.domino.NotesException;
+import lotus.domino.View;
+import lotus.domino.ViewEntry;
+import lotus.domino.ViewNavigator;
+
+/**
+ * Which documents are in which folder, as sorted NoteIDs per folder. The
+ * NoteIDs are read from the folder entries with a ViewNavigator without
+ * opening a single document. Comparing the snapshot of this cycle with the
+ * one of the last cycle tells which documents the user filed, so we only
+ * open those. The snapshot is kept in a file next to the model. A second
+ * file keeps the time up to which modified documents have been checked,
+ * so a start that can't read the snapshot only needs the documents
+ * modified since then:
+ * 
+ * <pre>
+ * "SFFM" version folderCount (name noteCount (NoteID delta)) CRC32
+ * "SFCU" version time CRC32
+ * </pre>
+ * 
+ * @author stw
+ * 
+ */
+public class FolderMembership {
+
+	private static final int MAGIC = ('S' << 24) | ('F' << 16) | ('F' << 8)
+			| 'M';
+
+	private static final int CHECKED_UNTIL_MAGIC = ('S' << 24) | ('F' << 16)
+			| ('C' << 8) | 'U';
+
+	/**
+	 * Increase whenever the layout changes
+	 */
+	public static final int VERSION = 1;
+
+	// folder name -> sorted NoteIDs
+	private final Map<String, int[]> folders;
+
+	private FolderMembership(Map<String, int[]> folders) {
+		this.folders = folders;
+	}
+
+	/**
+	 * Reads a snapshot saved by write
+	 * 
+	 * @param file
+	 * @return the snapshot or null if there is none
+	 * @throws IOException
+	 *             when the file is damaged or from another version
+	 */
+	public static FolderMembership read(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		DataInputStream in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file)), crc));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file + " is not a folder membership file");
+			}
+			int folderCount = in.readInt();
+			Map<String, int[]> folders = new HashMap<String, int[]>(
+					2 * folderCount);
+			for (int i = 0; i < folderCount; i++) {
+				String name = in.readUTF();
+				int[] noteIds = new int[in.readInt()];
+				int noteId = 0;
+				for (int j = 0; j < noteIds.length; j++) {
+					noteId += readVarInt(in);
+					noteIds[j] = noteId;
+				}
+				folders.put(name, noteIds);
+			}
+			int checksum = (int) crc.getValue();
+			if (in.readInt() != checksum) {
+				throw new IOException(file + " is damaged");
+			}
+			return new FolderMembership(folders);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the NoteIDs of all documents in the folders
+	 * 
+	 * @param views
+	 *            the folders to look at
+	 * @return the snapshot
+	 * @throws NotesException
+	 */
+	public static FolderMembership scan(List<View> views)
+			throws NotesException {
+		Map<String, int[]> folders = new HashMap<String, int[]>(
+				2 * views.size());
+		int[] noteIds = new int[1024];
+		for (View v : views) {
+			// We only want the NoteIDs, not the column values
+			v.setAutoUpdate(false);
+			ViewNavigator nav = v.createViewNav();
+			ViewEntry ve = null;
+			ViewEntry ven = null;
+			int count = 0;
+			try {
+				nav.setEntryOptions(ViewNavigator.VN_ENTRYOPT_NOCOLUMNVALUES);
+				nav.setBufferMaxEntries(400);
+				ve = nav.getFirstDocument();
+				while (ve != null) {
+					ven = nav.getNextDocument();
+					if (count == noteIds.length) {
+						noteIds = Arrays.copyOf(noteIds, 2 * count);
+					}
+					noteIds[count++] = StateStore.noteId(ve.getNoteID());
+					ve.recycle();
+					ve = ven;
+				}
+			} finally {
+				Utils.shred(ve, ven, nav);
+			}
+			int[] sorted = Arrays.copyOf(noteIds, count);
+			Arrays.sort(sorted);
+			folders.put(v.getName(), sorted);
+		}
+		return new FolderMembership(folders);
+	}
+
+	/**
+	 * Finds the documents that were put into a folder or taken out of one
+	 * since an older snapshot
+	 * 
+	 * @param older
+	 *            the snapshot of the last cycle
+	 * @return the NoteIDs of these documents, sorted
+	 */
+	public int[] changedSince(FolderMembership older) {
+		NoteIdList changed = new NoteIdList();
+		int[] none = new int[0];
+		for (Map.Entry<String, int[]> me : this.folders.entrySet()) {
+			int[] before = older.folders.get(me.getKey());
+			changed.addDifference((before == null) ? none : before,
+					me.getValue());
+		}
+		// Folders that are gone, their documents moved somewhere
+		for (Map.Entry<String, int[]> me : older.folders.entrySet()) {
+			if (!this.folders.containsKey(me.getKey())) {
+				changed.addDifference(me.getValue(), none);
+			}
+		}
+
+		// A document that moved from one folder to another is in there twice
+		int[] ids = changed.ids;
+		Arrays.sort(ids, 0, changed.count);
+		int unique = 0;
+		for (int i = 0; i < changed.count; i++) {
+			if (unique == 0 || ids[unique - 1] != ids[i]) {
+				ids[unique++] = ids[i];
+			}
+		}
+		return Arrays.copyOf(ids, unique);
+	}
+
+	/**
+	 * @param folderName
+	 * @return the sorted NoteIDs of the documents in the folder, empty if
+	 *         the folder isn't in the snapshot. Read only!
+	 */
+	public int[] getNoteIds(String folderName) {
+		int[] noteIds = this.folders.get(folderName);
+		return (noteIds == null) ? new int[0] : noteIds;
+	}
+
+	/**
+	 * @return the number of folder entries in the snapshot
+	 */
+	public int size() {
+		int size = 0;
+		for (int[] noteIds : this.folders.values()) {
+			size += noteIds.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Saves the snapshot, so the next cycle or the next start can compare
+	 * with it
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+				new BufferedOutputStream(fos), crc));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(this.folders.size());
+			for (Map.Entry<String, int[]> me : this.folders.entrySet()) {
+				out.writeUTF(me.getKey());
+				int[] noteIds = me.getValue();
+				out.writeInt(noteIds.length);
+				int last = 0;
+				for (int noteId : noteIds) {
+					writeVarInt(out, noteId - last);
+					last = noteId;
+				}
+			}
+			out.flush();
+			out.writeInt((int) crc.getValue());
+		} finally {
+			out.close();
+		}
+		ModelFile.replace(tmpFile, file);
+	}
+
+	/**
+	 * Reads the time saved by writeCheckedUntil
+	 * 
+	 * @param file
+	 * @return documents modified before that have been checked, null if
+	 *         there is no file
+	 * @throws IOException
+	 *             when the file is damaged or from another version
+	 */
+	public static Date readCheckedUntil(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		DataInputStream in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file)), crc));
+		try {
+			if (in.readInt() != CHECKED_UNTIL_MAGIC
+					|| in.readInt() != VERSION) {
+				throw new IOException(file + " is not a checked until file");
+			}
+			long time = in.readLong();
+			int checksum = (int) crc.getValue();
+			if (in.readInt() != checksum) {
+				throw new IOException(file + " is damaged");
+			}
+			return new Date(time);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves the time up to which modified documents have been checked
+	 * 
+	 * @param file
+	 * @param until
+	 *            on the clock of the database, not ours
+	 * @throws IOException
+	 */
+	public static void writeCheckedUntil(File file, Date until)
+			throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmpFile)), crc));
+		try {
+			out.writeInt(CHECKED_UNTIL_MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(until.getTime());
+			out.flush();
+			out.writeInt((int) crc.getValue());
+		} finally {
+			out.close();
+		}
+		ModelFile.replace(tmpFile, file);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value)
+			throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * A growing list of NoteIDs
+	 */
+	private static class NoteIdList {
+
+		int[] ids = new int[64];
+		int count = 0;
+
+		/**
+		 * Appends the NoteIDs that are in only one of two sorted arrays
+		 */
+		void addDifference(int[] a, int[] b) {
+			int i = 0;
+			int j = 0;
+			while (i < a.length || j < b.length) {
+				if (j == b.length || (i < a.length && a[i] < b[j])) {
+					this.add(a[i++]);
+				} else if (i == a.length || b[j] < a[i]) {
+					this.add(b[j++]);
+				} else {
+					// In both
+					i++;
+					j++;
+				}
+			}
+		}
+
+		private void add(int noteId) {
+			if (this.count == this.ids.length) {
+				this.ids = Arrays.copyOf(this.ids, 2 * this.count);
+			}
+			this.ids[this.count++] = noteId;
+		}
+
+	}
+
+}
@@ -0,0 +1,193 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+/**
+ * Scores a document against all folders of a {@link ScoringModel} by walking
+ * the posting rows of the document's words (the inverted index) and summing
+ * the dot products into an accumulator indexed by folder id. The folders' tf *
+ * idf values are calculated on the fly from the counts and the idf. All buffers are
+ * kept between calls, so once they have grown to the size of the model
+ * scoring a document doesn't allocate anything.
+ * <p>
+ * A scorer is not thread safe, use one per thread
+ * 
+ * @author stw
+ * 
+ */
+public class FolderScorer {
+
+	/**
+	 * How many folders we recommend
+	 */
+	public static final int TOP_FOLDERS = 3;
+
+	// folder id -> dot product with the current document
+	private double[] dotProducts = new double[0];
+
+	// folder ids that have a dot product for the current document
+	private boolean[] touched = new boolean[0];
+	private int[] touchedFolders = new int[0];
+	private int touchedCount = 0;
+
+	// term ids and tf*idf of the words of the current document
+	private int[] docTermIds = new int[64];
+	private double[] docTFIDFs = new double[64];
+
+	// The result of the last call to score
+	private final int[] topFolders = new int[TOP_FOLDERS];
+	private final double[] topSimilarities = new double[TOP_FOLDERS];
+
+	/**
+	 * @param rank
+	 *            0 = best match
+	 * @return the folder id at that rank of the last scoring or -1 if there
+	 *         was no match for that rank
+	 */
+	public int getTopFolder(int rank) {
+		return this.topFolders[rank];
+	}
+
+	/**
+	 * @param rank
+	 *            0 = best match
+	 * @return the similarity at that rank of the last scoring
+	 */
+	public double getTopSimilarity(int rank) {
+		return this.topSimilarities[rank];
+	}
+
+	/**
+	 * Compares a document with all folders and remembers the top three
+	 * 
+	 * @param model
+	 *            the model to score against, in memory or mapped
+	 * @param tf
+	 *            the word counts of the document
+	 * @return the number of folders found, 0 to TOP_FOLDERS
+	 */
+	public int score(ScoringModel model, TermCounter tf) {
+
+		this.prepare(model.getFolderCount(), tf.size());
+
+		// Calculate tf * idf for each word in the document
+		// Also sum their squares and calculate the vector length for the
+		// document
+		int n = 0;
+		double accum = 0;
+		char[] chars = tf.getChars();
+		for (int i = 0; i < tf.size(); i++) {
+			int termId = model.getTermId(chars, tf.getOffset(i),
+					tf.getLength(i));
+			// Unknown words have an idf of 0
+			double idf = (termId < 0) ? 0 : model.getIdf(termId);
+			double tfidf = tf.getCount(i) * idf;
+			accum += tfidf * tfidf;
+			if (termId >= 0 && tfidf != 0) {
+				this.docTermIds[n] = termId;
+				this.docTFIDFs[n] = tfidf;
+				n++;
+			}
+		}
+		double docVectorLength = Math.sqrt(accum);
+
+		// Calculate the dot products for each folder sharing a word with the
+		// document, straight from the posting rows
+		double[] dots = this.dotProducts;
+		for (int i = 0; i < n; i++) {
+			int termId = this.docTermIds[i];
+			// The folder's tf * idf is tf * idf of the word, so we fold idf
+			// and the document's tf * idf into one factor per word
+			double factor = model.getIdf(termId) * this.docTFIDFs[i];
+			int size = model.getPostingSize(termId);
+			for (int j = 0; j < size; j++) {
+				int folderId = model.getPostingFolder(termId, j);
+				if (!this.touched[folderId]) {
+					this.touched[folderId] = true;
+					this.touchedFolders[this.touchedCount++] = folderId;
+				}
+				dots[folderId] += model.getPostingCount(termId, j) * factor;
+			}
+		}
+
+		// Calculate the similarity values for each folder. Find the top
+		// three. These will be the recommended folders.
+		for (int i = 0; i < TOP_FOLDERS; i++) {
+			this.topFolders[i] = -1;
+			this.topSimilarities[i] = 0;
+		}
+		for (int i = 0; i < this.touchedCount; i++) {
+			int folderId = this.touchedFolders[i];
+			double dotProduct = dots[folderId];
+			// Leave the accumulator clean for the next document
+			dots[folderId] = 0;
+			this.touched[folderId] = false;
+			// This is the key!
+			double simValue = dotProduct / docVectorLength
+					* model.getVectorLength(folderId);
+			this.offer(folderId, simValue);
+		}
+		this.touchedCount = 0;
+
+		int found = 0;
+		while (found < TOP_FOLDERS && this.topFolders[found] >= 0) {
+			found++;
+		}
+		return found;
+	}
+
+	/**
+	 * Keeps the top folders sorted, best first
+	 */
+	private void offer(int folderId, double simValue) {
+		int pos = TOP_FOLDERS;
+		while (pos > 0 && simValue > this.topSimilarities[pos - 1]) {
+			pos--;
+		}
+		if (pos == TOP_FOLDERS) {
+			return;
+		}
+		for (int i = TOP_FOLDERS - 1; i > pos; i--) {
+			this.topFolders[i] = this.topFolders[i - 1];
+			this.topSimilarities[i] = this.topSimilarities[i - 1];
+		}
+		this.topFolders[pos] = folderId;
+		this.topSimilarities[pos] = simValue;
+	}
+
+	/**
+	 * Grows the buffers when the model or the document got bigger
+	 */
+	private void prepare(int folderCount, int termCount) {
+		if (this.dotProducts.length < folderCount) {
+			this.dotProducts = new double[folderCount];
+			this.touched = new boolean[folderCount];
+			this.touchedFolders = new int[folderCount];
+		}
+		if (this.docTermIds.length < termCount) {
+			int newLength = Math.max(termCount, this.docTermIds.length * 2);
+			this.docTermIds = new int[newLength];
+			this.docTFIDFs = new double[newLength];
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import lotus.domino.Database;
+import lotus.domino.NotesException;
+import lotus.domino.Session;
+import lotus.domino.View;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+
+import com.ibm.notes.java.api.util.NotesSessionJob;
+
+/**
+ * Looks at the Inbox every few seconds and asks for the processing when new
+ * mail arrived, so new messages get their suggestions without waiting for
+ * the next replication. The job reschedules itself, waiting longer each
+ * time the Inbox stayed the same
+ * 
+ * @author stw
+ * 
+ */
+public class InboxWatchJob extends NotesSessionJob {
+
+	private static final long MIN_DELAY = 1000;
+	private static final long MAX_DELAY = 30 * 1000;
+
+	private final InboxWatcher watcher = new InboxWatcher();
+	private final PollInterval interval = new PollInterval(MIN_DELAY,
+			MAX_DELAY);
+
+	public InboxWatchJob() {
+		super("SmartFile Inbox watch");
+		this.setSystem(true);
+	}
+
+	/**
+	 * Something happened that probably brought new mail, look soon
+	 */
+	public void requestCheck() {
+		this.interval.reset();
+		if (this.getState() == SLEEPING) {
+			// schedule() leaves a sleeping job alone, cut its wait short
+			this.wakeUp(MIN_DELAY);
+		} else {
+			this.schedule(MIN_DELAY);
+		}
+	}
+
+	@Override
+	protected IStatus runInNotesThread(Session s, IProgressMonitor monitor)
+			throws NotesException {
+		try {
+			Configuration config = Activator.getDefault().getConfig();
+			String mailFileName = config.getMailFileName(s);
+			if (!config.isEnabled() || mailFileName == null
+					|| mailFileName.equals("")) {
+				// Maybe it gets switched on later
+				this.interval.backOff();
+				return Status.OK_STATUS;
+			}
+
+			Database mail = s.getDatabase("", mailFileName, true);
+			View inbox = mail.getView("($Inbox)");
+			boolean changed = false;
+			if (inbox != null) {
+				try {
+					changed = this.watcher.hasChanged(inbox);
+				} finally {
+					Utils.shred(inbox);
+				}
+			}
+
+			if (changed) {
+				this.interval.reset();
+				Activator.getDefault().getProcessingJob().request("new mail");
+			} else {
+				this.interval.backOff();
+			}
+		} finally {
+			if (!monitor.isCanceled()) {
+				this.schedule(this.interval.get());
+			}
+		}
+		return Status.OK_STATUS;
+	}
+
+}
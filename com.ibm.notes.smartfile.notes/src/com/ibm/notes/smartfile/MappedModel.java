@@ -0,0 +1,467 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A read only copy of a {@link VectorModel} in a file laid out so it can be
+ * mapped into memory and queried in place: nothing gets copied to the heap
+ * except the folder names, and the pages are shared with the OS file cache.
+ * The file is written next to the model file whenever the model is saved and
+ * is named after the checksum of that model file, so an outdated index is
+ * never used and a new one never has to replace a file that may still be
+ * mapped. All numbers are big endian, the layout is:
+ * 
+ * <pre>
+ * header:           "SFIX" version checksum termCount folderCount
+ *                   tableSize tableCount charCount pairCount
+ * hash table:       tableSize ints, term id + 1 or 0 for an empty slot
+ * term offsets:     termCount + 1 ints into the term chars
+ * posting offsets:  termCount + 1 ints into the postings, in pairs
+ * idf:              termCount doubles
+ * vector lengths:   folderCount doubles
+ * postings:         pairCount (folder id, tf) int pairs, sorted by folder id
+ * term chars:       charCount chars
+ * folder names:     folderCount strings (length, chars)
+ * folder table:     tableCount strings (length, chars)
+ * CRC32 of all of the above
+ * </pre>
+ * 
+ * @author stw
+ * 
+ */
+public class MappedModel implements ScoringModel {
+
+	private static final int MAGIC = ('S' << 24) | ('F' << 16) | ('I' << 8)
+			| 'X';
+
+	/**
+	 * Increase whenever the layout changes
+	 */
+	public static final int VERSION = 2;
+
+	private static final int HEADER_SIZE = 9 * 4;
+
+	private final ByteBuffer buffer;
+
+	private final int termCount;
+	private final int tableSize;
+
+	// Start of each section in the buffer
+	private final int tablePos;
+	private final int termOffsetsPos;
+	private final int postingOffsetsPos;
+	private final int idfPos;
+	private final int vectorLengthPos;
+	private final int postingsPos;
+	private final int charsPos;
+
+	// The only parts that live on the heap
+	private final String[] folderNames;
+	private final List<String> folderTable;
+
+	private MappedModel(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		this.termCount = buffer.getInt(12);
+		int folderCount = buffer.getInt(16);
+		this.tableSize = buffer.getInt(20);
+		int tableCount = buffer.getInt(24);
+		int charCount = buffer.getInt(28);
+		int pairCount = buffer.getInt(32);
+		if (this.termCount < 0 || folderCount < 0 || tableCount < 0
+				|| charCount < 0 || pairCount < 0 || this.tableSize <= 0
+				|| Integer.bitCount(this.tableSize) != 1) {
+			throw new IOException("Damaged model index");
+		}
+
+		long pos = HEADER_SIZE;
+		this.tablePos = (int) pos;
+		pos += 4L * this.tableSize;
+		this.termOffsetsPos = (int) pos;
+		pos += 4L * (this.termCount + 1);
+		this.postingOffsetsPos = (int) pos;
+		pos += 4L * (this.termCount + 1);
+		this.idfPos = (int) pos;
+		pos += 8L * this.termCount;
+		this.vectorLengthPos = (int) pos;
+		pos += 8L * folderCount;
+		this.postingsPos = (int) pos;
+		pos += 8L * pairCount;
+		this.charsPos = (int) pos;
+		pos += 2L * charCount;
+		if (pos > buffer.limit()) {
+			throw new IOException("Model index is truncated");
+		}
+
+		// Names are needed as Strings anyway, so we read them once
+		int stringPos = (int) pos;
+		this.folderNames = new String[folderCount];
+		for (int i = 0; i < folderCount; i++) {
+			this.folderNames[i] = this.readString(stringPos);
+			stringPos += 4 + 2 * this.folderNames[i].length();
+		}
+		List<String> table = new ArrayList<String>(tableCount);
+		for (int i = 0; i < tableCount; i++) {
+			String s = this.readString(stringPos);
+			table.add(s);
+			stringPos += 4 + 2 * s.length();
+		}
+		this.folderTable = Collections.unmodifiableList(table);
+	}
+
+	/**
+	 * Maps a model index into memory and deletes the indexes of older model
+	 * files
+	 * 
+	 * @param file
+	 *            the index file, the checksum gets appended to the name
+	 * @param checksum
+	 *            the checksum of the current model file
+	 * @return the mapped model or null if there is no index for the current
+	 *         model file
+	 * @throws IOException
+	 *             when the index can't be read or is damaged
+	 */
+	public static MappedModel open(File file, int checksum) throws IOException {
+		deleteStale(file, checksum);
+		File indexFile = getFile(file, checksum);
+		if (!indexFile.exists() || indexFile.length() < HEADER_SIZE + 4
+				|| indexFile.length() > Integer.MAX_VALUE) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+		MappedByteBuffer buffer;
+		try {
+			// Only a matching index gets mapped, a mapping lives until the
+			// garbage collector finds it
+			if (raf.readInt() != MAGIC || raf.readInt() != VERSION
+					|| raf.readInt() != checksum) {
+				return null;
+			}
+			// The mapping stays valid after the channel is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+
+		// Reads every page once, the model file gets read completely too
+		// when there is no index
+		int end = buffer.limit() - 4;
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[64 * 1024];
+		buffer.position(0);
+		while (buffer.position() < end) {
+			int len = Math.min(chunk.length, end - buffer.position());
+			buffer.get(chunk, 0, len);
+			crc.update(chunk, 0, len);
+		}
+		if (buffer.getInt(end) != (int) crc.getValue()) {
+			throw new IOException(indexFile + " is damaged");
+		}
+		buffer.position(0);
+		buffer.limit(end);
+		return new MappedModel(buffer);
+	}
+
+	/**
+	 * Writes the index for a model. idf and vector lengths of the model must
+	 * be calculated. The index is written to a temporary file that is
+	 * renamed once it is on the disk, the old index may still be mapped and
+	 * stays as it is
+	 * 
+	 * @param file
+	 *            the index file, the checksum gets appended to the name
+	 * @param model
+	 * @param folderTable
+	 *            the folder table written to the model file
+	 * @param checksum
+	 *            the checksum of the model file written for the model
+	 * @throws IOException
+	 */
+	public static void write(File file, VectorModel model,
+			List<String> folderTable, int checksum) throws IOException {
+		int termCount = model.getTermCount();
+		int folderCount = model.getFolderCount();
+
+		// Hash table with a load factor below 0.5, same probing as open()
+		int tableSize = 2;
+		while (tableSize < 2 * termCount + 2) {
+			tableSize *= 2;
+		}
+		int[] table = new int[tableSize];
+		int charCount = 0;
+		int pairCount = 0;
+		for (int t = 0; t < termCount; t++) {
+			String term = model.getTerm(t);
+			int slot = mix(term.hashCode()) & (tableSize - 1);
+			while (table[slot] != 0) {
+				slot = (slot + 1) & (tableSize - 1);
+			}
+			table[slot] = t + 1;
+			charCount += term.length();
+			pairCount += model.getPostingSize(t);
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		CRC32 crc = new CRC32();
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+				new BufferedOutputStream(fileOut, 64 * 1024), crc));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(checksum);
+			out.writeInt(termCount);
+			out.writeInt(folderCount);
+			out.writeInt(tableSize);
+			out.writeInt(folderTable.size());
+			out.writeInt(charCount);
+			out.writeInt(pairCount);
+
+			for (int i = 0; i < tableSize; i++) {
+				out.writeInt(table[i]);
+			}
+			int offset = 0;
+			for (int t = 0; t < termCount; t++) {
+				out.writeInt(offset);
+				offset += model.getTerm(t).length();
+			}
+			out.writeInt(offset);
+			offset = 0;
+			for (int t = 0; t < termCount; t++) {
+				out.writeInt(offset);
+				offset += model.getPostingSize(t);
+			}
+			out.writeInt(offset);
+			for (int t = 0; t < termCount; t++) {
+				out.writeDouble(model.getIdf(t));
+			}
+			for (int f = 0; f < folderCount; f++) {
+				out.writeDouble(model.getVectorLength(f));
+			}
+			for (int t = 0; t < termCount; t++) {
+				for (int i = 0; i < model.getPostingSize(t); i++) {
+					out.writeInt(model.getPostingFolder(t, i));
+					out.writeInt(model.getPostingCount(t, i));
+				}
+			}
+			for (int t = 0; t < termCount; t++) {
+				out.writeChars(model.getTerm(t));
+			}
+			for (int f = 0; f < folderCount; f++) {
+				writeString(out, model.getFolderName(f));
+			}
+			for (String s : folderTable) {
+				writeString(out, s);
+			}
+			out.flush();
+			out.writeInt((int) crc.getValue());
+			out.flush();
+			// On the disk before it gets its name
+			fileOut.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		try {
+			ModelFile.replace(tmp, getFile(file, checksum));
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+	}
+
+	public int getFolderCount() {
+		return this.folderNames.length;
+	}
+
+	public String getFolderName(int folderId) {
+		return this.folderNames[folderId];
+	}
+
+	/**
+	 * @return the folder table written to the model file
+	 */
+	public List<String> getFolderTable() {
+		return this.folderTable;
+	}
+
+	public double getIdf(int termId) {
+		return this.buffer.getDouble(this.idfPos + 8 * termId);
+	}
+
+	public int getPostingCount(int termId, int i) {
+		return this.buffer.getInt(this.postingsPos + 8
+				* (this.postingStart(termId) + i) + 4);
+	}
+
+	public int getPostingFolder(int termId, int i) {
+		return this.buffer.getInt(this.postingsPos + 8
+				* (this.postingStart(termId) + i));
+	}
+
+	public int getPostingSize(int termId) {
+		int pos = this.postingOffsetsPos + 4 * termId;
+		return this.buffer.getInt(pos + 4) - this.buffer.getInt(pos);
+	}
+
+	public int getTermCount() {
+		return this.termCount;
+	}
+
+	public int getTermId(String term) {
+		int mask = this.tableSize - 1;
+		int slot = mix(term.hashCode()) & mask;
+		while (true) {
+			int id = this.buffer.getInt(this.tablePos + 4 * slot) - 1;
+			if (id < 0 || this.termEquals(id, term)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public int getTermId(char[] buf, int off, int len) {
+		int h = 0;
+		for (int i = off; i < off + len; i++) {
+			h = 31 * h + buf[i];
+		}
+		int mask = this.tableSize - 1;
+		int slot = mix(h) & mask;
+		while (true) {
+			int id = this.buffer.getInt(this.tablePos + 4 * slot) - 1;
+			if (id < 0 || this.termEquals(id, buf, off, len)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public double getVectorLength(int folderId) {
+		return this.buffer.getDouble(this.vectorLengthPos + 8 * folderId);
+	}
+
+	/**
+	 * Deletes the indexes of other model files, on Windows the one that is
+	 * still mapped stays until the next time
+	 */
+	private static void deleteStale(File file, int checksum) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		File[] files = (dir == null) ? null : dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		String current = getFile(file, checksum).getName();
+		String tmp = file.getName() + ".tmp";
+		for (File f : files) {
+			String name = f.getName();
+			if ((name.equals(file.getName()) || name.startsWith(file
+					.getName() + ".")) && !name.equals(current)
+					&& !name.equals(tmp)) {
+				f.delete();
+			}
+		}
+	}
+
+	private static File getFile(File file, int checksum) {
+		return new File(file.getPath() + "." + Integer.toHexString(checksum));
+	}
+
+	/**
+	 * Same mixing as the {@link TermDictionary}
+	 */
+	private static int mix(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		out.writeInt(s.length());
+		out.writeChars(s);
+	}
+
+	private int postingStart(int termId) {
+		return this.buffer.getInt(this.postingOffsetsPos + 4 * termId);
+	}
+
+	private String readString(int pos) throws IOException {
+		if (pos + 4 > this.buffer.limit()) {
+			throw new IOException("Model index is truncated");
+		}
+		int len = this.buffer.getInt(pos);
+		if (len < 0 || pos + 4 + 2L * len > this.buffer.limit()) {
+			throw new IOException("Model index is truncated");
+		}
+		char[] chars = new char[len];
+		for (int i = 0; i < len; i++) {
+			chars[i] = this.buffer.getChar(pos + 4 + 2 * i);
+		}
+		return new String(chars);
+	}
+
+	private boolean termEquals(int termId, char[] buf, int off, int len) {
+		int pos = this.termOffsetsPos + 4 * termId;
+		int start = this.buffer.getInt(pos);
+		if (len != this.buffer.getInt(pos + 4) - start) {
+			return false;
+		}
+		int charPos = this.charsPos + 2 * start;
+		for (int i = 0; i < len; i++) {
+			if (this.buffer.getChar(charPos + 2 * i) != buf[off + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean termEquals(int termId, String term) {
+		int pos = this.termOffsetsPos + 4 * termId;
+		int start = this.buffer.getInt(pos);
+		int len = this.buffer.getInt(pos + 4) - start;
+		if (len != term.length()) {
+			return false;
+		}
+		int charPos = this.charsPos + 2 * start;
+		for (int i = 0; i < len; i++) {
+			if (this.buffer.getChar(charPos + 2 * i) != term.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
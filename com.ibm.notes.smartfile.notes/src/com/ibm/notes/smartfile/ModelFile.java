@@ -0,0 +1,399 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the vector model in a compact binary format, replacing the
+ * Java serialization of nested HashMaps. The layout is:
+ * 
+ * <pre>
+ * "SFMD" version
+ * folder table:  count, strings (whatever the engine needs to remember)
+ * model folders: count, folder names in folder id order
+ * words:         count, then per word: word, df,
+ *                df x (folder id - previous folder id, tf)
+ * CRC32 of everything before, 4 bytes
+ * </pre>
+ * 
+ * All numbers are unsigned varints (7 bits per byte, low bits first), strings
+ * are the number of chars followed by the chars in UTF-8. Only the counts are
+ * stored, idf and vector lengths have to be calculated after reading.
+ * 
+ * @author stw
+ * 
+ */
+public class ModelFile {
+
+	private static final byte[] MAGIC = { 'S', 'F', 'M', 'D' };
+
+	/**
+	 * Increase whenever the layout changes
+	 */
+	public static final int VERSION = 1;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+
+	// Bytes of buf before this position are in the checksum already
+	private int checked = 0;
+	private final CRC32 crc = new CRC32();
+
+	private InputStream in = null;
+	private OutputStream out = null;
+
+	// Characters of the string read last
+	private char[] chars = new char[256];
+
+	private ModelFile(InputStream in) {
+		this.in = in;
+	}
+
+	private ModelFile(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Checks if a stream starts with a model file without consuming anything.
+	 * Files written with ObjectOutputStream by older versions don't
+	 * 
+	 * @param in
+	 *            a stream that supports mark and reset
+	 * @return true if the stream is in the model file format
+	 * @throws IOException
+	 */
+	public static boolean isModelFile(InputStream in) throws IOException {
+		in.mark(MAGIC.length);
+		try {
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (in.read() != MAGIC[i]) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			in.reset();
+		}
+	}
+
+	/**
+	 * Reads a model file straight into a new vector model
+	 * 
+	 * @param in
+	 *            the stream, it is read to the checksum but not closed
+	 * @param folderTable
+	 *            gets the folder table of the file added
+	 * @return the model with the word counts, idf and vector lengths still
+	 *         need to be calculated
+	 * @throws IOException
+	 *             when the file is not a model file, has an unknown version
+	 *             or is damaged
+	 */
+	public static VectorModel read(InputStream in, List<String> folderTable)
+			throws IOException {
+		return new ModelFile(in).readModel(folderTable);
+	}
+
+	/**
+	 * Writes the word counts of a model
+	 * 
+	 * @param out
+	 *            the stream, it is flushed but not closed
+	 * @param folderTable
+	 *            strings the engine needs to remember about the folders
+	 * @param model
+	 * @return the checksum stored at the end of the file
+	 * @throws IOException
+	 */
+	public static int write(OutputStream out, List<String> folderTable,
+			VectorModel model) throws IOException {
+		return new ModelFile(out).writeModel(folderTable, model);
+	}
+
+	/**
+	 * Moves a freshly written file over the old one. A rename is atomic where
+	 * the platform allows it; Windows doesn't rename over an existing file,
+	 * so the old one is deleted first there
+	 * 
+	 * @param from
+	 *            the new file, completely written and closed
+	 * @param to
+	 *            the file to replace
+	 * @throws IOException
+	 */
+	public static void replace(File from, File to) throws IOException {
+		if (!from.renameTo(to)) {
+			to.delete();
+			if (!from.renameTo(to)) {
+				throw new IOException("Could not rename " + from + " to " + to);
+			}
+		}
+	}
+
+	/**
+	 * Reads the checksum at the end of a model file without reading the
+	 * rest, to tell if a file derived from it is still up to date
+	 * 
+	 * @param file
+	 * @return the checksum
+	 * @throws IOException
+	 */
+	public static int readChecksum(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < MAGIC.length + 4) {
+				throw new IOException("Model file is truncated");
+			}
+			raf.seek(raf.length() - 4);
+			return raf.readInt();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private VectorModel readModel(List<String> folderTable) throws IOException {
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (this.readByte() != MAGIC[i]) {
+				throw new IOException("Not a SmartFile model file");
+			}
+		}
+		int version = this.readVarInt();
+		if (version != VERSION) {
+			throw new IOException("Unknown model file version " + version);
+		}
+
+		int tableSize = this.readVarInt();
+		for (int i = 0; i < tableSize; i++) {
+			folderTable.add(this.readString());
+		}
+
+		VectorModel model = new VectorModel();
+		int folderCount = this.readVarInt();
+		for (int i = 0; i < folderCount; i++) {
+			if (model.addFolder(this.readString()) != i) {
+				throw new IOException("Duplicate folder in model file");
+			}
+		}
+
+		int termCount = this.readVarInt();
+		for (int t = 0; t < termCount; t++) {
+			int len = this.readChars();
+			if (model.addTerm(this.chars, 0, len) != t) {
+				throw new IOException("Duplicate word in model file");
+			}
+			int df = this.readVarInt();
+			if (df > folderCount) {
+				throw new IOException("Damaged model file");
+			}
+			int[] row = new int[2 * df];
+			int folderId = -1;
+			for (int i = 0; i < df; i++) {
+				int delta = this.readVarInt();
+				folderId += delta;
+				int count = this.readVarInt();
+				if ((delta == 0 && i > 0) || folderId >= folderCount
+						|| count == 0) {
+					throw new IOException("Damaged model file");
+				}
+				row[2 * i] = folderId;
+				row[2 * i + 1] = count;
+			}
+			model.loadPostings(t, row, df);
+		}
+
+		// The checksum isn't part of itself
+		this.crc.update(this.buf, this.checked, this.pos - this.checked);
+		this.checked = this.pos;
+		int expected = (int) this.crc.getValue();
+		int stored = 0;
+		for (int i = 0; i < 4; i++) {
+			stored = (stored << 8) | this.readByte();
+		}
+		if (stored != expected) {
+			throw new IOException("Model file checksum mismatch");
+		}
+
+		model.trimToSize();
+		return model;
+	}
+
+	private int writeModel(List<String> folderTable, VectorModel model)
+			throws IOException {
+		this.buf[this.pos++] = MAGIC[0];
+		this.buf[this.pos++] = MAGIC[1];
+		this.buf[this.pos++] = MAGIC[2];
+		this.buf[this.pos++] = MAGIC[3];
+		this.writeVarInt(VERSION);
+
+		this.writeVarInt(folderTable.size());
+		for (String s : folderTable) {
+			this.writeString(s);
+		}
+
+		int folderCount = model.getFolderCount();
+		this.writeVarInt(folderCount);
+		for (int f = 0; f < folderCount; f++) {
+			this.writeString(model.getFolderName(f));
+		}
+
+		int termCount = model.getTermCount();
+		this.writeVarInt(termCount);
+		for (int t = 0; t < termCount; t++) {
+			this.writeString(model.getTerm(t));
+			int[] row = model.getPostings(t);
+			int df = model.getPostingSize(t);
+			this.writeVarInt(df);
+			int previous = -1;
+			for (int i = 0; i < df; i++) {
+				this.writeVarInt(row[2 * i] - previous);
+				this.writeVarInt(row[2 * i + 1]);
+				previous = row[2 * i];
+			}
+		}
+
+		this.flushBuffer();
+		int value = (int) this.crc.getValue();
+		this.out.write(value >>> 24);
+		this.out.write(value >>> 16);
+		this.out.write(value >>> 8);
+		this.out.write(value);
+		this.out.flush();
+		return value;
+	}
+
+	private void fill() throws IOException {
+		this.crc.update(this.buf, this.checked, this.limit - this.checked);
+		this.pos = 0;
+		this.checked = 0;
+		this.limit = 0;
+		int n = this.in.read(this.buf, 0, BUFFER_SIZE);
+		if (n <= 0) {
+			throw new IOException("Model file is truncated");
+		}
+		this.limit = n;
+	}
+
+	private void flushBuffer() throws IOException {
+		this.crc.update(this.buf, 0, this.pos);
+		this.out.write(this.buf, 0, this.pos);
+		this.pos = 0;
+	}
+
+	private int readByte() throws IOException {
+		if (this.pos == this.limit) {
+			this.fill();
+		}
+		return this.buf[this.pos++] & 0xFF;
+	}
+
+	/**
+	 * Reads a string into the chars buffer
+	 * 
+	 * @return the number of chars read
+	 */
+	private int readChars() throws IOException {
+		int len = this.readVarInt();
+		if (len > this.chars.length) {
+			this.chars = new char[Math.max(len, this.chars.length * 2)];
+		}
+		for (int i = 0; i < len; i++) {
+			int b = this.readByte();
+			if (b < 0x80) {
+				this.chars[i] = (char) b;
+			} else if (b < 0xE0) {
+				this.chars[i] = (char) (((b & 0x1F) << 6) | (this.readByte() & 0x3F));
+			} else {
+				int b2 = this.readByte();
+				this.chars[i] = (char) (((b & 0x0F) << 12)
+						| ((b2 & 0x3F) << 6) | (this.readByte() & 0x3F));
+			}
+		}
+		return len;
+	}
+
+	private String readString() throws IOException {
+		int len = this.readChars();
+		return new String(this.chars, 0, len);
+	}
+
+	private int readVarInt() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = this.readByte();
+			value |= (b & 0x7F) << shift;
+			if (b < 0x80) {
+				if (value < 0) {
+					break;
+				}
+				return value;
+			}
+		}
+		throw new IOException("Damaged model file");
+	}
+
+	/**
+	 * Writes the chars one by one as 1 to 3 bytes of UTF-8, surrogate pairs
+	 * are written as two chars, so reading gives back exactly the same string
+	 */
+	private void writeString(String s) throws IOException {
+		int len = s.length();
+		this.writeVarInt(len);
+		for (int i = 0; i < len; i++) {
+			if (this.pos + 3 > BUFFER_SIZE) {
+				this.flushBuffer();
+			}
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				this.buf[this.pos++] = (byte) c;
+			} else if (c < 0x800) {
+				this.buf[this.pos++] = (byte) (0xC0 | (c >> 6));
+				this.buf[this.pos++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				this.buf[this.pos++] = (byte) (0xE0 | (c >> 12));
+				this.buf[this.pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				this.buf[this.pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private void writeVarInt(int value) throws IOException {
+		if (this.pos + 5 > BUFFER_SIZE) {
+			this.flushBuffer();
+		}
+		while ((value & ~0x7F) != 0) {
+			this.buf[this.pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		this.buf[this.pos++] = (byte) value;
+	}
+
+}
@@ -0,0 +1,166 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * Writes snapshots of the model in the background, so the Notes thread
+ * doesn't wait for the disk. The model file is written to a temporary file
+ * and renamed over the old one, so a crash never leaves a half written model
+ * file behind. When a save fails it is retried later; a newer snapshot
+ * published in the meantime replaces the failed one
+ * 
+ * @author stw
+ * 
+ */
+public class ModelSaveJob extends Job {
+
+	private static final long MIN_RETRY_DELAY = 30 * 1000;
+	private static final long MAX_RETRY_DELAY = 30 * 60 * 1000;
+
+	private final Configuration config;
+	private final LearningJournal journal;
+
+	// The snapshot waiting to be written, null if there is none
+	private VectorModel pendingModel = null;
+	private List<String> pendingFolderTable = null;
+	private long pendingPosition = 0;
+
+	private long retryDelay = MIN_RETRY_DELAY;
+
+	/**
+	 * @param config
+	 *            where the files go
+	 * @param journal
+	 *            gets compacted once a model file is written
+	 */
+	public ModelSaveJob(Configuration config, LearningJournal journal) {
+		super("SmartFile model save");
+		this.config = config;
+		this.journal = journal;
+		this.setSystem(true);
+	}
+
+	/**
+	 * Hands a snapshot to the job and schedules it
+	 * 
+	 * @param snapshot
+	 *            a snapshot of the model with idf and vector lengths
+	 *            calculated, it must not be changed any more
+	 * @param folderTable
+	 *            the folder table to store with it
+	 * @param journalPosition
+	 *            the journal position when the snapshot was taken
+	 */
+	public void publish(VectorModel snapshot, List<String> folderTable,
+			long journalPosition) {
+		synchronized (this) {
+			this.pendingModel = snapshot;
+			this.pendingFolderTable = folderTable;
+			this.pendingPosition = journalPosition;
+		}
+		this.schedule();
+	}
+
+	@Override
+	protected IStatus run(IProgressMonitor monitor) {
+		VectorModel snapshot;
+		List<String> folderTable;
+		long position;
+		synchronized (this) {
+			snapshot = this.pendingModel;
+			folderTable = this.pendingFolderTable;
+			position = this.pendingPosition;
+			this.pendingModel = null;
+		}
+		if (snapshot == null) {
+			return Status.OK_STATUS;
+		}
+
+		try {
+			this.write(snapshot, folderTable, position);
+			this.retryDelay = MIN_RETRY_DELAY;
+		} catch (IOException e) {
+			Utils.logError("Could not save the model, retrying in "
+					+ (this.retryDelay / 1000) + " seconds", e);
+			synchronized (this) {
+				if (this.pendingModel == null) {
+					this.pendingModel = snapshot;
+					this.pendingFolderTable = folderTable;
+					this.pendingPosition = position;
+				}
+			}
+			this.schedule(this.retryDelay);
+			this.retryDelay = Math.min(2 * this.retryDelay, MAX_RETRY_DELAY);
+		}
+		return Status.OK_STATUS;
+	}
+
+	private void write(VectorModel snapshot, List<String> folderTable,
+			long position) throws IOException {
+		File modelFile = new File(this.config.getSmartfilePersistenceFile());
+		File tmp = new File(modelFile.getPath() + ".tmp");
+
+		FileOutputStream out = new FileOutputStream(tmp);
+		int checksum;
+		try {
+			checksum = ModelFile.write(out, folderTable, snapshot);
+			// On the disk before it replaces the old model file
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		// Replay starts at the snapshot position if we die before compacting
+		this.journal.checkpoint(checksum, position);
+		ModelFile.replace(tmp, modelFile);
+
+		// The index is optional, it is named after the checksum and an
+		// outdated one isn't used
+		try {
+			MappedModel.write(new File(this.config.getSmartfileIndexFile()),
+					snapshot, folderTable, checksum);
+		} catch (IOException e) {
+			// Without an index the next start reads the model file
+			Utils.logWarning("\tCould not write the model index: "
+					+ e.getMessage());
+		}
+
+		try {
+			this.journal.compact(checksum, position);
+		} catch (IOException e) {
+			// Replay finds the checkpoint
+			Utils.logWarning("\tCould not compact the learning journal: "
+					+ e.getMessage());
+		}
+	}
+
+}
@@ -21,15 +21,8 @@
  * ========================================================================== */
 package com.ibm.notes.smartfile;
 
-import lotus.domino.NotesException;
-import lotus.domino.Session;
-
-import org.eclipse.core.runtime.IProgressMonitor;
-import org.eclipse.core.runtime.IStatus;
 import org.eclipse.ui.IStartup;
 
-import com.ibm.notes.java.api.util.NotesSessionJob;
-
 public class NotesStartup implements IStartup {
 
 	public NotesStartup() {
@@ -45,20 +38,10 @@ public class NotesStartup implements IStartup {
 			return;
 		}
 
-		// Start the initial setting
-		new NotesSessionJob("SmartFile Startup") {
-
-			/**
-			 * Runs the processing of all folders and new messages at start of
-			 * the Notes client
-			 */
-			@Override
-			protected IStatus runInNotesThread(Session s,
-					IProgressMonitor monitor) throws NotesException {
-				Engine engine = Activator.getDefault().getEngine();
-				return engine.scheduledProcessing(s, monitor);
-			}
+		// Start the initial setting, together with whatever else asks for it
+		Activator.getDefault().getProcessingJob().request("startup");
 
-		}.schedule();
+		// From now on new mail is picked up as it arrives
+		Activator.getDefault().getInboxWatchJob().requestCheck();
 	}
 }
@@ -53,6 +53,14 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 
 		store.setDefault(Configuration.PROPERTY_FIELDS_PROCESS, "Body,Subject");
 
+		// Don't read more than that from one document
+		store.setDefault(Configuration.PROPERTY_MAX_TEXT_LENGTH,
+				Configuration.DEFAULT_MAX_TEXT_LENGTH);
+
+		// In between only modified documents are checked
+		store.setDefault(Configuration.PROPERTY_SWEEP_HOURS,
+				Configuration.DEFAULT_SWEEP_HOURS);
+
 		// Exclude folders that are not visible (that begin with "(" )
 		store.setDefault(Configuration.PROPERTY_EXCLUDE_HIDDENFOLDERS, true);
 
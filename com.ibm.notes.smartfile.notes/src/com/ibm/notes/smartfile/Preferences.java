@@ -28,6 +28,7 @@ import org.eclipse.jface.preference.ComboFieldEditor;
 import org.eclipse.jface.preference.DirectoryFieldEditor;
 import org.eclipse.jface.preference.FieldEditorPreferencePage;
 import org.eclipse.jface.preference.FileFieldEditor;
+import org.eclipse.jface.preference.IntegerFieldEditor;
 import org.eclipse.jface.preference.StringFieldEditor;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.ui.IWorkbench;
@@ -79,6 +80,14 @@ public class Preferences extends FieldEditorPreferencePage implements
 				"Fields to process 2/2\n(Subject, Body) - Comma separated:",
 				getFieldEditorParent()));
 
+		this.addField(new IntegerFieldEditor(
+				Configuration.PROPERTY_MAX_TEXT_LENGTH,
+				"Characters to read per message at most:", parent));
+
+		this.addField(new IntegerFieldEditor(
+				Configuration.PROPERTY_SWEEP_HOURS,
+				"Hours between checks of all messages:", parent));
+
 		this.addField(new BooleanFieldEditor(
 				Configuration.PROPERTY_EXCLUDE_HIDDENFOLDERS,
 				"Exclude hidden Folders\n (recommended: YES)", parent));
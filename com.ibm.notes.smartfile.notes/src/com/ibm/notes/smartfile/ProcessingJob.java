@@ -0,0 +1,131 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lotus.domino.NotesException;
+import lotus.domino.Session;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.jobs.Job;
+
+import com.ibm.notes.java.api.util.NotesSessionJob;
+
+/**
+ * Runs the processing of all folders and new messages, for the start of the
+ * client, replication and new mail alike. There is only this one job and
+ * Eclipse never runs a job twice at the same time. Scheduling it while it
+ * runs makes it run once more afterwards, so however many requests come in
+ * during a run, they lead to a single follow-up run
+ * 
+ * @author stw
+ * 
+ */
+public class ProcessingJob extends NotesSessionJob {
+
+	// Requests since the start of the client, and the runs that served them
+	private final AtomicInteger requestCount = new AtomicInteger();
+	private final AtomicInteger runCount = new AtomicInteger();
+
+	// Set by a request, cleared when a run starts
+	private volatile boolean pending = false;
+
+	// How the last run ended, null before the first one
+	private volatile IStatus lastResult = null;
+	private volatile long lastFinished = 0;
+
+	public ProcessingJob() {
+		super("SmartFile processing");
+	}
+
+	/**
+	 * Asks for a run. A request that comes in while one waits is served by
+	 * that one, while one runs it gets one more run afterwards
+	 * 
+	 * @param reason
+	 *            who asks, for the log
+	 */
+	public void request(String reason) {
+		this.requestCount.incrementAndGet();
+		this.pending = true;
+		Utils.logInfo("SmartFile processing requested by " + reason);
+		this.schedule();
+	}
+
+	/**
+	 * @return how many requests didn't need a run of their own
+	 */
+	public int getCoalescedCount() {
+		return Math.max(0, this.requestCount.get() - this.runCount.get()
+				- (this.pending ? 1 : 0));
+	}
+
+	/**
+	 * @return when the last run ended, 0 before the first one
+	 */
+	public long getLastFinished() {
+		return this.lastFinished;
+	}
+
+	public IStatus getLastResult() {
+		return this.lastResult;
+	}
+
+	public int getRequestCount() {
+		return this.requestCount.get();
+	}
+
+	public int getRunCount() {
+		return this.runCount.get();
+	}
+
+	/**
+	 * @return true if a request waits for the next run
+	 */
+	public boolean isPending() {
+		return this.pending;
+	}
+
+	public boolean isRunning() {
+		return this.getState() == Job.RUNNING;
+	}
+
+	@Override
+	protected IStatus runInNotesThread(Session s, IProgressMonitor monitor)
+			throws NotesException {
+		// Requests from now on need another run
+		this.pending = false;
+		this.runCount.incrementAndGet();
+		IStatus result = null;
+		try {
+			Engine engine = Activator.getDefault().getEngine();
+			result = engine.scheduledProcessing(s, monitor);
+		} finally {
+			this.lastResult = result;
+			this.lastFinished = System.currentTimeMillis();
+		}
+		return result;
+	}
+
+}
@@ -21,16 +21,11 @@
  * ========================================================================== */
 package com.ibm.notes.smartfile;
 
-import lotus.domino.NotesException;
-import lotus.domino.Session;
-
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.jobs.Job;
 
-import com.ibm.notes.java.api.util.NotesSessionJob;
-
 public class RunOnReplication extends Job {
 
 	// TODO: what about implements IRunnableWithProgress
@@ -49,25 +44,11 @@ public class RunOnReplication extends Job {
 			return Status.CANCEL_STATUS;
 		}
 
-		// Start the initial setting
-		NotesSessionJob nsj = new NotesSessionJob("SmartFile Replication") {
-
-			/**
-			 * Runs the processing of all folders and new messages at start of
-			 * the Notes client
-			 */
-			@Override
-			protected IStatus runInNotesThread(Session s,
-					IProgressMonitor monitor) throws NotesException {
-				Engine engine = Activator.getDefault().getEngine();
-				return engine.scheduledProcessing(s, monitor);
-			}
-
-		};
+		// Overlapping replications share one run of the processing
+		Activator.getDefault().getProcessingJob().request("replication");
 
-		// TODO: Can we link the progress monitor to the one provided as
-		// parameter
-		nsj.schedule();
+		// Replication might have brought new mail, stop backing off
+		Activator.getDefault().getInboxWatchJob().requestCheck();
 
 		return Status.OK_STATUS;
 	}
@@ -0,0 +1,129 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lotus.domino.Document;
+import lotus.domino.NotesException;
+
+/**
+ * Collects documents that have changed and saves them a batch at a time,
+ * instead of one save in the middle of each document's processing. The batch
+ * is bounded, so only a few document handles stay open. It counts the saves
+ * done and the ones avoided because nothing changed, so a cycle can report
+ * them.
+ * <p>
+ * A batch is not thread safe, use one per cycle
+ * 
+ * @author stw
+ * 
+ */
+public class SaveBatch {
+
+	/**
+	 * How many documents are saved together
+	 */
+	public static final int DEFAULT_SIZE = 50;
+
+	private final int size;
+	private final List<Document> pending;
+	private int saved = 0;
+	private int skipped = 0;
+
+	public SaveBatch() {
+		this(DEFAULT_SIZE);
+	}
+
+	/**
+	 * @param size
+	 *            how many documents are saved together
+	 */
+	public SaveBatch(int size) {
+		this.size = Math.max(1, size);
+		this.pending = new ArrayList<Document>(this.size);
+	}
+
+	/**
+	 * Queues a changed document for saving. The batch owns the document now
+	 * and recycles it after saving, the caller must not recycle it
+	 * 
+	 * @param doc
+	 * @throws NotesException
+	 *             when the batch was full and a save failed
+	 */
+	public void add(Document doc) throws NotesException {
+		this.pending.add(doc);
+		if (this.pending.size() >= this.size) {
+			this.flush();
+		}
+	}
+
+	/**
+	 * Saves and recycles all queued documents. A failing save doesn't stop
+	 * the others, the first failure is thrown at the end
+	 * 
+	 * @throws NotesException
+	 */
+	public void flush() throws NotesException {
+		NotesException failure = null;
+		for (Document doc : this.pending) {
+			try {
+				doc.save();
+				this.saved++;
+			} catch (NotesException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			} finally {
+				Utils.shred(doc);
+			}
+		}
+		this.pending.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * @return the number of documents saved so far
+	 */
+	public int getSaved() {
+		return this.saved;
+	}
+
+	/**
+	 * @return the number of saves avoided so far
+	 */
+	public int getSkipped() {
+		return this.skipped;
+	}
+
+	/**
+	 * Counts a document that didn't need a save
+	 */
+	public void skip() {
+		this.skipped++;
+	}
+
+}
@@ -0,0 +1,76 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+/**
+ * What the {@link FolderScorer} needs to know about a model: the idf of the
+ * words, their (folder id, tf) postings and the folder vector lengths. The
+ * {@link VectorModel} can learn, a model mapped from a file is read only but
+ * doesn't need to be loaded first
+ * 
+ * @author stw
+ * 
+ */
+public interface ScoringModel {
+
+	public int getFolderCount();
+
+	public String getFolderName(int folderId);
+
+	public double getIdf(int termId);
+
+	/**
+	 * @return the folder id of the i-th pair of a word
+	 */
+	public int getPostingFolder(int termId, int i);
+
+	/**
+	 * @return the tf of the i-th pair of a word
+	 */
+	public int getPostingCount(int termId, int i);
+
+	/**
+	 * @return the number of folders that contain a word
+	 */
+	public int getPostingSize(int termId);
+
+	/**
+	 * @param term
+	 * @return the id of the word or -1 if the model doesn't know it
+	 */
+	public int getTermId(String term);
+
+	/**
+	 * Same as getTermId(String) for a word given as characters in a buffer
+	 * 
+	 * @param buf
+	 * @param off
+	 *            start of the word in buf
+	 * @param len
+	 *            length of the word
+	 * @return the id of the word or -1 if the model doesn't know it
+	 */
+	public int getTermId(char[] buf, int off, int len);
+
+	public double getVectorLength(int folderId);
+
+}
@@ -0,0 +1,159 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * The stopwords of one language in a hash set that never changes after it
+ * was loaded. Each list is read once from its resource file and shared by
+ * everybody who asks for that language. Words can be looked up straight
+ * from a char buffer like the one of the {@link Tokenizer}, without creating
+ * a String
+ * 
+ * @author stw
+ * 
+ */
+public final class StopWordSet {
+
+	// language -> stopwords, null when there is no list for a language
+	private static final Map<String, StopWordSet> languages = new HashMap<String, StopWordSet>();
+
+	// Only read after the constructor is done
+	private final TermDictionary words;
+
+	private StopWordSet(TermDictionary words) {
+		words.trimToSize();
+		this.words = words;
+	}
+
+	/**
+	 * Returns the stopwords of a language, loaded from stopwords_[language].txt
+	 * the first time somebody asks
+	 * 
+	 * @param language
+	 *            e.g. en
+	 * @return the stopwords or null if there is no list for the language
+	 */
+	public static synchronized StopWordSet forLanguage(String language) {
+		if (languages.containsKey(language)) {
+			return languages.get(language);
+		}
+		StopWordSet result = null;
+		InputStream in = StopWordSet.class.getResourceAsStream("stopwords_"
+				+ language + ".txt");
+		if (in != null) {
+			try {
+				result = read(in);
+			} finally {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Nothing to do, we have read it already
+				}
+			}
+		}
+		languages.put(language, result);
+		return result;
+	}
+
+	/**
+	 * @param stopWords
+	 * @return a set with the given words
+	 */
+	public static StopWordSet of(Collection<String> stopWords) {
+		TermDictionary words = new TermDictionary();
+		for (String word : stopWords) {
+			words.add(word);
+		}
+		return new StopWordSet(words);
+	}
+
+	/**
+	 * Reads a stopword list, one word per line. Lines starting with # are
+	 * comments, so is everything after a # behind a word
+	 * 
+	 * @param in
+	 *            the list in UTF-8, not closed
+	 * @return the stopwords
+	 */
+	public static StopWordSet read(InputStream in) {
+		TermDictionary words = new TermDictionary();
+		Scanner s = new Scanner(in, "UTF-8");
+		while (s.hasNextLine()) {
+			String curLine = s.nextLine().trim();
+			// Comment lines begin with #
+			if (!curLine.startsWith("#")) {
+				// Inline comments begin with # after the word
+				int comment = curLine.indexOf('#');
+				if (comment > 0) {
+					curLine = curLine.substring(0, comment).trim();
+				}
+				// make sure we don't have empty lines as stopwords
+				if (!curLine.equals("")) {
+					words.add(curLine);
+				}
+			}
+		}
+		return new StopWordSet(words);
+	}
+
+	/**
+	 * @param word
+	 *            char array holding the word
+	 * @param off
+	 *            start of the word
+	 * @param len
+	 *            length of the word
+	 * @return is the word a stopword
+	 */
+	public boolean contains(char[] word, int off, int len) {
+		return this.words.getId(word, off, len) >= 0;
+	}
+
+	public boolean contains(String word) {
+		return this.words.getId(word) >= 0;
+	}
+
+	public int size() {
+		return this.words.size();
+	}
+
+	/**
+	 * @return the stopwords as a new list
+	 */
+	public List<String> toList() {
+		List<String> result = new ArrayList<String>(this.words.size());
+		for (int i = 0; i < this.words.size(); i++) {
+			result.add(this.words.getTerm(i));
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,123 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+/**
+ * Counts how often each word occurs in a document. The words are kept in a
+ * {@link TermDictionary} and the counts in an int array, both are reused for
+ * the next document after clear(), so counting doesn't allocate once the
+ * arrays have grown to the size of a typical document
+ * 
+ * @author stw
+ * 
+ */
+public class TermCounter {
+
+	private final TermDictionary terms = new TermDictionary();
+
+	// entry -> count
+	private int[] counts = new int[64];
+
+	/**
+	 * Counts one occurrence of a word given as characters in a buffer
+	 * 
+	 * @param buf
+	 * @param off
+	 *            start of the word in buf
+	 * @param len
+	 *            length of the word
+	 */
+	public void add(char[] buf, int off, int len) {
+		this.add(this.terms.add(buf, off, len), 1);
+	}
+
+	/**
+	 * Adds to the count of a word
+	 * 
+	 * @param word
+	 * @param count
+	 */
+	public void add(String word, int count) {
+		this.add(this.terms.add(word), count);
+	}
+
+	/**
+	 * Forgets all words, ready for the next document
+	 */
+	public void clear() {
+		for (int i = 0; i < this.terms.size(); i++) {
+			this.counts[i] = 0;
+		}
+		this.terms.clear();
+	}
+
+	/**
+	 * The characters of all words, read only! Word i is at getOffset(i),
+	 * getLength(i) chars long
+	 */
+	public char[] getChars() {
+		return this.terms.getChars();
+	}
+
+	/**
+	 * @param i
+	 *            0 to size() - 1
+	 * @return how often word i occurred
+	 */
+	public int getCount(int i) {
+		return this.counts[i];
+	}
+
+	public int getLength(int i) {
+		return this.terms.getLength(i);
+	}
+
+	public int getOffset(int i) {
+		return this.terms.getOffset(i);
+	}
+
+	/**
+	 * @param i
+	 *            0 to size() - 1
+	 * @return word i as a String, this allocates
+	 */
+	public String getWord(int i) {
+		return this.terms.getTerm(i);
+	}
+
+	/**
+	 * @return the number of different words
+	 */
+	public int size() {
+		return this.terms.size();
+	}
+
+	private void add(int i, int count) {
+		if (i >= this.counts.length) {
+			int[] newCounts = new int[Math.max(i + 1, this.counts.length * 2)];
+			System.arraycopy(this.counts, 0, newCounts, 0, this.counts.length);
+			this.counts = newCounts;
+		}
+		this.counts[i] += count;
+	}
+
+}
@@ -0,0 +1,372 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.util.Arrays;
+
+/**
+ * Maps strings (words or folder names) to dense int ids starting at 0. The
+ * characters of all entries live in one shared char pool, so a dictionary
+ * entry costs a few bytes instead of a String object per word
+ * 
+ * @author stw
+ * 
+ */
+public class TermDictionary {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * All characters of all entries, one after the other
+	 */
+	private char[] chars = new char[INITIAL_CAPACITY * 8];
+
+	/**
+	 * Start of entry id in the char pool, the entry ends where id + 1 starts
+	 */
+	private int[] offsets = new int[INITIAL_CAPACITY + 1];
+
+	/**
+	 * Open addressing hash table, holds id + 1 of an entry, 0 = empty slot
+	 */
+	private int[] table = new int[INITIAL_CAPACITY * 2];
+
+	/**
+	 * Number of entries in the dictionary
+	 */
+	private int size = 0;
+
+	/**
+	 * The arrays are used by a snapshot too. Adding only writes behind the
+	 * entries a snapshot knows and into empty hash slots, which a snapshot
+	 * skips, so they stay shared. Only clear() has to start over
+	 */
+	private boolean shared = false;
+
+	/**
+	 * This is a snapshot, it copies the arrays before its first add as the
+	 * dictionary it was taken from keeps adding to them
+	 */
+	private boolean view = false;
+
+	public TermDictionary() {
+	}
+
+	private TermDictionary(TermDictionary source) {
+		this.chars = source.chars;
+		this.offsets = source.offsets;
+		this.table = source.table;
+		this.size = source.size;
+		this.view = true;
+	}
+
+	/**
+	 * Adds a string to the dictionary if it isn't there yet
+	 * 
+	 * @param term
+	 * @return the id of the string
+	 */
+	public int add(String term) {
+		this.unshare();
+		int slot = this.findSlot(term, term.hashCode());
+		if (this.table[slot] != 0) {
+			return this.table[slot] - 1;
+		}
+
+		// New entry: copy the characters into the pool
+		int len = term.length();
+		int start = this.ensureCapacity(len);
+		term.getChars(0, len, this.chars, start);
+		return this.addEntry(slot, len);
+	}
+
+	/**
+	 * Adds a string given as characters in a buffer to the dictionary if it
+	 * isn't there yet, without creating a String for it
+	 * 
+	 * @param buf
+	 * @param off
+	 *            start of the string in buf
+	 * @param len
+	 *            length of the string
+	 * @return the id of the string
+	 */
+	public int add(char[] buf, int off, int len) {
+		this.unshare();
+		int slot = this.findSlot(buf, off, len, hash(buf, off, len));
+		if (this.table[slot] != 0) {
+			return this.table[slot] - 1;
+		}
+
+		int start = this.ensureCapacity(len);
+		System.arraycopy(buf, off, this.chars, start, len);
+		return this.addEntry(slot, len);
+	}
+
+	/**
+	 * @param term
+	 * @return the id of the string or -1 if it is not in the dictionary
+	 */
+	public int getId(String term) {
+		return this.entryId(this.findSlot(term, term.hashCode()));
+	}
+
+	/**
+	 * @param buf
+	 * @param off
+	 *            start of the string in buf
+	 * @param len
+	 *            length of the string
+	 * @return the id of the string or -1 if it is not in the dictionary
+	 */
+	public int getId(char[] buf, int off, int len) {
+		return this.entryId(this.findSlot(buf, off, len, hash(buf, off, len)));
+	}
+
+	/**
+	 * Removes all entries but keeps the arrays for the next use
+	 */
+	public void clear() {
+		if (this.shared || this.view) {
+			// The snapshot keeps the arrays, we start over
+			this.chars = new char[this.chars.length];
+			this.offsets = new int[this.offsets.length];
+			this.table = new int[this.table.length];
+			this.shared = false;
+			this.view = false;
+		} else {
+			Arrays.fill(this.table, 0);
+		}
+		this.size = 0;
+	}
+
+	/**
+	 * The char pool, read only! Entry id is at getOffset(id), getLength(id)
+	 * chars long. Only valid until the next add
+	 */
+	public char[] getChars() {
+		return this.chars;
+	}
+
+	public int getLength(int id) {
+		return this.offsets[id + 1] - this.offsets[id];
+	}
+
+	public int getOffset(int id) {
+		return this.offsets[id];
+	}
+
+	/**
+	 * @param id
+	 * @return the string for a given id
+	 */
+	public String getTerm(int id) {
+		int start = this.offsets[id];
+		return new String(this.chars, start, this.offsets[id + 1] - start);
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Takes a snapshot that doesn't change when entries are added to this
+	 * dictionary. The snapshot shares the arrays for good, it only knows the
+	 * entries up to its size, so this is cheap and adding stays cheap too
+	 * 
+	 * @return the snapshot
+	 */
+	public TermDictionary snapshot() {
+		this.shared = true;
+		return new TermDictionary(this);
+	}
+
+	/**
+	 * Gives back unused space after a bulk load
+	 */
+	public void trimToSize() {
+		int used = this.offsets[this.size];
+		if (used < this.chars.length) {
+			char[] newChars = new char[used];
+			System.arraycopy(this.chars, 0, newChars, 0, used);
+			this.chars = newChars;
+		}
+		if (this.size + 1 < this.offsets.length) {
+			int[] newOffsets = new int[this.size + 1];
+			System.arraycopy(this.offsets, 0, newOffsets, 0, this.size + 1);
+			this.offsets = newOffsets;
+		}
+	}
+
+	/**
+	 * Same as String.hashCode(), so Strings and char buffers end up in the
+	 * same slots
+	 */
+	private static int hash(char[] buf, int off, int len) {
+		int h = 0;
+		for (int i = off; i < off + len; i++) {
+			h = 31 * h + buf[i];
+		}
+		return h;
+	}
+
+	private static int mix(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Registers the characters just copied to the end of the pool as new
+	 * entry in an empty slot
+	 * 
+	 * @return the id of the new entry
+	 */
+	private int addEntry(int slot, int len) {
+		int id = this.size;
+		this.offsets[id + 1] = this.offsets[id] + len;
+		this.size++;
+		this.table[slot] = id + 1;
+
+		// Keep the load factor below 0.5
+		if (this.size * 2 > this.table.length) {
+			this.rehash(this.table.length * 2);
+		}
+		return id;
+	}
+
+	/**
+	 * Makes room for one more entry
+	 * 
+	 * @return the position in the char pool where the new entry goes
+	 */
+	private int ensureCapacity(int additionalChars) {
+		if (this.size + 2 > this.offsets.length) {
+			int[] newOffsets = new int[this.offsets.length * 2];
+			System.arraycopy(this.offsets, 0, newOffsets, 0, this.size + 1);
+			this.offsets = newOffsets;
+		}
+		int needed = this.offsets[this.size] + additionalChars;
+		if (needed > this.chars.length) {
+			char[] newChars = new char[Math.max(needed, this.chars.length * 2)];
+			System.arraycopy(this.chars, 0, newChars, 0, this.offsets[this.size]);
+			this.chars = newChars;
+		}
+		return this.offsets[this.size];
+	}
+
+	private boolean entryEquals(int id, String term) {
+		int start = this.offsets[id];
+		int len = this.offsets[id + 1] - start;
+		if (len != term.length()) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (this.chars[start + i] != term.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean entryEquals(int id, char[] buf, int off, int len) {
+		int start = this.offsets[id];
+		if (len != this.offsets[id + 1] - start) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (this.chars[start + i] != buf[off + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the id in a slot or -1 if the slot is empty, also if the
+	 *         dictionary a snapshot was taken from has filled it since
+	 */
+	private int entryId(int slot) {
+		int id = this.table[slot] - 1;
+		return (id < this.size) ? id : -1;
+	}
+
+	private int entryHash(int id) {
+		int start = this.offsets[id];
+		return hash(this.chars, start, this.offsets[id + 1] - start);
+	}
+
+	/**
+	 * @return the slot holding the term or the empty slot where it would go
+	 */
+	private int findSlot(String term, int hash) {
+		int mask = this.table.length - 1;
+		int slot = mix(hash) & mask;
+		int entry;
+		while ((entry = this.table[slot]) != 0) {
+			// A snapshot skips the entries added after it was taken
+			if (entry <= this.size && this.entryEquals(entry - 1, term)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private int findSlot(char[] buf, int off, int len, int hash) {
+		int mask = this.table.length - 1;
+		int slot = mix(hash) & mask;
+		int entry;
+		while ((entry = this.table[slot]) != 0) {
+			if (entry <= this.size
+					&& this.entryEquals(entry - 1, buf, off, len)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * A snapshot gets its own arrays before it adds anything
+	 */
+	private void unshare() {
+		if (this.view) {
+			this.chars = this.chars.clone();
+			this.offsets = this.offsets.clone();
+			this.table = this.table.clone();
+			this.view = false;
+		}
+	}
+
+	private void rehash(int newLength) {
+		int[] newTable = new int[newLength];
+		int mask = newLength - 1;
+		for (int id = 0; id < this.size; id++) {
+			int slot = mix(this.entryHash(id)) & mask;
+			while (newTable[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			newTable[slot] = id + 1;
+		}
+		this.table = newTable;
+	}
+
+}
@@ -0,0 +1,192 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+/**
+ * Splits text into words the way SmartFile always did, without Scanner and
+ * regular expressions: words are separated by white space, lower cased, and
+ * leading and trailing characters that are not a-z, 0-9 or _ (the \W of a
+ * regular expression) are stripped. The text is collected in one char
+ * buffer that is reused for the next document, the words are handed out as
+ * positions in that buffer, so tokenizing allocates nothing
+ * 
+ * <pre>
+ * tokenizer.reset();
+ * tokenizer.append(text);
+ * while (tokenizer.next()) {
+ * 	counter.add(tokenizer.getBuffer(), tokenizer.getStart(),
+ * 			tokenizer.getLength());
+ * }
+ * </pre>
+ * 
+ * A tokenizer is not thread safe, use one per thread
+ * 
+ * @author stw
+ * 
+ */
+public class Tokenizer {
+
+	private char[] buf = new char[4096];
+
+	// Number of chars in buf
+	private int length = 0;
+
+	// Where next() continues
+	private int pos = 0;
+
+	// The current word
+	private int start = 0;
+	private int end = 0;
+
+	/**
+	 * Appends text followed by a space
+	 * 
+	 * @param text
+	 */
+	public void append(String text) {
+		this.append(text, 0, text.length());
+	}
+
+	/**
+	 * Appends a part of a text followed by a space
+	 * 
+	 * @param text
+	 * @param start
+	 *            first char to append
+	 * @param end
+	 *            the char after the last one to append
+	 */
+	public void append(String text, int start, int end) {
+		int len = end - start;
+		this.ensureCapacity(len + 1);
+		text.getChars(start, end, this.buf, this.length);
+		this.length += len;
+		this.buf[this.length++] = ' ';
+	}
+
+	/**
+	 * Appends text with its spaces replaced by _, followed by a space. Used
+	 * for fields like From or To, so a name stays one word
+	 * 
+	 * @param text
+	 */
+	public void appendNoSpaces(String text) {
+		int from = this.length;
+		this.append(text);
+		for (int i = from; i < this.length - 1; i++) {
+			if (this.buf[i] == ' ') {
+				this.buf[i] = '_';
+			}
+		}
+	}
+
+	/**
+	 * The buffer holding the current word, read only!
+	 */
+	public char[] getBuffer() {
+		return this.buf;
+	}
+
+	/**
+	 * @return the length of the current word, can be 0 if it was only non
+	 *         word characters
+	 */
+	public int getLength() {
+		return this.end - this.start;
+	}
+
+	/**
+	 * @return the position of the current word in the buffer
+	 */
+	public int getStart() {
+		return this.start;
+	}
+
+	/**
+	 * Moves to the next word
+	 * 
+	 * @return false if there are no more words
+	 */
+	public boolean next() {
+		char[] b = this.buf;
+		int p = this.pos;
+		while (p < this.length && Character.isWhitespace(b[p])) {
+			p++;
+		}
+		if (p == this.length) {
+			this.pos = p;
+			return false;
+		}
+		int s = p;
+		while (p < this.length && !Character.isWhitespace(b[p])) {
+			// Lower case in place, with a fast path for ASCII
+			char c = b[p];
+			if (c >= 'A' && c <= 'Z') {
+				b[p] = (char) (c + ('a' - 'A'));
+			} else if (c >= 0x80) {
+				b[p] = Character.toLowerCase(c);
+			}
+			p++;
+		}
+		this.pos = p;
+
+		// Strip leading and trailing non word characters
+		int e = p;
+		while (s < e && !isWordChar(b[s])) {
+			s++;
+		}
+		while (e > s && !isWordChar(b[e - 1])) {
+			e--;
+		}
+		this.start = s;
+		this.end = e;
+		return true;
+	}
+
+	/**
+	 * Empties the buffer for the next document
+	 */
+	public void reset() {
+		this.length = 0;
+		this.pos = 0;
+		this.start = 0;
+		this.end = 0;
+	}
+
+	/**
+	 * Same as \w in a regular expression: a-z, A-Z, 0-9 and _
+	 */
+	private static boolean isWordChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_'
+				|| (c >= 'A' && c <= 'Z');
+	}
+
+	private void ensureCapacity(int additional) {
+		if (this.length + additional > this.buf.length) {
+			char[] newBuf = new char[Math.max(this.length + additional,
+					this.buf.length * 2)];
+			System.arraycopy(this.buf, 0, newBuf, 0, this.length);
+			this.buf = newBuf;
+		}
+	}
+
+}
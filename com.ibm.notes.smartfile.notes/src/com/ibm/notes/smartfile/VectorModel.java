@@ -0,0 +1,812 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The vector space model: for every word a sparse row of (folder, tf) pairs
+ * plus its idf. Words and folders are addressed by their dense ids from a
+ * {@link TermDictionary}, all numbers are kept in primitive arrays. The tf *
+ * idf of a word in a folder is not stored, it is tf * getIdf(termId) and gets
+ * calculated where it is needed
+ * 
+ * @author stw
+ * 
+ */
+public class VectorModel implements ScoringModel {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// Words per chunk when the idf and vector lengths get calculated. The
+	// chunks don't depend on the number of threads, so the result doesn't
+	// either
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	// The per word arrays are split into blocks of this many words. A
+	// snapshot shares the blocks, learning copies a block before it changes
+	// it, so neither costs a copy of all words
+	private static final int BLOCK_SHIFT = 9;
+	private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+	private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+	// word <-> term id
+	private TermDictionary terms = new TermDictionary();
+
+	// folder name <-> folder id
+	private TermDictionary folders = new TermDictionary();
+
+	// term id >> BLOCK_SHIFT -> postings and idf of BLOCK_SIZE words
+	private TermBlock[] blocks = new TermBlock[INITIAL_CAPACITY
+			>> BLOCK_SHIFT];
+
+	// block number -> the block is used by a snapshot too and gets copied
+	// before it changes
+	private boolean[] blockShared = new boolean[INITIAL_CAPACITY
+			>> BLOCK_SHIFT];
+
+	// folder id -> vector length
+	// "vector length" = sqrt( tf*idf[1]^2 + tf*idf[2]^2 + ... + tf*idf[n]^2 )
+	private double[] vectorLengths = new double[0];
+
+	// folder id -> sum of the squared tf * idf of all words in the folder,
+	// kept up to date word by word between full calculations
+	private double[] folderSquares = new double[0];
+
+	// The number of folders the idf values were calculated with, -1 = never
+	private int idfFolderCount = -1;
+
+	// Words whose counts changed since the idf values were calculated
+	private boolean[] termChanged = new boolean[INITIAL_CAPACITY];
+	private int[] changedTerms = new int[16];
+	private int changedTermCount = 0;
+
+	// Folders whose vector length needs to be calculated again
+	private boolean[] folderChanged = new boolean[0];
+	private int[] changedFolders = new int[16];
+	private int changedFolderCount = 0;
+
+	/**
+	 * The per word data of BLOCK_SIZE consecutive term ids
+	 */
+	private static final class TermBlock {
+
+		// term -> (folder id, tf) pairs, sorted by folder id
+		// "tf" = term frequency = word count
+		final int[][] postings;
+
+		// term -> number of (folder id, tf) pairs used in postings
+		final int[] postingSizes;
+
+		// term -> idf
+		// "idf" = inverse document frequency = log(total_number_of folders /
+		// number_of_folders_that_contain_this_word)
+		final double[] idfs;
+
+		// term -> the row is used by a snapshot too and gets copied before
+		// it changes
+		final boolean[] rowShared;
+
+		TermBlock() {
+			this.postings = new int[BLOCK_SIZE][];
+			this.postingSizes = new int[BLOCK_SIZE];
+			this.idfs = new double[BLOCK_SIZE];
+			this.rowShared = new boolean[BLOCK_SIZE];
+		}
+
+		/**
+		 * A copy for the side that changes a shared block, the rows stay
+		 * shared
+		 */
+		TermBlock(TermBlock source) {
+			this.postings = source.postings.clone();
+			this.postingSizes = source.postingSizes.clone();
+			this.idfs = source.idfs.clone();
+			this.rowShared = new boolean[BLOCK_SIZE];
+			Arrays.fill(this.rowShared, true);
+		}
+
+	}
+
+	/**
+	 * Adds all counts of another model to this one, e.g. a partial model
+	 * counted by another thread. Folders are matched by name, folders and
+	 * words this model doesn't know yet are added
+	 * 
+	 * @param other
+	 *            the model to add, stays unchanged
+	 */
+	public void addAll(VectorModel other) {
+		int[] folderIds = new int[other.getFolderCount()];
+		for (int f = 0; f < folderIds.length; f++) {
+			folderIds[f] = this.addFolder(other.getFolderName(f));
+		}
+		char[] chars = other.terms.getChars();
+		for (int t = 0; t < other.getTermCount(); t++) {
+			int termId = this.addTerm(chars, other.terms.getOffset(t),
+					other.terms.getLength(t));
+			int[] row = other.getPostings(t);
+			for (int i = 0; i < other.getPostingSize(t); i++) {
+				this.addCount(termId, folderIds[row[2 * i]], row[2 * i + 1]);
+			}
+		}
+	}
+
+	/**
+	 * Adds the word counts of one document to a folder
+	 * 
+	 * @param tf
+	 *            the word counts of the document
+	 * @param folderId
+	 */
+	public void addDocument(TermCounter tf, int folderId) {
+		char[] chars = tf.getChars();
+		for (int i = 0; i < tf.size(); i++) {
+			int termId = this.addTerm(chars, tf.getOffset(i), tf.getLength(i));
+			this.addCount(termId, folderId, tf.getCount(i));
+		}
+	}
+
+	/**
+	 * Adds a (possibly negative) value to the count of a word in a folder.
+	 * Entries that drop to zero or below are removed
+	 * 
+	 * @param termId
+	 * @param folderId
+	 * @param delta
+	 */
+	public void addCount(int termId, int folderId, int delta) {
+		if (this.idfFolderCount >= 0
+				&& (termId >= this.termChanged.length
+						|| !this.termChanged[termId])) {
+			// First change since the last calculation: take the word out of
+			// the folder vector lengths while we still know its tf * idf
+			this.markTermChanged(termId);
+		}
+		TermBlock block = this.writableBlock(termId);
+		int t = termId & BLOCK_MASK;
+		int[] row = block.postings[t];
+		if (block.rowShared[t]) {
+			block.rowShared[t] = false;
+			if (row != null) {
+				row = row.clone();
+				block.postings[t] = row;
+			}
+		}
+		int size = block.postingSizes[t];
+		int pos = findFolder(row, size, folderId);
+
+		if (pos >= 0) {
+			int newCount = row[2 * pos + 1] + delta;
+			if (newCount > 0) {
+				row[2 * pos + 1] = newCount;
+			} else {
+				// Remove the pair, keep the row sorted
+				System.arraycopy(row, 2 * pos + 2, row, 2 * pos, 2 * (size
+						- pos - 1));
+				block.postingSizes[t] = size - 1;
+			}
+		} else if (delta > 0) {
+			int insertAt = -(pos + 1);
+			if (row == null) {
+				row = new int[2];
+				block.postings[t] = row;
+			} else if (2 * size == row.length) {
+				// trimToSize() may have left an empty row
+				int[] newRow = new int[Math.max(2, row.length * 2)];
+				System.arraycopy(row, 0, newRow, 0, row.length);
+				row = newRow;
+				block.postings[t] = row;
+			}
+			System.arraycopy(row, 2 * insertAt, row, 2 * insertAt + 2,
+					2 * (size - insertAt));
+			row[2 * insertAt] = folderId;
+			row[2 * insertAt + 1] = delta;
+			block.postingSizes[t] = size + 1;
+		}
+	}
+
+	/**
+	 * Registers a folder in the model
+	 * 
+	 * @param folderName
+	 * @return the folder id
+	 */
+	public int addFolder(String folderName) {
+		int folderId = this.folders.add(folderName);
+		if (folderId >= this.folderChanged.length) {
+			this.growFolders(Math.max(16, this.folderChanged.length * 2));
+		}
+		return folderId;
+	}
+
+	/**
+	 * Registers a word in the model
+	 * 
+	 * @param term
+	 * @return the term id
+	 */
+	public int addTerm(String term) {
+		int termId = this.terms.add(term);
+		this.ensureBlock(termId);
+		return termId;
+	}
+
+	/**
+	 * Registers a word given as characters in a buffer, used when loading a
+	 * model file
+	 * 
+	 * @return the term id
+	 */
+	public int addTerm(char[] buf, int off, int len) {
+		int termId = this.terms.add(buf, off, len);
+		this.ensureBlock(termId);
+		return termId;
+	}
+
+	/*************************************************************************************************
+	 * c a l c u l a t e I D F s
+	 **************************************************************************************************/
+
+	/**
+	 * Calculates the IDF (inverse document frequency) for each word
+	 * 
+	 * @param numberOfFolders
+	 *            the total number of folders
+	 */
+	public void calculateIDFs(int numberOfFolders) {
+		for (int t = 0; t < this.terms.size(); t++) {
+			this.writableBlock(t).idfs[t & BLOCK_MASK] = this.calculateIDF(t,
+					numberOfFolders);
+		}
+		this.idfsCalculated(numberOfFolders);
+	}
+
+	/*************************************************************************************************
+	 * c a l c u l a t e V e c t o r L e n g t h s
+	 **************************************************************************************************/
+
+	/**
+	 * Calculate the vector length for each folder
+	 */
+	public void calculateVectorLengths() {
+		double[][] chunkSquares = new double[this.getChunkCount()][];
+		for (int c = 0; c < chunkSquares.length; c++) {
+			chunkSquares[c] = this.calculateChunk(c, -1);
+		}
+		this.vectorLengthsCalculated(chunkSquares);
+	}
+
+	/*************************************************************************************************
+	 * c a l c u l a t e A l l
+	 **************************************************************************************************/
+
+	/**
+	 * Calculates the idf of each word and the vector length of each folder in
+	 * one pass over the words, split into chunks that several threads work
+	 * on. Each chunk sums the squared tf * idf per folder on its own and the
+	 * chunk sums are added up in chunk order, so the result is the same to
+	 * the last bit with any number of threads
+	 * 
+	 * @param numberOfFolders
+	 *            the total number of folders
+	 * @param threadCount
+	 *            how many threads may work on it, the calling one included
+	 */
+	public void calculateAll(final int numberOfFolders, int threadCount) {
+		final double[][] chunkSquares = new double[this.getChunkCount()][];
+		final AtomicInteger nextChunk = new AtomicInteger();
+		Runnable work = new Runnable() {
+			public void run() {
+				int c;
+				while ((c = nextChunk.getAndIncrement()) < chunkSquares.length) {
+					chunkSquares[c] = VectorModel.this.calculateChunk(c,
+							numberOfFolders);
+				}
+			}
+		};
+
+		// The calling thread works too
+		Thread[] helpers = new Thread[Math.max(0,
+				Math.min(threadCount, chunkSquares.length) - 1)];
+		for (int i = 0; i < helpers.length; i++) {
+			helpers[i] = new Thread(work, "SmartFile model refresh " + (i + 1));
+			helpers[i].setDaemon(true);
+			helpers[i].start();
+		}
+		work.run();
+
+		// The arrays are shared with the helpers, we must not go on before
+		// they are done
+		boolean interrupted = false;
+		for (Thread helper : helpers) {
+			while (helper.isAlive()) {
+				try {
+					helper.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		for (double[] squares : chunkSquares) {
+			if (squares == null) {
+				throw new IllegalStateException(
+						"A helper failed to calculate its words");
+			}
+		}
+
+		this.idfsCalculated(numberOfFolders);
+		this.vectorLengthsCalculated(chunkSquares);
+	}
+
+	/**
+	 * Tells if calculateIDFs and calculateVectorLengths need to run or if updateChangedTerms is good enough. The idf of every word
+	 * depends on the number of folders, so when that changes, all of them
+	 * have to be calculated again
+	 * 
+	 * @param numberOfFolders
+	 *            the total number of folders
+	 * @return true if everything needs to be calculated
+	 */
+	public boolean needsFullCalculation(int numberOfFolders) {
+		return this.idfFolderCount != numberOfFolders;
+	}
+
+	/**
+	 * Updates idf and the folder vector lengths for the words that
+	 * changed since the last calculation, so the cost depends on what was
+	 * learned and not on the size of the model
+	 * 
+	 * @return the number of words that got updated
+	 */
+	public int updateChangedTerms() {
+		int updated = this.changedTermCount;
+		double[] lengths = this.vectorLengths;
+		if (lengths.length < this.folders.size()) {
+			lengths = new double[this.folders.size()];
+			System.arraycopy(this.vectorLengths, 0, lengths, 0,
+					this.vectorLengths.length);
+		}
+
+		for (int i = 0; i < this.changedTermCount; i++) {
+			int t = this.changedTerms[i];
+			this.termChanged[t] = false;
+			double idf = this.calculateIDF(t, this.idfFolderCount);
+			TermBlock block = this.writableBlock(t);
+			block.idfs[t & BLOCK_MASK] = idf;
+
+			// Put the word back into the vector lengths of its folders
+			int[] row = block.postings[t & BLOCK_MASK];
+			for (int j = 0; j < block.postingSizes[t & BLOCK_MASK]; j++) {
+				int f = row[2 * j];
+				double tfidf = row[2 * j + 1] * idf;
+				this.folderSquares[f] += tfidf * tfidf;
+				this.markFolderChanged(f);
+			}
+		}
+		this.changedTermCount = 0;
+
+		for (int i = 0; i < this.changedFolderCount; i++) {
+			int f = this.changedFolders[i];
+			this.folderChanged[f] = false;
+			// Subtracting and adding again can leave a tiny negative rest
+			lengths[f] = Math.sqrt(Math.max(0, this.folderSquares[f]));
+		}
+		this.changedFolderCount = 0;
+		this.vectorLengths = lengths;
+
+		return updated;
+	}
+
+	public int getFolderCount() {
+		return this.folders.size();
+	}
+
+	/**
+	 * @param folderName
+	 * @return the id of the folder or -1 if the model doesn't know it
+	 */
+	public int getFolderId(String folderName) {
+		return this.folders.getId(folderName);
+	}
+
+	public String getFolderName(int folderId) {
+		return this.folders.getTerm(folderId);
+	}
+
+	public double getIdf(int termId) {
+		return this.blocks[termId >> BLOCK_SHIFT].idfs[termId & BLOCK_MASK];
+	}
+
+	/**
+	 * @return the folder id of the i-th pair of a word
+	 */
+	public int getPostingFolder(int termId, int i) {
+		return this.getPostings(termId)[2 * i];
+	}
+
+	/**
+	 * The posting row of a word for fast scoring, read only!
+	 * 
+	 * @return (folder id, tf) pairs, only the first getPostingSize(termId)
+	 *         pairs are valid
+	 */
+	public int[] getPostings(int termId) {
+		return this.blocks[termId >> BLOCK_SHIFT].postings[termId & BLOCK_MASK];
+	}
+
+	/**
+	 * @return the number of folders that contain a word
+	 */
+	public int getPostingSize(int termId) {
+		return this.blocks[termId >> BLOCK_SHIFT].postingSizes[termId
+				& BLOCK_MASK];
+	}
+
+	/**
+	 * @return the tf of the i-th pair of a word
+	 */
+	public int getPostingCount(int termId, int i) {
+		return this.getPostings(termId)[2 * i + 1];
+	}
+
+	public String getTerm(int termId) {
+		return this.terms.getTerm(termId);
+	}
+
+	public int getTermCount() {
+		return this.terms.size();
+	}
+
+	/**
+	 * @param term
+	 * @return the id of the word or -1 if the model doesn't know it
+	 */
+	public int getTermId(String term) {
+		return this.terms.getId(term);
+	}
+
+	public int getTermId(char[] buf, int off, int len) {
+		return this.terms.getId(buf, off, len);
+	}
+
+	public double getVectorLength(int folderId) {
+		return (folderId < this.vectorLengths.length) ? this.vectorLengths[folderId]
+				: 0;
+	}
+
+	/**
+	 * Takes over a complete posting row of a word, used when loading a model
+	 * file. The row must be sorted by folder id and the folders must be
+	 * registered already. idf and vector lengths need to be calculated
+	 * afterwards
+	 * 
+	 * @param termId
+	 * @param row
+	 *            (folder id, tf) pairs, the array is not copied
+	 * @param size
+	 *            the number of pairs in row
+	 */
+	public void loadPostings(int termId, int[] row, int size) {
+		TermBlock block = this.writableBlock(termId);
+		block.postings[termId & BLOCK_MASK] = row;
+		block.postingSizes[termId & BLOCK_MASK] = size;
+		block.rowShared[termId & BLOCK_MASK] = false;
+	}
+
+	/**
+	 * Moves the word counts of one document from some folders to others, this
+	 * is what learning does with a document that got filed
+	 * 
+	 * @param tf
+	 *            the word counts of the document
+	 * @param fromFolders
+	 *            folders to take the counts out of, unknown ones are skipped
+	 * @param toFolders
+	 *            folders to add the counts to, unknown ones are registered
+	 */
+	public void moveDocument(TermCounter tf, List<String> fromFolders,
+			List<String> toFolders) {
+		for (String folder : fromFolders) {
+			int folderId = this.folders.getId(folder);
+			if (folderId >= 0) {
+				this.removeDocument(tf, folderId);
+			}
+		}
+		for (String folder : toFolders) {
+			this.addDocument(tf, this.addFolder(folder));
+		}
+	}
+
+	/**
+	 * Subtracts the word counts of one document from a folder
+	 * 
+	 * @param tf
+	 *            the word counts of the document
+	 * @param folderId
+	 */
+	public void removeDocument(TermCounter tf, int folderId) {
+		char[] chars = tf.getChars();
+		for (int i = 0; i < tf.size(); i++) {
+			int termId = this.terms.getId(chars, tf.getOffset(i),
+					tf.getLength(i));
+			if (termId >= 0) {
+				this.addCount(termId, folderId, -tf.getCount(i));
+			}
+		}
+	}
+
+	/**
+	 * Takes a read only snapshot of the model, e.g. to save it while this
+	 * model keeps learning. The dictionaries and the blocks of words are
+	 * shared, learning copies a block and a row before it changes them. A
+	 * snapshot costs one entry per block of words and a few arrays with one
+	 * entry per folder, learning a document the blocks of its words
+	 * 
+	 * @return the snapshot
+	 */
+	public VectorModel snapshot() {
+		VectorModel copy = new VectorModel();
+		copy.terms = this.terms.snapshot();
+		copy.folders = this.folders.snapshot();
+		copy.blocks = this.blocks.clone();
+		copy.blockShared = new boolean[this.blocks.length];
+		copy.vectorLengths = this.vectorLengths.clone();
+		copy.folderSquares = this.folderSquares.clone();
+		copy.idfFolderCount = this.idfFolderCount;
+		copy.folderChanged = new boolean[this.folderChanged.length];
+
+		// Whichever side changes a block first gets its own copy
+		Arrays.fill(this.blockShared, true);
+		Arrays.fill(copy.blockShared, true);
+		return copy;
+	}
+
+	/**
+	 * Gives back the spare capacity of all rows after a rebuild
+	 */
+	public void trimToSize() {
+		this.terms.trimToSize();
+		for (int t = 0; t < this.terms.size(); t++) {
+			int[] row = this.getPostings(t);
+			int size = this.getPostingSize(t);
+			if (row != null && row.length > 2 * size) {
+				int[] newRow = new int[2 * size];
+				System.arraycopy(row, 0, newRow, 0, 2 * size);
+				TermBlock block = this.writableBlock(t);
+				block.postings[t & BLOCK_MASK] = newRow;
+				block.rowShared[t & BLOCK_MASK] = false;
+			}
+		}
+		this.growBlocks((this.terms.size() + BLOCK_MASK) >> BLOCK_SHIFT);
+	}
+
+	private double calculateIDF(int termId, int numberOfFolders) {
+		// Get the number of folders that contain this word
+		int df = this.getPostingSize(termId);
+		return (df == 0) ? 0 : Math.log((double) numberOfFolders / (double) df);
+	}
+
+	/**
+	 * Binary search for a folder in a row
+	 * 
+	 * @return the position of the pair or -(insertion point + 1)
+	 */
+	private static int findFolder(int[] row, int size, int folderId) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midFolder = row[2 * mid];
+			if (midFolder < folderId) {
+				low = mid + 1;
+			} else if (midFolder > folderId) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Calculates the squared tf * idf per folder for one chunk of words.
+	 * Chunks don't share anything they write, so they can run on different
+	 * threads
+	 * 
+	 * @param chunk
+	 *            the number of the chunk
+	 * @param numberOfFolders
+	 *            to calculate the idf of the words first, -1 to use the idf
+	 *            as it is
+	 * @return folder id -> sum of the squares in this chunk
+	 */
+	private double[] calculateChunk(int chunk, int numberOfFolders) {
+		double[] squares = new double[this.folders.size()];
+		int end = Math.min(this.terms.size(), (chunk + 1) * CHUNK_SIZE);
+		for (int t = chunk * CHUNK_SIZE; t < end; t++) {
+			// A chunk covers whole blocks, so no other thread copies them
+			TermBlock block = (numberOfFolders >= 0) ? this.writableBlock(t)
+					: this.blocks[t >> BLOCK_SHIFT];
+			if (numberOfFolders >= 0) {
+				block.idfs[t & BLOCK_MASK] = this.calculateIDF(t,
+						numberOfFolders);
+			}
+			int[] row = block.postings[t & BLOCK_MASK];
+			double idf = block.idfs[t & BLOCK_MASK];
+			for (int i = 0; i < block.postingSizes[t & BLOCK_MASK]; i++) {
+				double tfidf = row[2 * i + 1] * idf;
+				squares[row[2 * i]] += tfidf * tfidf;
+			}
+		}
+		return squares;
+	}
+
+	private int getChunkCount() {
+		return (this.terms.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	}
+
+	/**
+	 * Everything gets calculated, nothing left to update
+	 */
+	private void idfsCalculated(int numberOfFolders) {
+		this.idfFolderCount = numberOfFolders;
+		for (int i = 0; i < this.changedTermCount; i++) {
+			this.termChanged[this.changedTerms[i]] = false;
+		}
+		this.changedTermCount = 0;
+	}
+
+	/**
+	 * Adds up the sums of the chunks in chunk order and takes the vector
+	 * lengths from them
+	 */
+	private void vectorLengthsCalculated(double[][] chunkSquares) {
+		int folderCount = this.folders.size();
+		double[] squares = new double[this.folderChanged.length];
+		for (double[] chunk : chunkSquares) {
+			for (int f = 0; f < folderCount; f++) {
+				squares[f] += chunk[f];
+			}
+		}
+		this.folderSquares = squares;
+
+		// Calculate the square root of the sum of the squares for each folder,
+		// this is the vector length for the folder.
+		double[] lengths = new double[folderCount];
+		for (int f = 0; f < folderCount; f++) {
+			lengths[f] = Math.sqrt(squares[f]);
+		}
+		this.vectorLengths = lengths;
+
+		for (int i = 0; i < this.changedFolderCount; i++) {
+			this.folderChanged[this.changedFolders[i]] = false;
+		}
+		this.changedFolderCount = 0;
+	}
+
+	/**
+	 * Makes sure there is a block for a new word
+	 */
+	private void ensureBlock(int termId) {
+		int b = termId >> BLOCK_SHIFT;
+		if (b >= this.blocks.length) {
+			this.growBlocks(Math.max(b + 1, this.blocks.length * 2));
+		}
+		if (this.blocks[b] == null) {
+			this.blocks[b] = new TermBlock();
+		}
+	}
+
+	/**
+	 * The block of a word, copied first if a snapshot uses it too
+	 */
+	private TermBlock writableBlock(int termId) {
+		int b = termId >> BLOCK_SHIFT;
+		if (this.blockShared[b]) {
+			this.blocks[b] = new TermBlock(this.blocks[b]);
+			this.blockShared[b] = false;
+		}
+		return this.blocks[b];
+	}
+
+	/**
+	 * Resizes the list of blocks
+	 */
+	private void growBlocks(int newLength) {
+		if (newLength == this.blocks.length) {
+			return;
+		}
+		int n = Math.min(newLength, this.blocks.length);
+		TermBlock[] newBlocks = new TermBlock[newLength];
+		System.arraycopy(this.blocks, 0, newBlocks, 0, n);
+		this.blocks = newBlocks;
+		boolean[] newShared = new boolean[newLength];
+		System.arraycopy(this.blockShared, 0, newShared, 0, n);
+		this.blockShared = newShared;
+	}
+
+	/**
+	 * Resizes all per folder arrays
+	 */
+	private void growFolders(int newLength) {
+		double[] newSquares = new double[newLength];
+		System.arraycopy(this.folderSquares, 0, newSquares, 0,
+				this.folderSquares.length);
+		this.folderSquares = newSquares;
+		boolean[] newChanged = new boolean[newLength];
+		System.arraycopy(this.folderChanged, 0, newChanged, 0,
+				this.folderChanged.length);
+		this.folderChanged = newChanged;
+	}
+
+	private void markFolderChanged(int folderId) {
+		if (!this.folderChanged[folderId]) {
+			this.folderChanged[folderId] = true;
+			if (this.changedFolderCount == this.changedFolders.length) {
+				int[] newList = new int[this.changedFolders.length * 2];
+				System.arraycopy(this.changedFolders, 0, newList, 0,
+						this.changedFolderCount);
+				this.changedFolders = newList;
+			}
+			this.changedFolders[this.changedFolderCount++] = folderId;
+		}
+	}
+
+	/**
+	 * Remembers a word for updateChangedTerms and takes its current tf * idf
+	 * values out of the folder vector lengths. Must run before the counts or
+	 * the idf of the word change
+	 */
+	private void markTermChanged(int termId) {
+		if (termId >= this.termChanged.length) {
+			boolean[] newChanged = new boolean[Math.max(termId + 1,
+					this.termChanged.length * 2)];
+			System.arraycopy(this.termChanged, 0, newChanged, 0,
+					this.termChanged.length);
+			this.termChanged = newChanged;
+		}
+		this.termChanged[termId] = true;
+		if (this.changedTermCount == this.changedTerms.length) {
+			int[] newList = new int[this.changedTerms.length * 2];
+			System.arraycopy(this.changedTerms, 0, newList, 0,
+					this.changedTermCount);
+			this.changedTerms = newList;
+		}
+		this.changedTerms[this.changedTermCount++] = termId;
+
+		int[] row = this.getPostings(termId);
+		double idf = this.getIdf(termId);
+		for (int i = 0; i < this.getPostingSize(termId); i++) {
+			int f = row[2 * i];
+			double tfidf = row[2 * i + 1] * idf;
+			this.folderSquares[f] -= tfidf * tfidf;
+			this.markFolderChanged(f);
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.util.Vector;
+
+import lotus.domino.Document;
+import lotus.domino.NotesException;
+
+/**
+ * Reads the fields we look at from a document and counts its words, leaving
+ * out stopwords. The tokenizer, the counts and the body reader keep their
+ * buffers between documents.
+ * <p>
+ * An extractor is not thread safe, use one per thread. The documents must
+ * come from a session of that thread. Only count may be called from other
+ * threads
+ * 
+ * @author stw
+ * 
+ */
+public class WordExtractor {
+
+	private final Configuration config;
+
+	// Splits the text of a document into words and counts them
+	private final Tokenizer tokenizer = new Tokenizer();
+	private final TermCounter termCounts = new TermCounter();
+
+	// Streams rich text and MIME bodies into the tokenizer
+	private final BodyReader bodyReader = new BodyReader();
+
+	public WordExtractor(Configuration config) {
+		this.config = config;
+	}
+
+	/**
+	 * Counts the words in a document
+	 * 
+	 * @param doc
+	 * @return the counts, only valid until the next call
+	 */
+	public TermCounter extract(Document doc) {
+		String language = this.read(doc, this.tokenizer);
+		this.count(this.tokenizer, language, this.termCounts);
+		return this.termCounts;
+	}
+
+	/**
+	 * Counts the words a tokenizer holds, leaving out the stopwords. Only
+	 * uses the buffers passed in, so other threads can call it too
+	 * 
+	 * @param t
+	 *            the tokenizer with the text of a document
+	 * @param language
+	 *            the language of the document
+	 * @param tf
+	 *            gets the counts
+	 */
+	public void count(Tokenizer t, String language, TermCounter tf) {
+		tf.clear();
+
+		// The tokenizer lower cases and strips leading and trailing non-word
+		// characters
+		while (t.next()) {
+			int len = t.getLength();
+			if ((len > 1)
+					&& (!this.config.isStopWord(t.getBuffer(), t.getStart(),
+							len, language))) {
+				tf.add(t.getBuffer(), t.getStart(), len);
+			}
+		}
+	}
+
+	/**
+	 * Reads the text of a document without counting anything yet
+	 * 
+	 * @param doc
+	 * @param t
+	 *            gets the text
+	 * @return the language of the document
+	 */
+	public String read(Document doc, Tokenizer t) {
+		this.readTextFromDocument(doc, t);
+		return this.getLanguageFromDocument(doc);
+	}
+
+	/**
+	 * Determines the language of a document to pick the right Stopword list for
+	 * processing
+	 * 
+	 * @param doc
+	 * @return
+	 */
+	private String getLanguageFromDocument(Document doc) {
+		// TODO check with development how to figure the language
+		// for now just support the default language
+		return this.config.getDefaultLanguage();
+	}
+
+	/**
+	 * Collects the text of the fields we look at in the tokenizer
+	 */
+	private void readTextFromDocument(Document doc, Tokenizer t) {
+		t.reset();
+
+		// First all fields that can't have spaces like From, To etc
+		for (String curFieldNoSpaces : this.config
+				.getFieldsToProcessNoSpaces()) {
+			try {
+				if (doc.hasItem(curFieldNoSpaces)) {
+					@SuppressWarnings("rawtypes")
+					Vector values = doc.getItemValue(curFieldNoSpaces);
+					for (int i = 0; i < values.size(); i++) {
+						t.appendNoSpaces(values.elementAt(i).toString());
+					}
+				}
+			} catch (NotesException e) {
+				// We don't care if that doesn't work for on element
+			}
+		}
+
+		// Now the as-is fields, Body can be huge so we read them in pieces
+		// and only up to a limit
+		this.bodyReader.read(doc, this.config.getFieldsToProcess(), t,
+				this.config.getMaxTextLength());
+	}
+
+}
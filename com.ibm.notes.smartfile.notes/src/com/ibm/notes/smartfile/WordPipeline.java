@@ -0,0 +1,253 @@
+/** ========================================================================= *
+ * Copyright (C) 2009, 2014 IBM Corporation ( http://www.ibm.com/ )           *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     David King <dlking@us.ibm.com>                                *
+ *  @author     Stephan H. Wissel <st.wissel@sg.ibm.com>                      *   
+ *                                                                            *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== */
+package com.ibm.notes.smartfile;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import lotus.domino.Document;
+
+/**
+ * Counts the words of many documents in three stages, so reading from
+ * Notes and counting overlap. The Notes thread only reads the text of a
+ * document into a tokenizer and goes on with the next one. A few worker
+ * threads split the text into words and count them, pure Java. One
+ * aggregator thread hands the counts to a {@link Sink}, e.g. to add them to
+ * a model, so the sink doesn't need to be thread safe.
+ * <p>
+ * The documents travel in a fixed number of slots, each with its own
+ * tokenizer and counts. When all slots are in use the Notes thread waits,
+ * so the text of only a few documents is held at a time. submit and finish
+ * must be called from the same thread
+ * 
+ * @author stw
+ * 
+ * @param <T>
+ *            what the sink needs to know about a document besides its
+ *            words
+ */
+public class WordPipeline<T> {
+
+	/**
+	 * Gets the counts of each document, always on the aggregator thread
+	 * 
+	 * @param <T>
+	 */
+	public interface Sink<T> {
+
+		/**
+		 * @param tf
+		 *            the word counts, only valid during the call
+		 * @param payload
+		 *            what was submitted with the document
+		 */
+		void add(TermCounter tf, T payload);
+
+	}
+
+	/**
+	 * Documents in flight per worker
+	 */
+	private static final int SLOTS_PER_WORKER = 4;
+
+	private final WordExtractor extractor;
+	private final Sink<T> sink;
+
+	// Empty slots, the Notes thread fills them
+	private final BlockingQueue<Slot<T>> free;
+
+	// Filled slots waiting for a worker
+	private final BlockingQueue<Slot<T>> toCount;
+
+	// Counted slots waiting for the aggregator
+	private final BlockingQueue<Slot<T>> toAdd;
+
+	// Tells a worker or the aggregator that there is nothing more
+	private final Slot<T> end = new Slot<T>();
+
+	private final Thread[] workers;
+	private final Thread aggregator;
+
+	// The first thing that went wrong in a worker or the sink
+	private volatile RuntimeException failure = null;
+
+	/**
+	 * Starts the worker and the aggregator threads
+	 * 
+	 * @param config
+	 * @param workerCount
+	 *            see defaultWorkerCount
+	 * @param sink
+	 *            gets the counts
+	 */
+	public WordPipeline(Configuration config, int workerCount, Sink<T> sink) {
+		this.extractor = new WordExtractor(config);
+		this.sink = sink;
+		int slotCount = SLOTS_PER_WORKER * workerCount;
+		this.free = new ArrayBlockingQueue<Slot<T>>(slotCount);
+		for (int i = 0; i < slotCount; i++) {
+			this.free.add(new Slot<T>());
+		}
+		this.toCount = new ArrayBlockingQueue<Slot<T>>(slotCount + workerCount);
+		this.toAdd = new ArrayBlockingQueue<Slot<T>>(slotCount + workerCount);
+
+		this.workers = new Thread[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			this.workers[i] = new Thread(new Runnable() {
+				public void run() {
+					WordPipeline.this.countSlots();
+				}
+			}, "SmartFile word counter " + (i + 1));
+			this.workers[i].setDaemon(true);
+			this.workers[i].start();
+		}
+		this.aggregator = new Thread(new Runnable() {
+			public void run() {
+				WordPipeline.this.addSlots();
+			}
+		}, "SmartFile word aggregator");
+		this.aggregator.setDaemon(true);
+		this.aggregator.start();
+	}
+
+	/**
+	 * @return one worker per processor, leaving one for the Notes thread
+	 */
+	public static int defaultWorkerCount() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	}
+
+	/**
+	 * Waits until all submitted documents went to the sink and stops the
+	 * threads. The pipeline can't be used afterwards
+	 * 
+	 * @throws InterruptedException
+	 * @throws RuntimeException
+	 *             what counting or the sink threw first
+	 */
+	public void finish() throws InterruptedException {
+		for (int i = 0; i < this.workers.length; i++) {
+			this.toCount.put(this.end);
+		}
+		for (Thread w : this.workers) {
+			w.join();
+		}
+		this.aggregator.join();
+		if (this.failure != null) {
+			throw this.failure;
+		}
+	}
+
+	/**
+	 * Reads the text of a document and queues it for counting, waits while
+	 * all slots are in use
+	 * 
+	 * @param doc
+	 *            can be recycled as soon as this returns
+	 * @param payload
+	 *            goes to the sink with the counts
+	 * @throws InterruptedException
+	 */
+	public void submit(Document doc, T payload) throws InterruptedException {
+		Slot<T> slot = this.free.take();
+		try {
+			slot.language = this.extractor.read(doc, slot.tokenizer);
+		} catch (RuntimeException e) {
+			// There is room, the slot just came out
+			this.free.add(slot);
+			throw e;
+		}
+		slot.payload = payload;
+		this.toCount.put(slot);
+	}
+
+	/**
+	 * The aggregator: hands the counts to the sink until all workers are
+	 * done
+	 */
+	private void addSlots() {
+		int running = this.workers.length;
+		try {
+			while (running > 0) {
+				Slot<T> slot = this.toAdd.take();
+				if (slot == this.end) {
+					running--;
+					continue;
+				}
+				try {
+					if (this.failure == null) {
+						this.sink.add(slot.counts, slot.payload);
+					}
+				} catch (RuntimeException e) {
+					// Keep going, the Notes thread must not wait forever
+					this.failure = e;
+				}
+				slot.payload = null;
+				this.free.put(slot);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A worker: counts the words of the filled slots
+	 */
+	private void countSlots() {
+		try {
+			Slot<T> slot;
+			while ((slot = this.toCount.take()) != this.end) {
+				try {
+					this.extractor.count(slot.tokenizer, slot.language,
+							slot.counts);
+				} catch (RuntimeException e) {
+					// The aggregator skips the counts once there is a
+					// failure, but the slot must go on to get back to the
+					// Notes thread
+					if (this.failure == null) {
+						this.failure = e;
+					}
+				}
+				this.toAdd.put(slot);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// The aggregator waits for the end of every worker. toAdd has
+			// room for all slots and all ends, so this never fails
+			this.toAdd.offer(this.end);
+		}
+	}
+
+	/**
+	 * One document on its way through the pipeline
+	 */
+	private static class Slot<T> {
+
+		final Tokenizer tokenizer = new Tokenizer();
+		final TermCounter counts = new TermCounter();
+		String language;
+		T payload;
+
+	}
+
+}